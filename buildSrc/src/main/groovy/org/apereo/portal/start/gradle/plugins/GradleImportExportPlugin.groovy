@@ -1,5 +1,6 @@
 package org.apereo.portal.start.gradle.plugins
 
+import org.apereo.portal.start.shell.PortalShellInvoker
 import org.gradle.api.Plugin
 import org.gradle.api.Project
 
@@ -44,12 +45,24 @@ class GradleImportExportPlugin implements Plugin<Project> {
         }
         project.task('dataList') {
             group 'Data'
-            dependsOn project.rootProject.tasks.portalProperties, project.tasks.tomcatDeploy
+            dependsOn project.rootProject.tasks.portalProperties
+            // Without -Dlive=true, dataList answers from the entity catalog and needs no deployment
+            if (Boolean.getBoolean('live')) {
+                dependsOn project.tasks.tomcatDeploy
+            }
             doFirst {
                 if (project.tasks.dataList.actions.size() == 1) {
                     logger.lifecycle('No actions have been defined for this task in this project')
                 }
             }
         }
+        project.task('portalShellStop') {
+            group 'Data'
+            description 'Stops the portal shell daemon (see the shell.daemon build property), if it is running'
+            dependsOn project.rootProject.tasks.portalProperties
+            doLast {
+                PortalShellInvoker.stopDaemon(project)
+            }
+        }
     }
 }
@@ -1,8 +1,6 @@
 package org.apereo.portal.start.gradle.plugins
 
-import org.apache.pluto.util.assemble.Assembler
-import org.apache.pluto.util.assemble.AssemblerConfig
-import org.apache.pluto.util.assemble.AssemblerFactory
+import org.apereo.portal.start.pluto.PlutoAssemble
 import org.gradle.api.Project
 import org.gradle.api.Plugin
 
@@ -11,27 +9,31 @@ class GradlePlutoPlugin implements Plugin<Project> {
     void apply(Project project) {
         File destinationDir = new File (project.buildDir, 'pluto')
         File archiveOutput = new File(destinationDir, "${project.name}.war")
+        String plutoVersion = project.property('plutoVersion')
 
-        project.task('plutoAssemble') {
-            dependsOn project.tasks.war
-            doLast {
-                File archiveSource = project.configurations.war.artifacts.files.iterator().next()
-
-                logger.lifecycle("Processing archive ${archiveSource.getName()} " +
-                        "into destination directory ${destinationDir.getPath()} " +
-                        "with the Apache Pluto Assembler")
-
-                destinationDir.mkdirs()
-
-                AssemblerConfig config = new AssemblerConfig()
-                config.setSource(archiveSource)
-                config.setDestination(archiveOutput)
-                Assembler assembler = AssemblerFactory.getFactory().createAssembler(config)
-                assembler.assemble(config)
-            }
-        }
         project.configurations {
             pluto {}
+            plutoAssembler {}
+        }
+        project.dependencies {
+            plutoAssembler "org.apache.portals.pluto:pluto-util:${plutoVersion}"
+        }
+
+        /*
+         * The content of the WAR is the cache key of plutoAssemble, so build it the same way each
+         * time:  without file timestamps and with the entries in a stable order.
+         */
+        project.tasks.war {
+            preserveFileTimestamps = false
+            reproducibleFileOrder = true
+        }
+
+        project.task('plutoAssemble', type: PlutoAssemble) {
+            dependsOn project.tasks.war
+            source = { project.configurations.war.artifacts.files.iterator().next() }
+            destination = archiveOutput
+            delegate.plutoVersion = plutoVersion
+            assemblerClasspath = project.configurations.plutoAssembler
         }
         project.artifacts {
             pluto archiveOutput
@@ -1,5 +1,7 @@
 package org.apereo.portal.start.gradle.plugins
 
+import org.apereo.portal.start.shell.PortalShellInvoker
+import org.apereo.portal.start.tomcat.ExplodedWarSync
 import org.gradle.api.Plugin
 import org.gradle.api.Project
 import org.gradle.api.tasks.Delete
@@ -13,10 +15,16 @@ class GradleTomcatDeployPlugin implements Plugin<Project> {
             dependsOn project.rootProject.tasks.portalProperties
             mustRunAfter project.rootProject.tasks.tomcatInstall
 
+            // An incremental deploy updates the deployed application in place
+            onlyIf {
+                !(project.gradle.taskGraph.hasTask(project.tasks.tomcatDeploy) && isIncrementalDeploy(project))
+            }
+
             doFirst {
                 File serverBase = project.rootProject.file(project.rootProject.ext['buildProperties'].getProperty('server.base'))
                 File deployDir = new File (serverBase, "webapps/${project.name}")
                 logger.lifecycle("Removing deployed application from servlet container at location:  ${deployDir}")
+                PortalShellInvoker.stopDaemon(project)
                 delete deployDir
             }
         }
@@ -30,10 +38,18 @@ class GradleTomcatDeployPlugin implements Plugin<Project> {
                 File serverBase = project.rootProject.file(project.rootProject.ext['buildProperties'].getProperty('server.base'))
                 File deployDir = new File (serverBase, "webapps/${project.name}")
                 logger.lifecycle("Deploying assembled application to servlet container at location:  ${deployDir}")
+                // The portal shell daemon holds the deployed libraries open
+                PortalShellInvoker.stopDaemon(project)
 
                 String artifactDir = project.plugins.hasPlugin(GradlePlutoPlugin) ? 'pluto' : 'libs'
                 File warFile = new File("${project.buildDir}/${artifactDir}/${project.name}.war")
 
+                if (isIncrementalDeploy(project)) {
+                    ExplodedWarSync sync = new ExplodedWarSync(warFile, deployDir).sync()
+                    logger.lifecycle("Synchronized ${deployDir}:  ${sync}")
+                    return
+                }
+
                 project.copy {
                     with project.copySpec {
                         from project.zipTree(warFile)
@@ -43,4 +59,8 @@ class GradleTomcatDeployPlugin implements Plugin<Project> {
             }
         }
     }
+
+    private static boolean isIncrementalDeploy(Project project) {
+        return Boolean.parseBoolean(project.rootProject.ext['buildProperties'].getProperty('deploy.incremental'))
+    }
 }
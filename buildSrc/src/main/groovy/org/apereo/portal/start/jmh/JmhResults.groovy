@@ -0,0 +1,90 @@
+package org.apereo.portal.start.jmh
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+/**
+ * The results of one or more JMH runs (in JMH's JSON result format), keyed by benchmark, mode,
+ * thread count and parameters, and compared with a baseline (the results of an earlier run) to
+ * catch regressions.  Scores are compared as JMH reports them, so a baseline is only meaningful
+ * for results from the same machine.
+ */
+class JmhResults {
+
+    final List<Map> results
+
+    private JmhResults(List<Map> results) {
+        this.results = results
+    }
+
+    /**
+     * Combines the results files of several runs, e.g. one per thread count.
+     */
+    static JmhResults read(Collection<File> files) {
+        List<Map> results = []
+        files.each { file ->
+            results.addAll((List<Map>) new JsonSlurper().parse(file, 'UTF-8'))
+        }
+        return new JmhResults(results)
+    }
+
+    void write(File file) {
+        file.parentFile.mkdirs()
+        file.setText(JsonOutput.prettyPrint(JsonOutput.toJson(results)), 'UTF-8')
+    }
+
+    /**
+     * @param tolerance How much worse than the baseline (in percent) a score may be before it
+     * counts as a regression;  it is also only a regression if the scores' error margins do not
+     * overlap
+     */
+    Comparison compareWith(JmhResults baseline, double tolerance) {
+        Map<String,Map> baselineResults = baseline.results.collectEntries { [(keyOf(it)): it] }
+        Comparison comparison = new Comparison()
+        results.each { result ->
+            String key = keyOf(result)
+            Map before = baselineResults[key]
+            if (before == null) {
+                comparison.lines.add(String.format('%-100s %s', key, 'not in baseline'))
+                return
+            }
+            double score = result.primaryMetric.score as double
+            double error = errorOf(result)
+            double baselineScore = before.primaryMetric.score as double
+            double baselineError = errorOf(before)
+
+            // Positive when better:  higher is better for throughput, lower for times
+            boolean higherIsBetter = result.mode == 'thrpt'
+            double change = (score - baselineScore) / baselineScore * 100d
+            double improvement = higherIsBetter ? change : -change
+            boolean overlapping = Math.abs(score - baselineScore) <= error + baselineError
+            boolean regression = improvement < -tolerance && !overlapping
+            comparison.lines.add(String.format('%-100s %12.3f %12.3f %-12s %+7.1f%%%s', key,
+                    baselineScore, score, result.primaryMetric.scoreUnit, change,
+                    regression ? '  REGRESSION' : ''))
+            if (regression) {
+                comparison.regressions.add(key)
+            }
+        }
+        return comparison
+    }
+
+    private static String keyOf(Map result) {
+        String params = result.params ? ' ' + new TreeMap(result.params).collect { k, v -> "${k}=${v}" }.join(',') : ''
+        return "${result.benchmark} ${result.mode} threads=${result.threads}${params}"
+    }
+
+    private static double errorOf(Map result) {
+        def error = result.primaryMetric.scoreError
+        return error instanceof Number && !Double.isNaN(error as double) ? error as double : 0d
+    }
+
+    /**
+     * The outcome of comparing results with a baseline
+     */
+    static class Comparison {
+        final List<String> lines = []
+        final List<String> regressions = []
+    }
+
+}
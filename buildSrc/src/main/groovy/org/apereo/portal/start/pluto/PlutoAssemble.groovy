@@ -0,0 +1,78 @@
+package org.apereo.portal.start.pluto
+
+import javax.inject.Inject
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.CacheableTask
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+import org.gradle.api.tasks.TaskAction
+import org.gradle.workers.IsolationMode
+import org.gradle.workers.WorkerExecutor
+
+/**
+ * Processes a portlet WAR file with the Apache Pluto Assembler.  The task is up to date, or
+ * loaded from the build cache, unless the content of the source WAR or the Pluto version has
+ * changed (GradlePlutoPlugin builds the source WAR reproducibly, so that rebuilding an unchanged
+ * project yields the same content).  The Assembler runs in a Gradle worker process, so that (with
+ * --parallel) the portlets of several projects are assembled at the same time.
+ */
+@CacheableTask
+class PlutoAssemble extends DefaultTask {
+
+    private final WorkerExecutor workerExecutor
+
+    private Object source
+
+    @OutputFile
+    File destination
+
+    @Input
+    String plutoVersion
+
+    /**
+     * Pluto and its dependencies, for the worker process
+     */
+    @Classpath
+    FileCollection assemblerClasspath
+
+    @Inject
+    PlutoAssemble(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor
+    }
+
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    File getSource() {
+        return project.file(source)
+    }
+
+    /**
+     * @param source The WAR file to process;  anything Project.file accepts, e.g. a Closure
+     */
+    void setSource(Object source) {
+        this.source = source
+    }
+
+    @TaskAction
+    void assemble() {
+        File sourceFile = getSource()
+        logger.lifecycle("Processing archive ${sourceFile.getName()} " +
+                "into destination directory ${destination.parentFile.getPath()} " +
+                "with the Apache Pluto Assembler")
+
+        File actionClasspath = new File(PlutoAssembleAction.protectionDomain.codeSource.location.toURI())
+        workerExecutor.submit(PlutoAssembleAction) { config ->
+            config.isolationMode = IsolationMode.PROCESS
+            config.classpath = assemblerClasspath.files + actionClasspath
+            config.displayName = "Pluto assembly of ${sourceFile.getName()}"
+            config.params(sourceFile, destination)
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+package org.apereo.portal.start.pluto
+
+import javax.inject.Inject
+
+import org.apache.pluto.util.assemble.Assembler
+import org.apache.pluto.util.assemble.AssemblerConfig
+import org.apache.pluto.util.assemble.AssemblerFactory
+
+/**
+ * Runs the Apache Pluto Assembler on one WAR file, in a Gradle worker process (see PlutoAssemble).
+ */
+class PlutoAssembleAction implements Runnable {
+
+    private final File source
+    private final File destination
+
+    @Inject
+    PlutoAssembleAction(File source, File destination) {
+        this.source = source
+        this.destination = destination
+    }
+
+    @Override
+    void run() {
+        destination.parentFile.mkdirs()
+        AssemblerConfig config = new AssemblerConfig()
+        config.setSource(source)
+        config.setDestination(destination)
+        Assembler assembler = AssemblerFactory.getFactory().createAssembler(config)
+        assembler.assemble(config)
+    }
+
+}
@@ -0,0 +1,260 @@
+package org.apereo.portal.start.shell
+
+import java.util.regex.Pattern
+
+/**
+ * Catalog of the entities in the portal database, kept by the data tasks so that dataList can
+ * answer without starting the portal:  dataInit and dataImport record the entities of the files
+ * they import, dataExport those it exports, and dataDelete forgets the ones it deletes.  Each entity
+ * is recorded with its type and id as dataExport and dataDelete know them, the file it came from,
+ * the SHA-256 hash of that file and when it was last imported or exported.  The type of an entity
+ * file is its root element, except where uPortal uses one element for several types;  its id is the
+ * file name, less the .{type}.xml suffix (which is how dataExport names files).
+ *
+ * Like EntityImportManifest, the catalog belongs to one database and is discarded when the portal is
+ * pointed at another.  Entities created or changed in the portal itself are not in it.
+ */
+class EntityCatalog {
+
+    private static final String DATABASE_PREFIX = '# database='
+
+    /**
+     * Types whose files do not have the type as their root element, by root element and file
+     * suffix;  a null suffix matches any file with that root element
+     */
+    private static final Map<String,Map<String,String>> TYPES_BY_ROOT_ELEMENT = [
+            'group': [(null): 'group-membership'],
+            'layout': ['fragment-layout': 'fragment-layout']
+    ]
+
+    /**
+     * Suffixes, other than .{type}.xml, of the files of some types in the data sets
+     */
+    private static final Map<String,List<String>> FILE_SUFFIXES = [
+            'template-user': ['user'],
+            'predefined-calendar': ['pcd'],
+            'predefined-news': ['pnd']
+    ]
+
+    final File file
+    final String database
+
+    /**
+     * True when the catalog was recorded for another database, or there is none
+     */
+    final boolean databaseChanged
+
+    private final Map<String,Entry> entries = new TreeMap<>()
+
+    private EntityCatalog(File file, String database, boolean databaseChanged) {
+        this.file = file
+        this.database = database
+        this.databaseChanged = databaseChanged
+    }
+
+    static EntityCatalog load(File file, String database) {
+        if (!file.exists()) {
+            return new EntityCatalog(file, database, true)
+        }
+        List<String> lines = file.readLines('UTF-8')
+        if (lines.isEmpty() || lines[0] != DATABASE_PREFIX + database) {
+            return new EntityCatalog(file, database, true)
+        }
+        EntityCatalog catalog = new EntityCatalog(file, database, false)
+        lines.tail().each { line ->
+            String[] fields = line.split('\t', 5)
+            if (fields.length == 5) {
+                catalog.add(new Entry(fields[0], fields[1], fields[2], fields[3] as long, fields[4]))
+            }
+        }
+        return catalog
+    }
+
+    /**
+     * @return the type of the entity in the file, as dataExport and dataDelete -Dtype know it
+     */
+    static String typeOf(File file) {
+        String rootElement = EntityImportPlan.readRootElement(file)
+        Map<String,String> types = TYPES_BY_ROOT_ELEMENT[rootElement]
+        if (types == null) {
+            return rootElement
+        }
+        return types[suffixOf(file.name)] ?: types[null] ?: rootElement
+    }
+
+    /**
+     * @return the id of the entity in the file, as dataExport and dataDelete -Dsysid know it
+     */
+    static String idOf(File file, String type) {
+        String name = file.name
+        for (String suffix : [type] + (FILE_SUFFIXES[type] ?: [])) {
+            String fileSuffix = ".${suffix}.xml"
+            if (name.endsWith(fileSuffix)) {
+                return name.substring(0, name.length() - fileSuffix.length())
+            }
+        }
+        return name.endsWith('.xml') ? name.substring(0, name.length() - 4) : name
+    }
+
+    /**
+     * @return 'user' for 'admin.user.xml', or null if the name has no such suffix
+     */
+    private static String suffixOf(String name) {
+        if (!name.endsWith('.xml')) {
+            return null
+        }
+        String base = name.substring(0, name.length() - 4)
+        int dot = base.lastIndexOf('.')
+        return dot >= 0 ? base.substring(dot + 1) : null
+    }
+
+    /**
+     * Records the entities of the entity files, e.g. because they were imported.
+     */
+    void recordFiles(Collection<File> files, long time) {
+        files.each { file ->
+            String type = typeOf(file)
+            add(new Entry(type, idOf(file, type), EntityImportManifest.hash(file), time,
+                    PortalShellInvoker.createGroovySafePath(file.canonicalPath)))
+        }
+    }
+
+    void record(String type, String id, String hash, long time, String source) {
+        add(new Entry(type, id, hash, time, source))
+    }
+
+    void forget(String type, String id) {
+        entries.remove(keyOf(type, id))
+    }
+
+    /**
+     * Forgets every entity, e.g. because the database was recreated.
+     */
+    void clear() {
+        entries.clear()
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty()
+    }
+
+    /**
+     * @param type Type of the entities to return, or null for every type
+     * @param glob Pattern (with * and ?) the ids of the entities must match, or null for any id
+     * @return the matching entities, ordered by type and id
+     */
+    List<Entry> find(String type, String glob) {
+        Pattern pattern = glob != null ? globToPattern(glob) : null
+        return entries.values().findAll { entry ->
+            (type == null || entry.type == type) && (pattern == null || pattern.matcher(entry.id).matches())
+        } as List
+    }
+
+    /**
+     * @return the number of entities of each type
+     */
+    SortedMap<String,Integer> countByType() {
+        SortedMap<String,Integer> rslt = new TreeMap<>()
+        entries.values().each { entry ->
+            rslt[entry.type] = (rslt[entry.type] ?: 0) + 1
+        }
+        return rslt
+    }
+
+    /**
+     * Compares the entity files in a directory, e.g. data/quickstart, with the entities in the
+     * catalog.  Type and glob restrict the comparison as they do for find.
+     */
+    Diff diff(File location, String type, String glob) {
+        Diff diff = new Diff()
+        Pattern pattern = glob != null ? globToPattern(glob) : null
+        Map<String,Entry> remaining = new LinkedHashMap<>()
+        find(type, glob).each { remaining[keyOf(it.type, it.id)] = it }
+        EntityImportPlan.listEntityFiles(location).each { file ->
+            String fileType = typeOf(file)
+            String id = idOf(file, fileType)
+            if ((type != null && fileType != type) || (pattern != null && !pattern.matcher(id).matches())) {
+                return
+            }
+            Entry entry = remaining.remove(keyOf(fileType, id))
+            if (entry == null) {
+                diff.notLoaded.add(file)
+            } else if (entry.hash == EntityImportManifest.hash(file)) {
+                diff.unchanged.add(file)
+            } else {
+                diff.changed.add(file)
+            }
+        }
+        String prefix = PortalShellInvoker.createGroovySafePath(location.canonicalPath) + '/'
+        diff.removed.addAll(remaining.values().findAll { it.source.startsWith(prefix) })
+        return diff
+    }
+
+    void save() {
+        file.parentFile.mkdirs()
+        File temp = new File(file.parentFile, "${file.name}.tmp")
+        temp.withWriter('UTF-8') { writer ->
+            writer.write("${DATABASE_PREFIX}${database}\n")
+            entries.values().each { entry ->
+                writer.write("${entry.type}\t${entry.id}\t${entry.hash}\t${entry.time}\t${entry.source}\n")
+            }
+        }
+        file.delete()
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to write ${file}")
+        }
+    }
+
+    private void add(Entry entry) {
+        entries[keyOf(entry.type, entry.id)] = entry
+    }
+
+    private static String keyOf(String type, String id) {
+        return "${type}\t${id}"
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder()
+        glob.each { String c ->
+            regex.append(c == '*' ? '.*' : c == '?' ? '.' : Pattern.quote(c))
+        }
+        return Pattern.compile(regex.toString())
+    }
+
+    /**
+     * An entity in the catalog
+     */
+    static class Entry {
+        final String type
+        final String id
+        final String hash
+        final long time
+        final String source
+
+        Entry(String type, String id, String hash, long time, String source) {
+            this.type = type
+            this.id = id
+            this.hash = hash
+            this.time = time
+            this.source = source
+        }
+    }
+
+    /**
+     * Entity files that are not loaded, changed since they were loaded, or loaded unchanged, and
+     * entities that were loaded from the directory but whose file has since been removed
+     */
+    static class Diff {
+        final List<File> notLoaded = []
+        final List<File> changed = []
+        final List<File> unchanged = []
+        final List<Entry> removed = []
+
+        @Override
+        String toString() {
+            return "${notLoaded.size()} files not loaded, ${changed.size()} changed since they were loaded, " +
+                    "${unchanged.size()} unchanged and ${removed.size()} removed since they were loaded"
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.apereo.portal.start.shell
+
+/**
+ * Prepares the portal shell commands of an export straight into a zip or tar.gz archive, which
+ * dataImport -Darchive={path} can import again.  Entries are named {type}/{name}.{type}.xml, like
+ * the files of a regular dataExport.  See parallelDataExport.groovy.
+ */
+class EntityExportArchive {
+
+    static final List<String> SUPPORTED_EXTENSIONS = ['.zip', '.tar.gz', '.tgz'].asImmutable()
+
+    static boolean isSupported(String path) {
+        String name = path.toLowerCase()
+        return SUPPORTED_EXTENSIONS.any { name.endsWith(it) }
+    }
+
+    /**
+     * Writes parallelDataExport.groovy to the shell directory.
+     *
+     * @param types The types to export;  every type that supports export when empty
+     * @param sysid The one entity to export, or null for every entity of the types
+     * @param index File to list the exported entities in (see readIndex)
+     * @return portal shell commands that run it
+     */
+    static String writeShellCommands(File shellDir, File archive, List<String> types, String sysid, File index, int threads, String logDir) {
+        if (!isSupported(archive.name)) {
+            throw new IllegalArgumentException("Unsupported archive ${archive};  expected one of ${SUPPORTED_EXTENSIONS}")
+        }
+        shellDir.mkdirs()
+        File scriptFile = new File(shellDir, 'parallelDataExport.groovy')
+        scriptFile.text = EntityExportArchive.getResourceAsStream('parallelDataExport.groovy').getText('UTF-8')
+        String typesList = types.collect { "'${it}'" }.join(', ')
+        return """
+exportArchive = new File('${PortalShellInvoker.createGroovySafePath(archive.absolutePath)}')
+exportTypes = [${typesList}]
+exportSysid = ${sysid != null ? "'${sysid}'" : 'null'}
+exportIndex = new File('${PortalShellInvoker.createGroovySafePath(index.absolutePath)}')
+exportThreads = ${threads}
+exportLogDir = '${PortalShellInvoker.createGroovySafePath(logDir)}'
+evaluate(new File('${PortalShellInvoker.createGroovySafePath(scriptFile.absolutePath)}'))
+"""
+    }
+
+    /**
+     * Records the entities listed in the index of an export in the catalog.
+     */
+    static void readIndex(File index, File archive, EntityCatalog catalog) {
+        long time = index.lastModified()
+        String archivePath = PortalShellInvoker.createGroovySafePath(archive.canonicalPath)
+        index.eachLine('UTF-8') { line ->
+            String[] fields = line.split('\t', 4)
+            if (fields.length == 4) {
+                catalog.record(fields[0], fields[1], fields[2], time, "${archivePath}!/${fields[3]}")
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.apereo.portal.start.shell
+
+import java.security.MessageDigest
+
+/**
+ * Records the content hash of every entity file imported into a database, so that incremental
+ * imports (-Dincremental=true) can import only the files that are new or have changed since.  The
+ * manifest belongs to one database, identified by its JDBC URL and user name;  if the portal is
+ * pointed at a different database, the manifest is discarded and everything is imported again.
+ *
+ * The size and modification time of each file are recorded as well, and a file is only hashed
+ * when either of them differs from the manifest.
+ */
+class EntityImportManifest {
+
+    private static final String DATABASE_PREFIX = '# database='
+
+    final File file
+    final String database
+
+    /**
+     * True when the manifest was recorded for another database, or there is none
+     */
+    final boolean databaseChanged
+
+    private final Map<String,Entry> entries = new TreeMap<>()
+
+    private EntityImportManifest(File file, String database, boolean databaseChanged) {
+        this.file = file
+        this.database = database
+        this.databaseChanged = databaseChanged
+    }
+
+    static EntityImportManifest load(File file, String database) {
+        if (!file.exists()) {
+            return new EntityImportManifest(file, database, true)
+        }
+        List<String> lines = file.readLines('UTF-8')
+        if (lines.isEmpty() || lines[0] != DATABASE_PREFIX + database) {
+            return new EntityImportManifest(file, database, true)
+        }
+        EntityImportManifest manifest = new EntityImportManifest(file, database, false)
+        lines.tail().each { line ->
+            String[] fields = line.split('\t', 4)
+            if (fields.length == 4) {
+                manifest.entries[fields[3]] = new Entry(fields[0], fields[1] as long, fields[2] as long)
+            }
+        }
+        return manifest
+    }
+
+    /**
+     * @return the JDBC URL and user name the portal will connect to, from the global.properties
+     *     and uPortal.properties files in portal.home
+     */
+    static String databaseIdentity(File portalHome) {
+        Properties properties = new Properties()
+        ['global.properties', 'uPortal.properties'].each { name ->
+            File propertiesFile = new File(portalHome, name)
+            if (propertiesFile.exists()) {
+                propertiesFile.withInputStream { properties.load(it) }
+            }
+        }
+        return "${properties.getProperty('hibernate.connection.url')} ${properties.getProperty('hibernate.connection.username')}"
+    }
+
+    /**
+     * Compares the files with the manifest.
+     *
+     * @param files The entity files currently in scope
+     * @param scope Directory the files were found in;  manifest entries under it that are not among
+     *     the files are reported as deleted.  May be null.
+     */
+    Changes compare(Collection<File> files, File scope) {
+        Changes changes = new Changes()
+        Set<String> paths = [] as Set
+        files.each { file ->
+            String path = pathOf(file)
+            paths.add(path)
+            Entry entry = entries[path]
+            if (entry == null) {
+                changes.added.add(file)
+            } else if (entry.size == file.length() && entry.lastModified == file.lastModified()) {
+                changes.unchanged.add(file)
+            } else if (entry.hash == hash(file)) {
+                // Touched but not changed;  remember the new time so it is not hashed again
+                entries[path] = new Entry(entry.hash, file.length(), file.lastModified())
+                changes.unchanged.add(file)
+            } else {
+                changes.changed.add(file)
+            }
+        }
+        if (scope != null) {
+            String prefix = pathOf(scope) + '/'
+            entries.keySet().each { path ->
+                if (path.startsWith(prefix) && !paths.contains(path)) {
+                    changes.deleted.add(path)
+                }
+            }
+        }
+        return changes
+    }
+
+    /**
+     * Records that the files were imported.
+     */
+    void record(Collection<File> files) {
+        files.each { file ->
+            entries[pathOf(file)] = new Entry(hash(file), file.length(), file.lastModified())
+        }
+    }
+
+    /**
+     * Forgets the files, e.g. because they were deleted.
+     */
+    void forget(Collection<String> paths) {
+        entries.keySet().removeAll(paths)
+    }
+
+    /**
+     * Forgets every file, e.g. because the database was recreated.
+     */
+    void clear() {
+        entries.clear()
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty()
+    }
+
+    void save() {
+        file.parentFile.mkdirs()
+        File temp = new File(file.parentFile, "${file.name}.tmp")
+        temp.withWriter('UTF-8') { writer ->
+            writer.write("${DATABASE_PREFIX}${database}\n")
+            entries.each { path, entry ->
+                writer.write("${entry.hash}\t${entry.size}\t${entry.lastModified}\t${path}\n")
+            }
+        }
+        file.delete()
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to write ${file}")
+        }
+    }
+
+    private static String pathOf(File file) {
+        return PortalShellInvoker.createGroovySafePath(file.canonicalPath)
+    }
+
+    /**
+     * @return the SHA-256 hash of the content of the file
+     */
+    static String hash(File file) {
+        MessageDigest digest = MessageDigest.getInstance('SHA-256')
+        file.eachByte(64 * 1024) { byte[] buffer, int length ->
+            digest.update(buffer, 0, length)
+        }
+        return digest.digest().encodeHex().toString()
+    }
+
+    /**
+     * Files that are new, changed, unchanged or deleted compared to the manifest
+     */
+    static class Changes {
+        final List<File> added = []
+        final List<File> changed = []
+        final List<File> unchanged = []
+        final List<String> deleted = []
+
+        List<File> getModified() {
+            return added + changed
+        }
+
+        @Override
+        String toString() {
+            return "${added.size()} new, ${changed.size()} changed, ${unchanged.size()} unchanged and ${deleted.size()} deleted files"
+        }
+    }
+
+    private static class Entry {
+        final String hash
+        final long size
+        final long lastModified
+
+        Entry(String hash, long size, long lastModified) {
+            this.hash = hash
+            this.size = size
+            this.lastModified = lastModified
+        }
+    }
+
+}
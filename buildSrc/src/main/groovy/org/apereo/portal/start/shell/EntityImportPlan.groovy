@@ -0,0 +1,210 @@
+package org.apereo.portal.start.shell
+
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamException
+import javax.xml.stream.XMLStreamReader
+
+import org.gradle.api.GradleException
+
+/**
+ * Groups the entity files of one or more data sets by type so that the portal shell can import
+ * them concurrently (see parallelDataImport.groovy).  Files are typed by their root element, as the
+ * uPortal importer does, and a type is only imported once every type it depends on has been.  Each
+ * data set is a stage;  a stage is imported only after the previous one is complete, so entities in
+ * the implementation data set still replace those of the same name in the base data set.
+ */
+class EntityImportPlan {
+
+    /**
+     * Types known to the uPortal importer, mapped to the types that must be imported before them.
+     * Root elements not listed here are not uPortal entities (e.g. Announcements or Calendar data,
+     * which those overlays import) and are skipped.
+     */
+    static final Map<String,List<String>> DEFAULT_DEPENDENCIES = [
+            'entity-type': [],
+            'stylesheet-descriptor': [],
+            'portlet-type': [],
+            'permission-owner': [],
+            'template-user': [],
+            'user': ['template-user'],
+            'pags-group': ['entity-type'],
+            'group': ['entity-type', 'pags-group', 'template-user', 'user'],
+            'event-aggregation': ['pags-group', 'group'],
+            'portlet-definition': ['portlet-type', 'group', 'template-user', 'user'],
+            'permission-set': ['entity-type', 'permission-owner', 'group', 'template-user', 'user', 'portlet-definition'],
+            'fragment-definition': ['group', 'template-user', 'user'],
+            'profile': ['template-user', 'user', 'stylesheet-descriptor'],
+            'layout': ['template-user', 'user', 'stylesheet-descriptor', 'profile', 'portlet-definition', 'fragment-definition']
+    ].asImmutable()
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance()
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+    }
+
+    Map<String,List<String>> dependencies = DEFAULT_DEPENDENCIES
+
+    private final List<Map<String,List<File>>> stages = []
+    private final Map<String,Integer> skippedTypes = new TreeMap<>()
+
+    /**
+     * Adds the *.xml files in the location (a file or a directory, searched recursively) as a
+     * stage that is imported after the stages already added.
+     */
+    EntityImportPlan addStage(File location) {
+        return addStage(listEntityFiles(location))
+    }
+
+    /**
+     * Adds the files as a stage that is imported after the stages already added.
+     */
+    EntityImportPlan addStage(Collection<File> files) {
+        Map<String,List<File>> filesByType = new TreeMap<>()
+        files.sort().each { file ->
+            String type = readRootElement(file)
+            if (dependencies.containsKey(type)) {
+                filesByType.computeIfAbsent(type, { [] }).add(file)
+            } else {
+                skippedTypes.merge(type, 1, { a, b -> a + b })
+            }
+        }
+        stages.add(filesByType)
+        return this
+    }
+
+    /**
+     * @return every file in the plan, in an order that imports each type after the types it
+     *     depends on, for importing one at a time
+     */
+    List<File> getOrderedFiles() {
+        List<String> order = []
+        Closure visit
+        visit = { String type ->
+            if (!order.contains(type)) {
+                dependencies[type].each { visit(it) }
+                order.add(type)
+            }
+        }
+        checkDependencies()
+        dependencies.keySet().each { visit(it) }
+
+        List<File> files = []
+        stages.each { filesByType ->
+            order.each { type ->
+                files.addAll(filesByType[type] ?: [])
+            }
+        }
+        return files
+    }
+
+    int getFileCount() {
+        return stages.sum { stage -> stage.values().sum { it.size() } ?: 0 } ?: 0
+    }
+
+    /**
+     * @return the number of files of each root element that will not be imported
+     */
+    Map<String,Integer> getSkipped() {
+        return Collections.unmodifiableMap(skippedTypes)
+    }
+
+    /**
+     * Writes the plan, and the script that imports it, to the shell directory and returns the
+     * portal shell commands that run the import with the specified number of threads.
+     */
+    String writeShellCommands(File shellDir, String name, int threads, String logDir) {
+        File planFile = new File(shellDir, "${name}.plan")
+        write(planFile)
+        File scriptFile = new File(shellDir, 'parallelDataImport.groovy')
+        scriptFile.text = EntityImportPlan.getResourceAsStream('parallelDataImport.groovy').getText('UTF-8')
+        return """
+importPlan = new File('${PortalShellInvoker.createGroovySafePath(planFile.absolutePath)}')
+importThreads = ${threads}
+importLogDir = '${PortalShellInvoker.createGroovySafePath(logDir)}'
+evaluate(new File('${PortalShellInvoker.createGroovySafePath(scriptFile.absolutePath)}'))
+"""
+    }
+
+    /**
+     * Writes the plan in the tab-separated format read by parallelDataImport.groovy.
+     */
+    void write(File planFile) {
+        checkDependencies()
+        planFile.parentFile.mkdirs()
+        planFile.withWriter('UTF-8') { writer ->
+            writer.write('# Entity import plan;  see EntityImportPlan in buildSrc\n')
+            dependencies.each { type, requires ->
+                writer.write("type\t${type}\t${requires.join(',')}\n")
+            }
+            stages.eachWithIndex { filesByType, stage ->
+                filesByType.each { type, files ->
+                    files.each { file ->
+                        writer.write("file\t${stage}\t${type}\t${PortalShellInvoker.createGroovySafePath(file.absolutePath)}\n")
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the *.xml files in the location (a file or a directory, searched recursively)
+     */
+    static List<File> listEntityFiles(File location) {
+        List<File> files = []
+        if (location.isDirectory()) {
+            location.eachFileRecurse(groovy.io.FileType.FILES) { file ->
+                if (file.name.endsWith('.xml')) {
+                    files.add(file)
+                }
+            }
+        } else {
+            files.add(location)
+        }
+        return files
+    }
+
+    /**
+     * @return the local name of the first element in the file, or the file name if it is not XML
+     */
+    static String readRootElement(File file) {
+        file.withInputStream { input ->
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(input)
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        return reader.localName
+                    }
+                }
+            } catch (XMLStreamException e) {
+                throw new GradleException("Unable to read entity file ${file}", e)
+            } finally {
+                reader.close()
+            }
+            return file.name
+        }
+    }
+
+    private void checkDependencies() {
+        Set<String> visited = [] as Set
+        Set<String> visiting = [] as Set
+        Closure visit
+        visit = { String type ->
+            if (!dependencies.containsKey(type)) {
+                throw new GradleException("Unknown entity type ${type} in import dependencies")
+            }
+            if (visiting.contains(type)) {
+                throw new GradleException("Import dependencies of ${type} form a cycle")
+            }
+            if (visited.add(type)) {
+                visiting.add(type)
+                dependencies[type].each { visit(it) }
+                visiting.remove(type)
+            }
+        }
+        dependencies.keySet().each { visit(it) }
+    }
+
+}
@@ -0,0 +1,195 @@
+package org.apereo.portal.start.shell
+
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+
+import org.gradle.api.GradleException
+import org.gradle.api.Project
+import org.gradle.api.logging.Logger
+import org.gradle.api.logging.Logging
+
+/**
+ * Runs portal shell scripts in a long-lived background JVM (see portalShellDaemon.groovy), so that
+ * the portal application context is started once instead of once per data task.  The daemon is
+ * started on first use and advertises its port in build/shell/daemon.properties.  It is replaced
+ * when it was started with a different classpath or system properties, and it stops by itself
+ * after shell.daemon.idleTimeoutMinutes or when the web application is redeployed.
+ */
+class PortalShellDaemon {
+
+    private static final Logger logger = Logging.getLogger(PortalShellDaemon)
+
+    private static final long START_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10)
+
+    final File stateFile
+    final File logFile
+
+    private final List<String> command
+    private final File workingDir
+    private final String fingerprint
+
+    /**
+     * @param command Java command line that runs portalShellDaemon.groovy, less the arguments
+     *     this class adds
+     * @param watchedFile File whose modification means the web application was redeployed
+     */
+    PortalShellDaemon(Project project, List<String> command, File watchedFile, long idleTimeoutMillis) {
+        this.stateFile = getStateFile(project)
+        File daemonDir = stateFile.parentFile
+        this.logFile = new File(daemonDir, 'daemon.log')
+        this.workingDir = project.rootProject.projectDir
+
+        File scriptFile = new File(daemonDir, 'portalShellDaemon.groovy')
+        String script = PortalShellDaemon.getResourceAsStream('portalShellDaemon.groovy').getText('UTF-8')
+
+        MessageDigest digest = MessageDigest.getInstance('SHA-256')
+        command.each { digest.update(it.getBytes('UTF-8')) }
+        digest.update(script.getBytes('UTF-8'))
+        digest.update((watchedFile.lastModified() as String).getBytes('UTF-8'))
+        this.fingerprint = digest.digest().encodeHex().toString()
+
+        daemonDir.mkdirs()
+        if (!scriptFile.exists() || scriptFile.getText('UTF-8') != script) {
+            scriptFile.write(script, 'UTF-8')
+        }
+        this.command = command + [
+                scriptFile.absolutePath,
+                stateFile.absolutePath,
+                idleTimeoutMillis as String,
+                watchedFile.absolutePath,
+                fingerprint
+        ]
+    }
+
+    /**
+     * @return the file in which a running daemon advertises its port
+     */
+    static File getStateFile(Project project) {
+        return new File(project.buildDir, 'shell/daemon.properties')
+    }
+
+    /**
+     * Runs the script in the daemon, starting one if necessary, and copies its output to the
+     * console.
+     *
+     * @return the exit status of the script
+     */
+    int run(String scriptLocation, String... args) {
+        Properties state = readState()
+        if (state != null && state.getProperty('fingerprint') != fingerprint) {
+            logger.lifecycle('Portal shell configuration changed;  restarting the portal shell daemon')
+            stop()
+            state = null
+        }
+        if (state != null) {
+            try {
+                return send(state, scriptLocation, args)
+            } catch (ConnectException e) {
+                // The daemon is gone, leaving its state file behind
+                stateFile.delete()
+            }
+        }
+        return send(start(), scriptLocation, args)
+    }
+
+    /**
+     * Asks the daemon, if one is running, to stop and waits briefly for it to do so.
+     */
+    void stop() {
+        Properties state = readState()
+        if (state == null) {
+            return
+        }
+        try {
+            connect(state) { DataInputStream input, DataOutputStream output ->
+                output.writeUTF('stop')
+                output.flush()
+                input.readByte()
+            }
+        } catch (IOException e) {
+            logger.info("Unable to reach the portal shell daemon:  ${e}")
+        }
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30)
+        while (stateFile.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100)
+        }
+        stateFile.delete()
+    }
+
+    private Properties start() {
+        logger.lifecycle("Starting the portal shell daemon;  its log is ${logFile}")
+        stateFile.delete()
+        Process process = new ProcessBuilder(command)
+                .directory(workingDir)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+                .start()
+        process.outputStream.close()
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS
+        while (System.currentTimeMillis() < deadline) {
+            Properties state = readState()
+            if (state != null && state.getProperty('fingerprint') == fingerprint) {
+                return state
+            }
+            if (!process.alive) {
+                throw new GradleException("The portal shell daemon exited with status ${process.exitValue()};  see ${logFile}")
+            }
+            Thread.sleep(250)
+        }
+        process.destroy()
+        throw new GradleException("The portal shell daemon did not start in time;  see ${logFile}")
+    }
+
+    private int send(Properties state, String scriptLocation, String... args) {
+        return connect(state) { DataInputStream input, DataOutputStream output ->
+            output.writeUTF('run')
+            output.writeUTF(scriptLocation)
+            output.writeInt(args.length)
+            args.each { output.writeUTF(it) }
+            output.flush()
+
+            byte[] buffer = new byte[8192]
+            while (true) {
+                int type = input.readByte()
+                if (type == (int) ('X' as char)) {
+                    return input.readInt()
+                }
+                int length = input.readInt()
+                while (length > 0) {
+                    int read = input.read(buffer, 0, Math.min(length, buffer.length))
+                    if (read < 0) {
+                        throw new EOFException()
+                    }
+                    System.out.write(buffer, 0, read)
+                    length -= read
+                }
+                System.out.flush()
+            }
+        }
+    }
+
+    private static <T> T connect(Properties state, Closure<T> conversation) {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), state.getProperty('port') as int)
+        socket.withCloseable {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.inputStream))
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.outputStream))
+            output.writeUTF(state.getProperty('token'))
+            return conversation.call(input, output)
+        }
+    }
+
+    private Properties readState() {
+        if (!stateFile.exists()) {
+            return null
+        }
+        Properties state = new Properties()
+        try {
+            stateFile.withInputStream { state.load(it) }
+        } catch (IOException e) {
+            return null
+        }
+        return state.getProperty('port') ? state : null
+    }
+
+}
@@ -1,29 +1,43 @@
 package org.apereo.portal.start.shell
 
+import java.util.concurrent.TimeUnit
+
+import org.gradle.api.GradleException
 import org.gradle.api.Project
 
 /**
  * This class knows how to invoke org.apereo.portal.shell.PortalShell within the overlays:uPortal
  * project.  (It can't do anything in any other project.)
+ *
+ * When the shell.daemon build property is true, scripts are run in a PortalShellDaemon instead of
+ * a new JVM each time.
  */
 class PortalShellInvoker {
 
+    /**
+     * Additional system properties for the portal shell JVM, e.g. Hibernate settings.
+     */
+    Map<String,String> systemProperties = [:]
+
     void invoke(Project project, String scriptLocation, String... args) {
-        File serverBase = project.rootProject.file(project.rootProject.ext['buildProperties'].getProperty('server.base'))
-        File deployDir = new File (serverBase, "webapps/${project.name}")
+        if (isDaemonEnabled(project)) {
+            int status = createDaemon(project).run(scriptLocation, args)
+            if (status != 0) {
+                throw new GradleException("Portal shell script ${scriptLocation} failed with status ${status}")
+            }
+            return
+        }
 
         project.ant.setLifecycleLogLevel('INFO')
         project.ant.java(fork: true, failonerror: true, dir: project.rootProject.projectDir, classname: 'org.apereo.portal.shell.PortalShell') {
             classpath {
-                pathelement(location: "${deployDir}/WEB-INF/classes")
-                pathelement(location: "${deployDir}/WEB-INF/lib/*")
-                project.configurations.shell.files.each {
-                    pathelement(location: it.absolutePath)
+                getClasspath(project).each {
+                    pathelement(location: it)
                 }
             }
-            sysproperty(key: 'portal.home', value: project.rootProject.ext['buildProperties'].getProperty('portal.home'))
-            sysproperty(key: 'logback.configurationFile', value: 'command-line.logback.xml')
-            sysproperty(key: 'java.awt.headless', value: 'true')
+            getShellSystemProperties(project).each { key, value ->
+                sysproperty(key: key, value: value)
+            }
             arg(value: '-s')
             arg(value: scriptLocation)
             args.each {
@@ -32,8 +46,66 @@ class PortalShellInvoker {
         }
     }
 
+    /**
+     * Stops the portal shell daemon of the project, if one is running;  e.g. before the web
+     * application it runs from is redeployed.
+     */
+    static void stopDaemon(Project project) {
+        if (PortalShellDaemon.getStateFile(project).exists()) {
+            new PortalShellDaemon(project, [], getWebXml(project), 0).stop()
+        }
+    }
+
     static String createGroovySafePath(String rawPath) {
         return rawPath.replaceAll('\\\\', '/')
     }
 
+    private PortalShellDaemon createDaemon(Project project) {
+        Properties buildProperties = project.rootProject.ext['buildProperties']
+        long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(buildProperties.getProperty('shell.daemon.idleTimeoutMinutes', '30') as long)
+
+        List<String> command = [
+                new File(System.getProperty('java.home'), 'bin/java').absolutePath,
+                '-cp',
+                getClasspath(project).join(File.pathSeparator)
+        ]
+        getShellSystemProperties(project).each { key, value ->
+            command.add("-D${key}=${value}".toString())
+        }
+        command.add('groovy.ui.GroovyMain')
+        return new PortalShellDaemon(project, command, getWebXml(project), idleTimeoutMillis)
+    }
+
+    private static boolean isDaemonEnabled(Project project) {
+        return Boolean.parseBoolean(project.rootProject.ext['buildProperties'].getProperty('shell.daemon', 'false'))
+    }
+
+    private static File getDeployDir(Project project) {
+        File serverBase = project.rootProject.file(project.rootProject.ext['buildProperties'].getProperty('server.base'))
+        return new File (serverBase, "webapps/${project.name}")
+    }
+
+    private static File getWebXml(Project project) {
+        return new File(getDeployDir(project), 'WEB-INF/web.xml')
+    }
+
+    private static List<String> getClasspath(Project project) {
+        File deployDir = getDeployDir(project)
+        List<String> rslt = ["${deployDir}/WEB-INF/classes".toString(), "${deployDir}/WEB-INF/lib/*".toString()]
+        project.configurations.shell.files.each {
+            rslt.add(it.absolutePath)
+        }
+        return rslt
+    }
+
+    private Map<String,String> getShellSystemProperties(Project project) {
+        Map<String,String> rslt = [
+                'portal.home': project.rootProject.ext['buildProperties'].getProperty('portal.home'),
+                'logback.configurationFile': 'command-line.logback.xml',
+                'java.awt.headless': 'true'
+        ]
+        rslt.putAll(systemProperties)
+        return rslt
+    }
+
 }
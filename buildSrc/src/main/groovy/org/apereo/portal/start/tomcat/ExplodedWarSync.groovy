@@ -0,0 +1,119 @@
+package org.apereo.portal.start.tomcat
+
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+
+/**
+ * Brings an exploded web application in line with a WAR file by writing only the entries whose
+ * size or CRC differ from the deployed files and removing deployed files the WAR no longer
+ * contains.  Unchanged files are left untouched, so Tomcat only reloads the application when
+ * something it depends on has changed:  WEB-INF/web.xml, which Tomcat watches, is touched only when
+ * classes or libraries have changed.
+ */
+class ExplodedWarSync {
+
+    private static final String WEB_XML = 'WEB-INF/web.xml'
+
+    final File warFile
+    final File deployDir
+
+    int copiedFiles
+    long copiedBytes
+    int unchangedFiles
+    long unchangedBytes
+    int removedFiles
+    boolean reloadRequired
+
+    ExplodedWarSync(File warFile, File deployDir) {
+        this.warFile = warFile
+        this.deployDir = deployDir
+    }
+
+    ExplodedWarSync sync() {
+        Set<String> entryNames = [] as Set
+        new ZipFile(warFile).withCloseable { zip ->
+            zip.entries().each { ZipEntry entry ->
+                String name = entry.name
+                while (name.endsWith('/')) {
+                    name = name.substring(0, name.length() - 1)
+                }
+                entryNames.add(name)
+                if (entry.isDirectory()) {
+                    new File(deployDir, name).mkdirs()
+                    return
+                }
+
+                File target = new File(deployDir, name)
+                if (target.isFile() && target.length() == entry.size && crc(target) == entry.crc) {
+                    unchangedFiles++
+                    unchangedBytes += entry.size
+                    return
+                }
+
+                target.parentFile.mkdirs()
+                if (target.isDirectory()) {
+                    target.deleteDir()
+                }
+                // Replace the file in one step, so a running Tomcat never sees part of it
+                File temp = new File(target.parentFile, ".${target.name}.deploying")
+                zip.getInputStream(entry).withCloseable { input ->
+                    temp.withOutputStream { output -> output << input }
+                }
+                target.delete()
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Unable to write ${target}")
+                }
+                copiedFiles++
+                copiedBytes += entry.size
+                changed(name)
+            }
+        }
+
+        removeStale(deployDir, '', entryNames)
+
+        File webXml = new File(deployDir, WEB_XML)
+        if (reloadRequired && webXml.isFile()) {
+            webXml.setLastModified(System.currentTimeMillis())
+        }
+        return this
+    }
+
+    @Override
+    String toString() {
+        return "copied ${copiedFiles} files (${copiedBytes} bytes), removed ${removedFiles} files, " +
+                "left ${unchangedFiles} files (${unchangedBytes} bytes) unchanged" +
+                (reloadRequired ? ';  classes or libraries changed, so the application will be reloaded' : '')
+    }
+
+    private void removeStale(File dir, String prefix, Set<String> entryNames) {
+        dir.listFiles()?.each { File file ->
+            String name = prefix + file.name
+            if (file.isDirectory()) {
+                removeStale(file, name + '/', entryNames)
+                if (!entryNames.contains(name) && file.list().length == 0) {
+                    file.delete()
+                }
+            } else if (!entryNames.contains(name)) {
+                file.delete()
+                removedFiles++
+                changed(name)
+            }
+        }
+    }
+
+    private void changed(String name) {
+        if (name.startsWith('WEB-INF/classes/') || name.startsWith('WEB-INF/lib/')) {
+            reloadRequired = true
+        }
+    }
+
+    private static long crc(File file) {
+        CRC32 crc = new CRC32()
+        file.eachByte(64 * 1024) { byte[] buffer, int length ->
+            crc.update(buffer, 0, length)
+        }
+        return crc.value
+    }
+
+}
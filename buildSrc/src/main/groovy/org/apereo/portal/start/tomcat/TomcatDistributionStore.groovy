@@ -0,0 +1,172 @@
+package org.apereo.portal.start.tomcat
+
+import java.nio.file.FileVisitResult
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.security.MessageDigest
+
+import org.gradle.api.Project
+
+/**
+ * Keeps extracted Tomcat distributions, each in a directory named for the SHA-256 hash of its
+ * archive, so that tomcatInstall extracts a given archive only once per machine.  Installations are
+ * populated from the store:  JAR files are hard-linked where the file system allows it (they are
+ * never modified in place) and every other file is copied, so nothing Tomcat or the configuration
+ * overlays write to can change the store.
+ *
+ * Each installation records, in INSTALL_STATE_FILE, the distribution it was populated from and the
+ * configuration files overlaid on it, so that tomcatInstall can tell whether there is anything to
+ * do.
+ */
+class TomcatDistributionStore {
+
+    static final String INSTALL_STATE_FILE = '.tomcatInstall.properties'
+
+    final File storeDir
+
+    int linkedFiles
+    int copiedFiles
+    long copiedBytes
+
+    TomcatDistributionStore(File storeDir) {
+        this.storeDir = storeDir
+    }
+
+    /**
+     * @return the directory of the extracted distribution (the apache-tomcat-{version} directory of
+     * the archive), extracting the archive first if it is not in the store
+     */
+    File extract(Project project, File archive) {
+        String key = hash(archive)
+        File distribution = new File(storeDir, key)
+        if (distribution.isDirectory()) {
+            return distribution
+        }
+
+        // Extracted under a temporary name, so another build never sees a partial distribution
+        storeDir.mkdirs()
+        File staging = new File(storeDir, "${key}.${UUID.randomUUID()}.tmp")
+        try {
+            project.copy {
+                from project.tarTree(archive)
+                into staging
+            }
+            File[] roots = staging.listFiles()
+            File root = roots.length == 1 && roots[0].isDirectory() ? roots[0] : staging
+            if (!root.renameTo(distribution) && !distribution.isDirectory()) {
+                throw new IOException("Unable to write ${distribution}")
+            }
+        } finally {
+            staging.deleteDir()
+        }
+        return distribution
+    }
+
+    /**
+     * Replaces the contents of serverHome with the distribution.
+     */
+    void install(File distribution, File serverHome) {
+        serverHome.deleteDir()
+        Path source = distribution.toPath()
+        Path target = serverHome.toPath()
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()))
+                return FileVisitResult.CONTINUE
+            }
+
+            @Override
+            FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                populate(file, target.resolve(source.relativize(file).toString()))
+                return FileVisitResult.CONTINUE
+            }
+        })
+    }
+
+    /**
+     * Puts back the distribution's copy of each of the files (relative to serverHome), e.g. before
+     * the configuration is overlaid again;  files the distribution does not contain are removed.
+     */
+    void restore(File distribution, File serverHome, Collection<String> paths) {
+        paths.each { path ->
+            File target = new File(serverHome, path)
+            target.delete()
+            File original = new File(distribution, path)
+            if (original.isFile()) {
+                populate(original.toPath(), target.toPath())
+            }
+        }
+    }
+
+    /**
+     * Copies each file to its path (relative to serverHome).  Existing files are replaced rather
+     * than written to, in case they are linked to the store.
+     */
+    void overlay(File serverHome, Map<String,File> files) {
+        files.each { path, file ->
+            File target = new File(serverHome, path)
+            target.parentFile.mkdirs()
+            target.delete()
+            Files.copy(file.toPath(), target.toPath(), StandardCopyOption.COPY_ATTRIBUTES)
+            copiedFiles++
+            copiedBytes += file.length()
+        }
+    }
+
+    static Properties readInstallState(File serverHome) {
+        Properties rslt = new Properties()
+        File stateFile = new File(serverHome, INSTALL_STATE_FILE)
+        if (stateFile.isFile()) {
+            stateFile.withInputStream { rslt.load(it) }
+        }
+        return rslt
+    }
+
+    static void writeInstallState(File serverHome, File distribution, String overlays, Collection<String> overlaidPaths) {
+        Properties state = new Properties()
+        state.setProperty('distribution', distribution.name)
+        state.setProperty('overlays', overlays)
+        state.setProperty('overlaidPaths', overlaidPaths.join(','))
+        new File(serverHome, INSTALL_STATE_FILE).withOutputStream { state.store(it, null) }
+    }
+
+    /**
+     * @return a hash of the paths and contents of the files to overlay, for telling whether they
+     * have changed since they were last overlaid
+     */
+    static String fingerprint(Map<String,File> files) {
+        MessageDigest digest = MessageDigest.getInstance('SHA-256')
+        new TreeMap<String,File>(files).each { path, file ->
+            digest.update("${path}\t${hash(file)}\n".getBytes('UTF-8'))
+        }
+        return digest.digest().encodeHex().toString()
+    }
+
+    static String hash(File file) {
+        MessageDigest digest = MessageDigest.getInstance('SHA-256')
+        file.eachByte(64 * 1024) { byte[] buffer, int length ->
+            digest.update(buffer, 0, length)
+        }
+        return digest.digest().encodeHex().toString()
+    }
+
+    private void populate(Path source, Path target) {
+        if (source.fileName.toString().endsWith('.jar')) {
+            try {
+                Files.createLink(target, source)
+                linkedFiles++
+                return
+            } catch (IOException | UnsupportedOperationException e) {
+                // E.g. the store is on another file system;  copy instead
+            }
+        }
+        Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES)
+        copiedFiles++
+        copiedBytes += Files.size(source)
+    }
+
+}
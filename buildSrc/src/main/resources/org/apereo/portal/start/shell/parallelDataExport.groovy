@@ -0,0 +1,172 @@
+/*
+ * Exports entities straight into a zip or tar.gz archive (see EntityExportArchive) using
+ * exportThreads threads.  Types are exported one after another;  the entities of each type are
+ * split into one shard per thread, and the exported documents are written to the archive as they
+ * are produced, one entry per entity, without being staged on disk.  The type, id, SHA-256 hash and
+ * entry name of each exported entity are listed in exportIndex.  Expects exportArchive,
+ * exportTypes (empty for every type), exportSysid (null for every entity), exportIndex,
+ * exportThreads and exportLogDir to be set in the binding before it is evaluated.
+ */
+import java.security.MessageDigest
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import javax.xml.transform.stream.StreamResult
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream
+
+List<String> types = exportTypes ?: portalDataHandlerService.exportPortalDataTypes.collect { it.typeId }
+String archiveName = exportArchive.name.toLowerCase()
+boolean tar = archiveName.endsWith('.tar.gz') || archiveName.endsWith('.tgz')
+
+// Written under a temporary name, so a failed export never looks like a complete archive
+exportArchive.absoluteFile.parentFile.mkdirs()
+File partFile = new File(exportArchive.absoluteFile.parentFile, "${exportArchive.name}.part")
+OutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(partFile), 256 * 1024)
+def archive = tar ?
+        new TarArchiveOutputStream(new GZIPOutputStream(fileOutput, 64 * 1024)) :
+        new ZipOutputStream(fileOutput)
+Writer index = exportIndex.newWriter('UTF-8')
+if (tar) {
+    archive.longFileMode = TarArchiveOutputStream.LONGFILE_POSIX
+}
+
+Closure writeEntry = { String name, byte[] content ->
+    if (tar) {
+        TarArchiveEntry entry = new TarArchiveEntry(name)
+        entry.size = content.length
+        archive.putArchiveEntry(entry)
+        archive.write(content)
+        archive.closeArchiveEntry()
+    } else {
+        archive.putNextEntry(new ZipEntry(name))
+        archive.write(content)
+        archive.closeEntry()
+    }
+}
+
+AtomicInteger exportedEntities = new AtomicInteger()
+AtomicLong exportedBytes = new AtomicLong()
+AtomicBoolean failed = new AtomicBoolean()
+Queue<String> failures = new ConcurrentLinkedQueue<>()
+Set<String> entryNames = [] as Set
+List<String> summary = []
+long start = System.currentTimeMillis()
+Object shardDone = new Object()
+boolean written = false
+
+println "Exporting ${types.size()} type(s) to ${exportArchive} using ${exportThreads} threads"
+
+ExecutorService executor = Executors.newFixedThreadPool(exportThreads)
+ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor()
+progress.scheduleAtFixedRate({
+    int exported = exportedEntities.get()
+    double seconds = (System.currentTimeMillis() - start) / 1000d
+    println String.format('  %d entities exported, %.1f entities/s', exported, exported / seconds)
+} as Runnable, 10, 10, TimeUnit.SECONDS)
+
+try {
+    types.each { type ->
+        if (failed.get()) {
+            return
+        }
+        long typeStart = System.currentTimeMillis()
+        List<String> ids = exportSysid != null ? [exportSysid] : portalDataHandlerService.getPortalData(type).collect { it.dataId }
+        int shards = Math.max(1, Math.min(exportThreads, ids.size()))
+
+        // Bounded, so workers never get far ahead of the archive
+        BlockingQueue<Object> exported = new ArrayBlockingQueue<>(exportThreads * 4)
+        (0..<shards).each { int shard ->
+            executor.execute({
+                try {
+                    for (int i = shard; i < ids.size() && !failed.get(); i += shards) {
+                        String id = ids[i]
+                        try {
+                            ByteArrayOutputStream content = new ByteArrayOutputStream(16 * 1024)
+                            String fileName = portalDataHandlerService.exportData(type, id, new StreamResult(content))
+                            if (fileName != null) {
+                                exported.put([id, fileName, content.toByteArray()])
+                            }
+                        } catch (InterruptedException e) {
+                            throw e
+                        } catch (Throwable t) {
+                            failed.set(true)
+                            failures.add("${type} ${id}: ${t}".toString())
+                        }
+                    }
+                } finally {
+                    exported.put(shardDone)
+                }
+            } as Runnable)
+        }
+
+        int count = 0
+        long bytes = 0
+        int remainingShards = shards
+        while (remainingShards > 0) {
+            Object item = exported.take()
+            if (item.is(shardDone)) {
+                remainingShards--
+                continue
+            }
+            String fileName = item[1].replaceAll('[^\\w.\\-]', '_')
+            byte[] content = item[2]
+            String name = "${type}/${fileName}.${type}.xml"
+            for (int n = 2; !entryNames.add(name); n++) {
+                name = "${type}/${fileName}-${n}.${type}.xml"
+            }
+            writeEntry(name, content)
+            index.write("${type}\t${item[0]}\t${MessageDigest.getInstance('SHA-256').digest(content).encodeHex()}\t${name}\n")
+            count++
+            bytes += content.length
+            exportedEntities.incrementAndGet()
+            exportedBytes.addAndGet(content.length)
+        }
+
+        if (!failed.get()) {
+            double seconds = Math.max(System.currentTimeMillis() - typeStart, 1) / 1000d
+            String line = String.format('  %s: %d entities, %d KB in %.1f s (%.1f entities/s, %.1f KB/s)',
+                    type, count, (long) (bytes / 1024), seconds, count / seconds, bytes / 1024d / seconds)
+            summary.add(line)
+            println line
+        }
+    }
+    archive.close()
+    written = true
+} finally {
+    progress.shutdownNow()
+    executor.shutdownNow()
+    executor.awaitTermination(1, TimeUnit.MINUTES)
+    fileOutput.close()
+    index.close()
+    if (!written || failed.get()) {
+        partFile.delete()
+        exportIndex.delete()
+    }
+}
+
+if (failed.get()) {
+    failures.each { System.err.println "Failed to export ${it}" }
+    throw new RuntimeException("${failures.size()} entities failed to export;  see ${exportLogDir}")
+}
+exportArchive.delete()
+if (!partFile.renameTo(exportArchive)) {
+    throw new IOException("Unable to write ${exportArchive}")
+}
+
+double totalSeconds = (System.currentTimeMillis() - start) / 1000d
+println 'Throughput by entity type:'
+summary.each { println it }
+println String.format('Exported %d entities (%d KB) to %s in %.1f s',
+        exportedEntities.get(), (long) (exportedBytes.get() / 1024), exportArchive, totalSeconds)
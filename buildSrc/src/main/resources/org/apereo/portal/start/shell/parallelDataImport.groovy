@@ -0,0 +1,113 @@
+/*
+ * Imports the entity files listed in an import plan (see EntityImportPlan) using importThreads
+ * threads.  Files of the same type are imported concurrently, and a type is started as soon as
+ * every type it depends on has been imported.  Stages are imported one after another.  Expects
+ * importPlan, importThreads and importLogDir to be set in the binding before it is evaluated.
+ */
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+Map<String,List<String>> dependencies = [:]
+SortedMap<Integer,Map<String,List<String>>> stages = new TreeMap<>()
+importPlan.eachLine('UTF-8') { String line ->
+    String[] fields = line.split('\t', -1)
+    if (fields[0] == 'type') {
+        dependencies[fields[1]] = fields[2].isEmpty() ? [] : fields[2].split(',') as List
+    } else if (fields[0] == 'file') {
+        Map<String,List<String>> filesByType = stages.get(fields[1] as Integer, [:])
+        filesByType.get(fields[2], []).add(fields[3])
+    }
+}
+
+int totalFiles = stages.values().sum { it.values().sum { it.size() } } ?: 0
+AtomicInteger importedFiles = new AtomicInteger()
+AtomicBoolean failed = new AtomicBoolean()
+Queue<String> failures = new ConcurrentLinkedQueue<>()
+long start = System.currentTimeMillis()
+
+println "Importing ${totalFiles} files in ${stages.size()} stage(s) using ${importThreads} threads"
+
+ExecutorService executor = Executors.newFixedThreadPool(importThreads)
+ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor()
+progress.scheduleAtFixedRate({
+    int imported = importedFiles.get()
+    double seconds = (System.currentTimeMillis() - start) / 1000d
+    println String.format('  %d of %d files imported (%d%%), %.1f files/s',
+            imported, totalFiles, (int) (100L * imported / Math.max(totalFiles, 1)), imported / seconds)
+} as Runnable, 10, 10, TimeUnit.SECONDS)
+
+try {
+    stages.each { stage, filesByType ->
+        Set<String> waiting = new TreeSet<>(filesByType.keySet())
+        Set<String> imported = [] as Set
+        Map<String,Long> started = [:]
+        LinkedBlockingQueue<String> completed = new LinkedBlockingQueue<>()
+
+        while (imported.size() < started.size() || (!waiting.isEmpty() && !failed.get())) {
+            if (!failed.get()) {
+                // Types whose dependencies within this stage are all imported
+                Collection<String> ready = waiting.findAll { type ->
+                    dependencies[type].every { !filesByType.containsKey(it) || imported.contains(it) }
+                }
+                ready.each { type ->
+                    waiting.remove(type)
+                    started[type] = System.currentTimeMillis()
+                    List<String> files = filesByType[type]
+                    AtomicInteger remaining = new AtomicInteger(files.size())
+                    files.each { file ->
+                        executor.execute({
+                            try {
+                                if (!failed.get()) {
+                                    portalShellBuildHelper.dataImport('data-import', ' ', ' ', file, ' ', importLogDir)
+                                    importedFiles.incrementAndGet()
+                                }
+                            } catch (Throwable t) {
+                                failed.set(true)
+                                failures.add("${file}: ${t}".toString())
+                            } finally {
+                                if (remaining.decrementAndGet() == 0) {
+                                    completed.put(type)
+                                }
+                            }
+                        } as Runnable)
+                    }
+                }
+            }
+            if (imported.size() == started.size()) {
+                if (!waiting.isEmpty() && !failed.get()) {
+                    throw new IllegalStateException("Unable to order the import of ${waiting}")
+                }
+                break
+            }
+
+            String type = completed.take()
+            imported.add(type)
+            double seconds = Math.max(System.currentTimeMillis() - started[type], 1) / 1000d
+            int count = filesByType[type].size()
+            if (!failed.get()) {
+                println String.format('  %s: %d files in %.1f s (%.1f files/s)', type, count, seconds, count / seconds)
+            }
+        }
+
+        if (failed.get()) {
+            return
+        }
+        println "Stage ${stage + 1} of ${stages.size()} imported"
+    }
+} finally {
+    progress.shutdownNow()
+    executor.shutdown()
+    executor.awaitTermination(1, TimeUnit.MINUTES)
+}
+
+if (failed.get()) {
+    failures.each { System.err.println "Failed to import ${it}" }
+    throw new RuntimeException("${failures.size()} file(s) failed to import;  see ${importLogDir}")
+}
+println String.format('Imported %d files in %.1f s', importedFiles.get(), (System.currentTimeMillis() - start) / 1000d)
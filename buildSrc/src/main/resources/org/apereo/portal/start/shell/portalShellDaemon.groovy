@@ -0,0 +1,176 @@
+/*
+ * Starts the portal application context once and then runs the portal shell scripts sent to it
+ * by PortalShellDaemon over a local socket, one at a time, streaming their output back.  Exits
+ * when asked to, after being idle for too long, or when the deployed web application changes.
+ *
+ * A forked portal shell starts every script with empty caches, so the daemon clears the Hibernate
+ * second-level caches and the portal's Ehcache caches before each script;  otherwise a script
+ * could see entities cached by an earlier one, e.g. before dataInit recreated the tables.  The
+ * ids Hibernate has reserved from its generator tables can not be reset that way, so the daemon
+ * is restarted for a full dataInit (see overlays/uPortal/build.gradle).
+ *
+ * Arguments:  the state file to advertise the port in, the idle timeout in milliseconds, a file
+ * in the deployed web application whose modification signals a redeploy, and the fingerprint of
+ * the configuration the daemon was started with.
+ */
+import java.util.concurrent.TimeUnit
+
+File stateFile = new File(args[0])
+long idleTimeoutMillis = args[1] as long
+File watchedFile = new File(args[2])
+String fingerprint = args[3]
+
+long watchedLastModified = watchedFile.lastModified()
+long started = System.currentTimeMillis()
+def applicationContext = Class.forName('org.apereo.portal.spring.locator.PortalApplicationContextLocator').getApplicationContext()
+println "Portal application context started in ${System.currentTimeMillis() - started} ms"
+
+ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())
+server.soTimeout = (int) TimeUnit.SECONDS.toMillis(5)
+String token = UUID.randomUUID().toString()
+
+// Only the owner may read the token
+File tempStateFile = new File(stateFile.parentFile, "${stateFile.name}.tmp")
+tempStateFile.delete()
+tempStateFile.createNewFile()
+tempStateFile.setReadable(false, false)
+tempStateFile.setReadable(true, true)
+Properties state = new Properties()
+state.setProperty('port', server.localPort as String)
+state.setProperty('token', token)
+state.setProperty('fingerprint', fingerprint)
+tempStateFile.withOutputStream { state.store(it, 'Portal shell daemon') }
+stateFile.delete()
+tempStateFile.renameTo(stateFile)
+
+PrintStream originalOut = System.out
+PrintStream originalErr = System.err
+long lastUsed = System.currentTimeMillis()
+boolean running = true
+
+try {
+    while (running) {
+        if (System.currentTimeMillis() - lastUsed > idleTimeoutMillis) {
+            println 'Stopping after being idle'
+            break
+        }
+        if (watchedFile.lastModified() != watchedLastModified) {
+            println 'Stopping because the web application was redeployed'
+            break
+        }
+
+        Socket socket
+        try {
+            socket = server.accept()
+        } catch (SocketTimeoutException e) {
+            continue
+        }
+
+        try {
+            socket.withCloseable {
+                socket.soTimeout = (int) TimeUnit.SECONDS.toMillis(10)
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.inputStream))
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.outputStream))
+                if (input.readUTF() != token) {
+                    return
+                }
+
+                String command = input.readUTF()
+                if (command == 'stop') {
+                    running = false
+                    output.writeByte((int) ('X' as char))
+                    output.writeInt(0)
+                    output.flush()
+                    return
+                }
+
+                String scriptLocation = input.readUTF()
+                String[] scriptArgs = new String[input.readInt()]
+                for (int i = 0; i < scriptArgs.length; i++) {
+                    scriptArgs[i] = input.readUTF()
+                }
+                socket.soTimeout = 0
+
+                // Everything the script and the portal log to the console goes back to the client
+                OutputStream frames = new OutputStream() {
+                    @Override
+                    void write(int b) {
+                        write([(byte) b] as byte[], 0, 1)
+                    }
+
+                    @Override
+                    void write(byte[] b, int off, int len) {
+                        synchronized (output) {
+                            output.writeByte((int) ('O' as char))
+                            output.writeInt(len)
+                            output.write(b, off, len)
+                            output.flush()
+                        }
+                    }
+                }
+                PrintStream console = new PrintStream(frames, true, 'UTF-8')
+                System.setOut(console)
+                System.setErr(console)
+                int status = 0
+                try {
+                    clearCaches(applicationContext)
+                    new GroovyShell(new ApplicationContextBinding(applicationContext, scriptArgs)).run(new File(scriptLocation), scriptArgs)
+                } catch (Throwable t) {
+                    t.printStackTrace(console)
+                    status = 1
+                } finally {
+                    console.flush()
+                    System.setOut(originalOut)
+                    System.setErr(originalErr)
+                }
+                synchronized (output) {
+                    output.writeByte((int) ('X' as char))
+                    output.writeInt(status)
+                    output.flush()
+                }
+                lastUsed = System.currentTimeMillis()
+            }
+        } catch (IOException e) {
+            println "Lost the connection to the client:  ${e}"
+        }
+    }
+} finally {
+    stateFile.delete()
+    server.close()
+    if (applicationContext.respondsTo('close')) {
+        applicationContext.close()
+    }
+}
+System.exit(0)
+
+void clearCaches(applicationContext) {
+    Class entityManagerFactoryClass = Class.forName('javax.persistence.EntityManagerFactory')
+    applicationContext.getBeansOfType(entityManagerFactoryClass).values().each { it.cache.evictAll() }
+    Class.forName('net.sf.ehcache.CacheManager').getField('ALL_CACHE_MANAGERS').get(null).each { it.clearAll() }
+}
+
+/**
+ * Resolves script variables that are not otherwise set to beans of the same name, as the portal
+ * shell does;  e.g. portalShellBuildHelper.
+ */
+class ApplicationContextBinding extends Binding {
+    private final def applicationContext
+
+    ApplicationContextBinding(applicationContext, String[] args) {
+        super(args)
+        this.applicationContext = applicationContext
+    }
+
+    @Override
+    Object getVariable(String name) {
+        if (!super.hasVariable(name) && applicationContext.containsBean(name)) {
+            return applicationContext.getBean(name)
+        }
+        return super.getVariable(name)
+    }
+
+    @Override
+    boolean hasVariable(String name) {
+        return super.hasVariable(name) || applicationContext.containsBean(name)
+    }
+}
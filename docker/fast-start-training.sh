@@ -0,0 +1,101 @@
+#!/bin/sh
+#
+# Training run for the fast-start image (see dockerBuildImageFastStart in gradle/tasks/docker.gradle).
+# Runs in the first stage of the image build and leaves behind, under /tomcat:
+#
+#   - work/Catalina/localhost/<webapp>:  the webapp's JSPs, compiled ahead of time
+#   - cds/:  the classes loaded by starting the portal and serving a few pages, archived for class
+#     data sharing by the JVM of the image, and setenv.sh with the options that make Tomcat use
+#     the archive (bin/setenv.sh reads it)
+#
+# The portal starts completely during training only if it can reach its database.  If the build
+# context includes a copy of the embedded HSQLDB (/training/hsqldb), it is started for the
+# training run.  Otherwise the training run archives whatever classes load without the database.
+
+TOMCAT=/tomcat
+CDS=$TOMCAT/cds
+HEALTH_URL=http://localhost:8080/uPortal/500.html
+TRAINING_URLS="http://localhost:8080/uPortal/ http://localhost:8080/cas/login"
+TRAINING_TIMEOUT=${TRAINING_TIMEOUT:-600}
+
+set -e
+mkdir -p $CDS $TOMCAT/logs $TOMCAT/temp
+
+# 1. Compile every JSP into the work directory Jasper would use at runtime.  Jasper gives each
+#    class the modification time of its JSP and recompiles only if they differ, so the final stage
+#    copies the webapps from the build context, which keeps their times.  The generated source
+#    carries a timestamp, so only the classes are kept (see step 4);  that way an unchanged
+#    webapp produces an identical layer.
+CLASSPATH="$TOMCAT/bin/tomcat-juli.jar:$TOMCAT/lib/*:$TOMCAT/shared/lib/*"
+for webapp in $TOMCAT/webapps/*/; do
+    name=$(basename $webapp)
+    work=$TOMCAT/work/Catalina/localhost/$name
+    mkdir -p $work
+    echo "Compiling JSPs of $name"
+    java -cp "$CLASSPATH" org.apache.jasper.JspC -webapp $webapp -d $work -compile \
+        -source 1.8 -target 1.8 -javaEncoding UTF-8 \
+        || echo "Some JSPs of $name did not compile;  they will be compiled on first use"
+done
+
+# 2. Choose how to share classes with the JVM of the image.
+if java -version 2>&1 | grep -q OpenJ9; then
+    # Eclipse OpenJ9 shares the classes of every URLClassLoader, including the webapp class
+    # loaders, along with ahead-of-time compiled code.  The image only reads the cache, so it is
+    # not copied into the container layer on start.
+    TRAINING_OPTS="-Xshareclasses:name=uPortal,cacheDir=$CDS -Xscmx400m"
+    RUNTIME_OPTS="-Xshareclasses:name=uPortal,cacheDir=$CDS,readonly"
+elif java -XX:+PrintFlagsFinal -version 2>/dev/null | grep -q ArchiveClassesAtExit; then
+    # HotSpot 13 and above archive the classes of the webapp class loaders as well (dynamic AppCDS)
+    TRAINING_OPTS="-XX:ArchiveClassesAtExit=$CDS/uPortal.jsa"
+    RUNTIME_OPTS="-XX:SharedArchiveFile=$CDS/uPortal.jsa"
+else
+    # Older HotSpot JVMs only share the classes of the JDK
+    echo "This JVM can not archive webapp classes;  sharing the classes of the JDK only"
+    java -XX:+UnlockDiagnosticVMOptions -XX:SharedArchiveFile=$CDS/jdk.jsa -Xshare:dump
+    TRAINING_OPTS=""
+    RUNTIME_OPTS="-XX:+UnlockDiagnosticVMOptions -XX:SharedArchiveFile=$CDS/jdk.jsa -Xshare:auto"
+fi
+
+# 3. Start the portal with the training options, wait until it is up and serve a few pages.
+HSQLDB_PID=
+if [ -d /training/hsqldb/data ]; then
+    echo "Starting the embedded HSQLDB for the training run"
+    java -cp "/training/hsqldb/lib/*" org.hsqldb.server.Server \
+        --database.0 "file:/training/hsqldb/data/uPortal;hsqldb.tx=mvcc" --dbname.0 uPortal \
+        --address localhost --port 8887 > $TOMCAT/temp/hsqldb.log 2>&1 &
+    HSQLDB_PID=$!
+fi
+
+export CATALINA_PID=$TOMCAT/temp/catalina.pid
+CATALINA_OPTS="$TRAINING_OPTS" $TOMCAT/bin/catalina.sh start
+
+started=$(date +%s)
+until wget --quiet --tries=1 --spider $HEALTH_URL; do
+    if [ $(( $(date +%s) - started )) -gt $TRAINING_TIMEOUT ]; then
+        echo "The portal did not start within $TRAINING_TIMEOUT seconds;  training with the classes loaded so far"
+        break
+    fi
+    sleep 2
+done
+echo "Portal started in $(( $(date +%s) - started )) seconds during training"
+
+for round in 1 2 3; do
+    for url in $TRAINING_URLS; do
+        wget --quiet --tries=1 -O /dev/null $url || true
+    done
+done
+
+# The dynamic archive is written as the JVM exits, which catalina.sh waits for
+$TOMCAT/bin/catalina.sh stop 120 -force
+if [ -n "$HSQLDB_PID" ]; then
+    kill $HSQLDB_PID
+fi
+
+# 4. Use the archive whenever Tomcat starts, and leave nothing else of the run in the image.
+echo "CATALINA_OPTS=\"\$CATALINA_OPTS $RUNTIME_OPTS\"" > $CDS/setenv.sh
+# The training run may have compiled more JSPs;  Tomcat saved its sessions as it stopped.
+find $TOMCAT/work \( -name '*.java' -o -name SESSIONS.ser \) -delete
+for webapp in $TOMCAT/webapps/*/; do
+    find $TOMCAT/work/Catalina/localhost/$(basename $webapp) -type d -exec touch -r $webapp {} +
+done
+rm -rf $TOMCAT/logs/* $TOMCAT/temp/* /training
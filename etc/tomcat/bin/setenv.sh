@@ -15,6 +15,11 @@ CATALINA_OPTS="$CATALINA_OPTS -Djsse.enableSNIExtension=false"
 echo "PORTAL_HOME=$PORTAL_HOME"
 CATALINA_OPTS="$CATALINA_OPTS -Dportal.home=$PORTAL_HOME"
 
+# Use the class data sharing archive recorded while building the fast-start Docker image, if present
+if [ -r "$CATALINA_BASE/cds/setenv.sh" ]; then
+    . "$CATALINA_BASE/cds/setenv.sh"
+fi
+
 # Checking if anyother garbage collectors have been defined. If no other garbage
 # collector is present, default to G1GC
 # List of options taken from:
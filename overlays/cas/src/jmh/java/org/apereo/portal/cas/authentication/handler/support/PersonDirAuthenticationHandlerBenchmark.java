@@ -0,0 +1,96 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.concurrent.TimeUnit;
+import org.jasig.cas.authentication.handler.AuthenticationException;
+import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link PersonDirAuthenticationHandler#authenticateUsernamePasswordInternal} against the
+ * legacy (MD5) and (SHA256) hash formats, with the password hash lookup served from memory so only
+ * the handler and the digest are measured. Run with the jmh Gradle task.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PersonDirAuthenticationHandlerBenchmark {
+
+    /** The format of the stored hash */
+    @Param({"MD5", "SHA256"})
+    public String algorithm;
+
+    /** Whether the password is correct */
+    @Param({"true", "false"})
+    public boolean valid;
+
+    private PersonDirAuthenticationHandler authenticationHandler;
+
+    private UsernamePasswordCredentials credentials;
+
+    @Setup
+    public void setUp() {
+        final String username;
+        final String password;
+        final String passwordHash;
+        if ("MD5".equals(this.algorithm)) {
+            username = "admin";
+            password = "admin";
+            passwordHash = "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt";
+        } else {
+            username = "student";
+            password = "wombat";
+            passwordHash = "(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA==";
+        }
+
+        this.authenticationHandler = new PersonDirAuthenticationHandler();
+        this.authenticationHandler.setUserPasswordDao(
+                new UserPasswordDao() {
+                    @Override
+                    public String getPasswordHash(String userName) {
+                        return username.equals(userName) ? passwordHash : null;
+                    }
+
+                    @Override
+                    public boolean updatePasswordHash(String userName, String passwordHash) {
+                        return false;
+                    }
+                });
+
+        this.credentials = new UsernamePasswordCredentials();
+        this.credentials.setUsername(username);
+        this.credentials.setPassword(this.valid ? password : password + "x");
+    }
+
+    @Benchmark
+    public boolean authenticate() throws AuthenticationException {
+        return this.authenticationHandler.authenticateUsernamePasswordInternal(this.credentials);
+    }
+}
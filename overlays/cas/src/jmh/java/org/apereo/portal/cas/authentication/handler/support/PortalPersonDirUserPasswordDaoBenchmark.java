@@ -0,0 +1,95 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Measures {@link PortalPersonDirUserPasswordDao#getPasswordHash(String)} against an embedded
+ * (in-memory) HSQLDB UP_PERSON_DIR table, through a connection pool sized for the benchmark
+ * threads as it is in the CAS web application. One lookup in ten is for an unknown user. Run with
+ * the jmh Gradle task.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PortalPersonDirUserPasswordDaoBenchmark {
+
+    /** The number of users in UP_PERSON_DIR */
+    @Param({"10000"})
+    public int users;
+
+    private BasicDataSource dataSource;
+
+    private PortalPersonDirUserPasswordDao userPasswordDao;
+
+    @Setup
+    public void setUp(BenchmarkParams params) {
+        this.dataSource = new BasicDataSource();
+        this.dataSource.setDriverClassName("org.hsqldb.jdbcDriver");
+        this.dataSource.setUrl("jdbc:hsqldb:mem:CasBenchmark");
+        this.dataSource.setUsername("sa");
+        this.dataSource.setPassword("");
+        this.dataSource.setMaxActive(params.getThreads());
+        this.dataSource.setMaxIdle(params.getThreads());
+
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+        jdbcTemplate.execute(
+                "CREATE TABLE UP_PERSON_DIR (USER_NAME VARCHAR(1000) NOT NULL, "
+                        + "ENCRPTD_PSWD VARCHAR(1000), UNIQUE (USER_NAME))");
+        final List<Object[]> rows = new ArrayList<Object[]>(this.users);
+        for (int i = 0; i < this.users; i++) {
+            rows.add(new Object[] {"user" + i, "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt"});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO UP_PERSON_DIR VALUES (?, ?)", rows);
+
+        this.userPasswordDao = new PortalPersonDirUserPasswordDao();
+        this.userPasswordDao.setDataSource(this.dataSource);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        new JdbcTemplate(this.dataSource).execute("SHUTDOWN");
+        this.dataSource.close();
+    }
+
+    @Benchmark
+    public String getPasswordHash() {
+        final int user = ThreadLocalRandom.current().nextInt(this.users + this.users / 9);
+        return this.userPasswordDao.getPasswordHash("user" + user);
+    }
+}
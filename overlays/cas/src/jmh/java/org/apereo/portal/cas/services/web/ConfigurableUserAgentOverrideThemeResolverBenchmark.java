@@ -0,0 +1,155 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.jasig.cas.services.DefaultServicesManagerImpl;
+import org.jasig.cas.services.InMemoryServiceRegistryDaoImpl;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.services.RegisteredServiceImpl;
+import org.jasig.cas.web.support.ArgumentExtractor;
+import org.jasig.cas.web.support.CasArgumentExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ * Measures {@link ConfigurableUserAgentOverrideThemeResolver#resolveThemeName} for login requests
+ * from the user agents in user-agents.txt, against registered services with and without a theme of
+ * their own. With the corpus alone the resolver's caches answer nearly every request; with many
+ * more distinct user agents (the corpus with build numbers appended) than the user agent cache
+ * holds, most requests go through the override expressions. Run with the jmh Gradle task.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConfigurableUserAgentOverrideThemeResolverBenchmark {
+
+    private static final int SERVICES = 64;
+
+    /** The number of distinct user agents; 0 for just those of the corpus */
+    @Param({"0", "100000"})
+    public int distinctUserAgents;
+
+    private ConfigurableUserAgentOverrideThemeResolver themeResolver;
+
+    private MockHttpServletRequest[] requests;
+
+    @Setup
+    public void setUp() throws IOException {
+        final RegisteredServiceImpl portal = new RegisteredServiceImpl();
+        portal.setId(1);
+        portal.setName("uPortal");
+        portal.setServiceId("https://portal.example.org/uPortal/**");
+        portal.setTheme("uportal");
+        final RegisteredServiceImpl others = new RegisteredServiceImpl();
+        others.setId(2);
+        others.setName("Other services");
+        others.setServiceId("https://**");
+        final InMemoryServiceRegistryDaoImpl serviceRegistryDao =
+                new InMemoryServiceRegistryDaoImpl();
+        serviceRegistryDao.setRegisteredServices(
+                Arrays.<RegisteredService>asList(portal, others));
+
+        final Map<String, String> mobileOverrides = new LinkedHashMap<String, String>();
+        mobileOverrides.put(".*iPhone.*", "cas-theme-mobile");
+        mobileOverrides.put(".*Android.*Mobile.*", "cas-theme-mobile");
+        mobileOverrides.put(".*Safari.*Pre.*", "cas-theme-mobile");
+        mobileOverrides.put(".*Nokia.*AppleWebKit.*", "cas-theme-mobile");
+        mobileOverrides.put(".*(iPad|Android|Silk).*", "cas-theme-tablet");
+        final Map<String, Map<String, String>> overrides =
+                new LinkedHashMap<String, Map<String, String>>();
+        overrides.put("cas-theme-default", mobileOverrides);
+        overrides.put("uportal", mobileOverrides);
+
+        this.themeResolver = new ConfigurableUserAgentOverrideThemeResolver();
+        this.themeResolver.setDefaultThemeName("cas-theme-default");
+        this.themeResolver.setServicesManager(new DefaultServicesManagerImpl(serviceRegistryDao));
+        this.themeResolver.setArgumentExtractors(
+                Collections.<ArgumentExtractor>singletonList(new CasArgumentExtractor()));
+        this.themeResolver.setOverrides(overrides);
+
+        final List<String> corpus = readCorpus();
+        final int userAgents = Math.max(this.distinctUserAgents, corpus.size());
+        this.requests = new MockHttpServletRequest[userAgents];
+        for (int i = 0; i < userAgents; i++) {
+            String userAgent = corpus.get(i % corpus.size());
+            if (i >= corpus.size()) {
+                userAgent += " Build/" + i;
+            }
+            final MockHttpServletRequest request =
+                    new MockHttpServletRequest("GET", "/cas/login");
+            request.addHeader("User-Agent", userAgent);
+            // Half the logins are for the portal, the rest for other services
+            request.addParameter(
+                    "service",
+                    i % 2 == 0
+                            ? "https://portal.example.org/uPortal/Login?refUrl=/uPortal/f/"
+                                    + (i % SERVICES)
+                            : "https://app" + (i % SERVICES) + ".example.org/login");
+            this.requests[i] = request;
+        }
+    }
+
+    @Benchmark
+    public String resolveThemeName() {
+        return this.themeResolver.resolveThemeName(
+                this.requests[ThreadLocalRandom.current().nextInt(this.requests.length)]);
+    }
+
+    private static List<String> readCorpus() throws IOException {
+        final List<String> corpus = new ArrayList<String>();
+        final BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(
+                                ConfigurableUserAgentOverrideThemeResolverBenchmark.class
+                                        .getResourceAsStream("user-agents.txt"),
+                                "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    corpus.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * Base class for {@link PasswordVerifier} implementations that provides the algorithm prefix
+ * property along with salt generation and allocation-free Base64 decoding of stored hashes.
+ *
+ */
+public abstract class AbstractPasswordVerifier implements PasswordVerifier {
+    private static final SecureRandom SALT_SOURCE = new SecureRandom();
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        final String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private String prefix;
+
+    protected AbstractPasswordVerifier(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#getPrefix()
+     */
+    @Override
+    public String getPrefix() {
+        return this.prefix;
+    }
+    /** @param prefix the algorithm prefix, including parentheses, e.g. <code>(SHA256)</code> */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Converts a password to bytes the same way jasypt does: NFC normalized, then UTF-8 encoded.
+     */
+    protected static byte[] passwordBytes(String cleartextPassword) {
+        final String normalized =
+                Normalizer.isNormalized(cleartextPassword, Normalizer.Form.NFC)
+                        ? cleartextPassword
+                        : Normalizer.normalize(cleartextPassword, Normalizer.Form.NFC);
+        return normalized.getBytes(StandardCharsets.UTF_8);
+    }
+
+    protected static byte[] newSalt(int sizeBytes) {
+        final byte[] salt = new byte[sizeBytes];
+        SALT_SOURCE.nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Decodes standard Base64, with or without padding, from a range of a string without copying
+     * the range first.
+     *
+     * @return the decoded bytes, null if the range is not valid Base64
+     */
+    protected static byte[] decodeBase64(String source, int from, int to) {
+        while (to > from && source.charAt(to - 1) == '=') {
+            to--;
+        }
+        final int length = to - from;
+        if (length < 0 || length % 4 == 1) {
+            return null;
+        }
+
+        final byte[] decoded = new byte[length * 3 / 4];
+        int buffer = 0;
+        int bits = 0;
+        int position = 0;
+        for (int i = from; i < to; i++) {
+            final char c = source.charAt(i);
+            final int value = c < 128 ? BASE64_VALUES[c] : -1;
+            if (value < 0) {
+                return null;
+            }
+            buffer = (buffer << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                decoded[position++] = (byte) (buffer >> bits);
+            }
+        }
+        return decoded;
+    }
+
+    /** Compares two byte ranges in time that depends only on their length. */
+    protected static boolean constantTimeEquals(
+            byte[] expected, int expectedOffset, byte[] actual, int actualLength) {
+        if (expected.length - expectedOffset != actualLength) {
+            return false;
+        }
+        int result = 0;
+        for (int i = 0; i < actualLength; i++) {
+            result |= expected[expectedOffset + i] ^ actual[i];
+        }
+        return result == 0;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.Base64;
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+/**
+ * Verifies Argon2id password hashes stored as <code>(ARGON2)</code> followed by the standard
+ * encoded form, e.g. <code>$argon2id$v=19$m=65536,t=3,p=1$salt$hash</code>. Memory, iteration and
+ * parallelism costs travel with each hash; hashes weaker than configured report {@link
+ * #needsRehash(String)}.
+ *
+ */
+public class Argon2PasswordVerifier extends AbstractPasswordVerifier {
+    private static final String DEFAULT_PREFIX = "(ARGON2)";
+
+    private static final String TYPE = "argon2id";
+
+    // The shortest salt and output Argon2 allows
+    private static final int MIN_SALT_SIZE_BYTES = 8;
+    private static final int MIN_HASH_SIZE_BYTES = 4;
+
+    private int memoryKiB = 65536;
+    private int iterations = 3;
+    private int parallelism = 1;
+    private int saltSizeBytes = 16;
+    private int hashSizeBytes = 32;
+
+    public Argon2PasswordVerifier() {
+        super(DEFAULT_PREFIX);
+    }
+
+    /** @param memoryKiB the memory cost, in KiB, used for new hashes */
+    public void setMemoryKiB(int memoryKiB) {
+        this.memoryKiB = memoryKiB;
+    }
+
+    /** @param iterations the time cost used for new hashes */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /** @param parallelism the number of lanes used for new hashes */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /** @param saltSizeBytes the salt size used for new hashes */
+    public void setSaltSizeBytes(int saltSizeBytes) {
+        this.saltSizeBytes = saltSizeBytes;
+    }
+
+    /** @param hashSizeBytes the output size used for new hashes */
+    public void setHashSizeBytes(int hashSizeBytes) {
+        this.hashSizeBytes = hashSizeBytes;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#verify(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean verify(String cleartextPassword, String fullHash) {
+        final EncodedHash encoded = EncodedHash.parse(fullHash, getPrefix().length());
+        if (encoded == null) {
+            return false;
+        }
+
+        final byte[] actual =
+                generate(
+                        passwordBytes(cleartextPassword),
+                        encoded.salt,
+                        encoded.memoryKiB,
+                        encoded.iterations,
+                        encoded.parallelism,
+                        encoded.hash.length);
+        return constantTimeEquals(encoded.hash, 0, actual, actual.length);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#hash(java.lang.String)
+     */
+    @Override
+    public String hash(String cleartextPassword) {
+        final byte[] salt = newSalt(this.saltSizeBytes);
+        final byte[] hash =
+                generate(
+                        passwordBytes(cleartextPassword),
+                        salt,
+                        this.memoryKiB,
+                        this.iterations,
+                        this.parallelism,
+                        this.hashSizeBytes);
+
+        final Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return getPrefix()
+                + '$'
+                + TYPE
+                + "$v=19$m="
+                + this.memoryKiB
+                + ",t="
+                + this.iterations
+                + ",p="
+                + this.parallelism
+                + '$'
+                + encoder.encodeToString(salt)
+                + '$'
+                + encoder.encodeToString(hash);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#needsRehash(java.lang.String)
+     */
+    @Override
+    public boolean needsRehash(String fullHash) {
+        final EncodedHash encoded = EncodedHash.parse(fullHash, getPrefix().length());
+        return encoded == null
+                || encoded.memoryKiB < this.memoryKiB
+                || encoded.iterations < this.iterations
+                || encoded.parallelism < this.parallelism;
+    }
+
+    private static byte[] generate(
+            byte[] password,
+            byte[] salt,
+            int memoryKiB,
+            int iterations,
+            int parallelism,
+            int hashSizeBytes) {
+        final Argon2Parameters parameters =
+                new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                        .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                        .withMemoryAsKB(memoryKiB)
+                        .withIterations(iterations)
+                        .withParallelism(parallelism)
+                        .withSalt(salt)
+                        .build();
+
+        final Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(parameters);
+        final byte[] hash = new byte[hashSizeBytes];
+        generator.generateBytes(password, hash);
+        return hash;
+    }
+
+    /** The parsed fields of an encoded Argon2id hash. */
+    private static final class EncodedHash {
+        private int memoryKiB;
+        private int iterations;
+        private int parallelism;
+        private byte[] salt;
+        private byte[] hash;
+
+        private static EncodedHash parse(String fullHash, int offset) {
+            // ["", "argon2id", "v=19", "m=65536,t=3,p=1", salt, hash]
+            final String[] fields = fullHash.substring(offset).split("\\$");
+            if (fields.length != 6 || !TYPE.equals(fields[1]) || !"v=19".equals(fields[2])) {
+                return null;
+            }
+
+            final EncodedHash result = new EncodedHash();
+            try {
+                for (final String cost : fields[3].split(",")) {
+                    final int value = Integer.parseInt(cost.substring(2));
+                    if (cost.startsWith("m=")) {
+                        result.memoryKiB = value;
+                    } else if (cost.startsWith("t=")) {
+                        result.iterations = value;
+                    } else if (cost.startsWith("p=")) {
+                        result.parallelism = value;
+                    } else {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return null;
+            }
+
+            result.salt = decodeBase64(fields[4], 0, fields[4].length());
+            result.hash = decodeBase64(fields[5], 0, fields[5].length());
+            if (result.memoryKiB < 1
+                    || result.iterations < 1
+                    || result.parallelism < 1
+                    || result.salt == null
+                    || result.salt.length < MIN_SALT_SIZE_BYTES
+                    || result.hash == null
+                    || result.hash.length < MIN_HASH_SIZE_BYTES) {
+                return null;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import org.jasig.cas.authentication.handler.AuthenticationException;
+
+/**
+ * Thrown when a password check cannot be scheduled because the authentication executors are
+ * saturated. The user should simply try again; no judgement was made about the credentials.
+ *
+ */
+public class AuthenticationThrottledException extends AuthenticationException {
+    private static final long serialVersionUID = 1L;
+
+    /** Message code; its text is in custom_messages.properties. */
+    private static final String CODE = "error.authentication.busy";
+
+    public AuthenticationThrottledException() {
+        super(CODE);
+    }
+
+    public AuthenticationThrottledException(final Throwable throwable) {
+        super(CODE, throwable);
+    }
+}
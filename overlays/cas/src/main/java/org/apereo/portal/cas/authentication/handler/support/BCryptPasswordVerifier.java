@@ -0,0 +1,86 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.mindrot.jbcrypt.BCrypt;
+
+/**
+ * Verifies bcrypt password hashes of the form <code>(BCRYPT)$2a$cost$...</code>. Hashes with a
+ * lower cost than configured report {@link #needsRehash(String)}.
+ *
+ */
+public class BCryptPasswordVerifier extends AbstractPasswordVerifier {
+    private static final String DEFAULT_PREFIX = "(BCRYPT)";
+
+    /**
+     * The hashes jBCrypt can check: revision, two digit cost, then 22 characters of salt and 31 of
+     * hash. jBCrypt itself fails with a StringIndexOutOfBoundsException on shorter strings.
+     */
+    private static final Pattern HASH_PATTERN =
+            Pattern.compile("\\$2a?\\$(\\d\\d)\\$[./A-Za-z0-9]{53}");
+
+    private int cost = 10;
+
+    public BCryptPasswordVerifier() {
+        super(DEFAULT_PREFIX);
+    }
+
+    /** @param cost the log2 work factor used for new hashes, between 4 and 31 */
+    public void setCost(int cost) {
+        if (cost < 4 || cost > 31) {
+            throw new IllegalArgumentException("bcrypt cost must be between 4 and 31: " + cost);
+        }
+        this.cost = cost;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#verify(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean verify(String cleartextPassword, String fullHash) {
+        final String hash = fullHash.substring(getPrefix().length());
+        if (!HASH_PATTERN.matcher(hash).matches()) {
+            return false;
+        }
+        try {
+            return BCrypt.checkpw(cleartextPassword, hash);
+        } catch (IllegalArgumentException e) {
+            // Cost out of the range jBCrypt supports
+            return false;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#hash(java.lang.String)
+     */
+    @Override
+    public String hash(String cleartextPassword) {
+        return getPrefix() + BCrypt.hashpw(cleartextPassword, BCrypt.gensalt(this.cost));
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#needsRehash(java.lang.String)
+     */
+    @Override
+    public boolean needsRehash(String fullHash) {
+        final Matcher matcher = HASH_PATTERN.matcher(fullHash.substring(getPrefix().length()));
+        if (!matcher.matches()) {
+            return true;
+        }
+        return Integer.parseInt(matcher.group(1)) < this.cost;
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decorates a {@link UserPasswordDao} to protect the database from login storms.
+ *
+ * <ul>
+ *   <li>Concurrent lookups for the same user share a single query.
+ *   <li>Lookups for different users that arrive within <code>batchWindowMillis</code> of each other
+ *       are combined into one query when the target is a {@link BulkUserPasswordDao}. The first
+ *       thread to arrive waits out the window and runs the query on behalf of the others, so no
+ *       additional threads are needed. The results are matched to the users regardless of case,
+ *       since a database that compares user names without regard to case returns them as
+ *       stored; users the combined query does not find are unknown without another query.
+ *   <li>Unknown users are remembered for <code>negativeCacheTimeToLiveSeconds</code>, since
+ *       credential stuffing traffic is mostly for accounts that do not exist.
+ * </ul>
+ *
+ * Password hashes themselves are not cached, so a changed password takes effect immediately.
+ *
+ */
+public class BatchingUserPasswordDao implements UserPasswordDao {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<String, CompletableFuture<String>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    private final Object batchLock = new Object();
+    private List<String> openBatch;
+
+    private final Map<String, Long> unknownUsers;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong coalescedLookups = new AtomicLong();
+    private final AtomicLong negativeCacheHits = new AtomicLong();
+
+    private UserPasswordDao userPasswordDao;
+    private volatile long batchWindowMillis = 2;
+    private volatile int maxBatchSize = 50;
+    private volatile long negativeCacheTimeToLiveMillis = TimeUnit.SECONDS.toMillis(30);
+    private volatile int negativeCacheMaxSize = 10000;
+
+    public BatchingUserPasswordDao() {
+        this.unknownUsers =
+                new LinkedHashMap<String, Long>(16, 0.75f, false) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                        return size() > negativeCacheMaxSize;
+                    }
+                };
+    }
+
+    /** @param userPasswordDao the DAO that actually performs lookups */
+    public void setUserPasswordDao(UserPasswordDao userPasswordDao) {
+        this.userPasswordDao = userPasswordDao;
+    }
+
+    /**
+     * @param batchWindowMillis how long the first lookup of a batch waits for others to join it; 0
+     *     disables batching but keeps per-user coalescing
+     */
+    public void setBatchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+    }
+
+    /** @param maxBatchSize the most users looked up by one query */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /** @param negativeCacheTimeToLiveSeconds how long an unknown user is remembered; 0 disables */
+    public void setNegativeCacheTimeToLiveSeconds(long negativeCacheTimeToLiveSeconds) {
+        this.negativeCacheTimeToLiveMillis =
+                TimeUnit.SECONDS.toMillis(negativeCacheTimeToLiveSeconds);
+    }
+
+    /** @param negativeCacheMaxSize the most unknown users remembered at once */
+    public void setNegativeCacheMaxSize(int negativeCacheMaxSize) {
+        this.negativeCacheMaxSize = negativeCacheMaxSize;
+    }
+
+    /** @return the number of queries issued to the underlying DAO */
+    public long getQueryCount() {
+        return this.queries.get();
+    }
+
+    /** @return the number of lookups that reached the underlying DAO, batched or not */
+    public long getLookupCount() {
+        return this.lookups.get();
+    }
+
+    /** @return the number of lookups that joined an in-flight lookup for the same user */
+    public long getCoalescedLookupCount() {
+        return this.coalescedLookups.get();
+    }
+
+    /** @return the number of lookups answered by the negative cache */
+    public long getNegativeCacheHitCount() {
+        return this.negativeCacheHits.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#getPasswordHash(java.lang.String)
+     */
+    @Override
+    public String getPasswordHash(String userName) {
+        if (isKnownUnknown(userName)) {
+            this.negativeCacheHits.incrementAndGet();
+            return null;
+        }
+
+        final CompletableFuture<String> result = new CompletableFuture<String>();
+        final CompletableFuture<String> existing = this.inFlight.putIfAbsent(userName, result);
+        if (existing != null) {
+            this.coalescedLookups.incrementAndGet();
+            return await(existing);
+        }
+
+        final List<String> batch;
+        final boolean leader;
+        synchronized (this.batchLock) {
+            leader = this.openBatch == null || this.openBatch.size() >= this.maxBatchSize;
+            if (leader) {
+                this.openBatch = new ArrayList<String>();
+            }
+            this.openBatch.add(userName);
+            batch = this.openBatch;
+        }
+
+        if (leader) {
+            waitForBatch();
+            synchronized (this.batchLock) {
+                if (this.openBatch == batch) {
+                    this.openBatch = null;
+                }
+            }
+            lookup(batch);
+        }
+
+        return await(result);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#updatePasswordHash(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean updatePasswordHash(String userName, String passwordHash) {
+        synchronized (this.unknownUsers) {
+            this.unknownUsers.remove(userName);
+        }
+        return this.userPasswordDao.updatePasswordHash(userName, passwordHash);
+    }
+
+    /** Discards all remembered unknown users, e.g. after accounts are bulk imported. */
+    public void clearNegativeCache() {
+        synchronized (this.unknownUsers) {
+            this.unknownUsers.clear();
+        }
+    }
+
+    private boolean isKnownUnknown(String userName) {
+        synchronized (this.unknownUsers) {
+            final Long expires = this.unknownUsers.get(userName);
+            if (expires == null) {
+                return false;
+            }
+            if (expires < System.currentTimeMillis()) {
+                this.unknownUsers.remove(userName);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private void waitForBatch() {
+        final long window = this.batchWindowMillis;
+        if (window <= 0 || !(this.userPasswordDao instanceof BulkUserPasswordDao)) {
+            return;
+        }
+        try {
+            Thread.sleep(window);
+        } catch (InterruptedException e) {
+            // Run the batch now
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Looks up every user in the (now closed) batch and completes their pending results. */
+    private void lookup(List<String> batch) {
+        this.lookups.addAndGet(batch.size());
+        try {
+            if (batch.size() > 1 && this.userPasswordDao instanceof BulkUserPasswordDao) {
+                final Map<String, String> passwordHashes;
+                try {
+                    this.queries.incrementAndGet();
+                    passwordHashes =
+                            ((BulkUserPasswordDao) this.userPasswordDao).getPasswordHashes(batch);
+                } catch (RuntimeException e) {
+                    // Look users up one at a time so each gets its own result or exception
+                    this.logger.debug(
+                            "Batch lookup of {} users failed, retrying individually",
+                            batch.size(),
+                            e);
+                    for (final String userName : batch) {
+                        lookupSingle(userName);
+                    }
+                    return;
+                }
+                final TreeMap<String, String> ignoringCase =
+                        new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+                ignoringCase.putAll(passwordHashes);
+                final Set<String> requested = new HashSet<String>(batch);
+                for (final String userName : batch) {
+                    final String passwordHash = passwordHashes.get(userName);
+                    if (passwordHash != null || !ignoringCase.containsKey(userName)) {
+                        complete(userName, passwordHash);
+                    } else if (!requested.contains(ignoringCase.ceilingKey(userName))) {
+                        // Stored in another case, so the database compares names without regard
+                        // to case
+                        complete(userName, ignoringCase.get(userName));
+                    } else {
+                        // The name as stored was looked up too, so only the database can tell
+                        // whether this one matches it
+                        lookupSingle(userName);
+                    }
+                }
+            } else {
+                for (final String userName : batch) {
+                    lookupSingle(userName);
+                }
+            }
+        } finally {
+            for (final String userName : batch) {
+                final CompletableFuture<String> result = this.inFlight.remove(userName);
+                if (result != null && !result.isDone()) {
+                    result.completeExceptionally(
+                            new IllegalStateException("Lookup abandoned for user " + userName));
+                }
+            }
+        }
+    }
+
+    private void lookupSingle(String userName) {
+        final String passwordHash;
+        try {
+            this.queries.incrementAndGet();
+            passwordHash = this.userPasswordDao.getPasswordHash(userName);
+        } catch (RuntimeException e) {
+            this.inFlight.get(userName).completeExceptionally(e);
+            return;
+        }
+        complete(userName, passwordHash);
+    }
+
+    private void complete(String userName, String passwordHash) {
+        if (passwordHash == null && this.negativeCacheTimeToLiveMillis > 0) {
+            synchronized (this.unknownUsers) {
+                this.unknownUsers.put(
+                        userName, System.currentTimeMillis() + this.negativeCacheTimeToLiveMillis);
+            }
+        }
+        this.inFlight.get(userName).complete(passwordHash);
+    }
+
+    private static String await(CompletableFuture<String> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link UserPasswordDao} that can look up the password hashes of several users in one
+ * round-trip.
+ *
+ */
+public interface BulkUserPasswordDao extends UserPasswordDao {
+    /**
+     * @param userNames Names of the users to get the password hashes for.
+     * @return Password hashes keyed by user name; users that do not exist or have no hash are
+     *     absent from the map.
+     * @throws org.springframework.dao.IncorrectResultSizeDataAccessException if any of the users
+     *     has more than one password hash
+     */
+    public Map<String, String> getPasswordHashes(Collection<String> userNames);
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+/**
+ * Verifies cleartext passwords against one family of stored password hashes. Each implementation
+ * owns an algorithm prefix, such as <code>(MD5)</code>, that begins every hash it produces.
+ * Implementations must be thread-safe.
+ *
+ */
+public interface PasswordVerifier {
+    /** @return the algorithm prefix, including parentheses, that begins this verifier's hashes */
+    public String getPrefix();
+
+    /**
+     * @param cleartextPassword Password submitted by the user
+     * @param fullHash Stored password hash, including the algorithm prefix
+     * @return true if the password matches the hash
+     */
+    public boolean verify(String cleartextPassword, String fullHash);
+
+    /**
+     * @param cleartextPassword Password to hash
+     * @return a new salted hash of the password, including the algorithm prefix
+     */
+    public String hash(String cleartextPassword);
+
+    /**
+     * @param fullHash Stored password hash, including the algorithm prefix
+     * @return true if the hash was produced with weaker settings than this verifier is configured
+     *     with and should be regenerated the next time the password is known
+     */
+    public boolean needsRehash(String fullHash);
+}
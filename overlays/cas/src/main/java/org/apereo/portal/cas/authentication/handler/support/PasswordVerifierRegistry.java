@@ -0,0 +1,78 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Resolves the {@link PasswordVerifier} for a stored password hash by its algorithm prefix. Lookups
+ * are lock-free and do not allocate; registration replaces any verifier with the same prefix.
+ *
+ */
+public class PasswordVerifierRegistry {
+    private volatile PasswordVerifier[] verifiers = new PasswordVerifier[0];
+
+    /** @param verifier Verifier to register, replacing any verifier with the same prefix */
+    public synchronized void register(PasswordVerifier verifier) {
+        final String prefix = verifier.getPrefix();
+        if (prefix == null
+                || !prefix.startsWith("(")
+                || prefix.indexOf(')') != prefix.length() - 1) {
+            throw new IllegalArgumentException(
+                    "Password verifier prefix must be of the form (NAME): " + prefix);
+        }
+
+        final PasswordVerifier[] current = this.verifiers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getPrefix().equals(prefix)) {
+                final PasswordVerifier[] updated = current.clone();
+                updated[i] = verifier;
+                this.verifiers = updated;
+                return;
+            }
+        }
+
+        final PasswordVerifier[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = verifier;
+        this.verifiers = updated;
+    }
+
+    /** @param verifiers Verifiers to register */
+    public void registerAll(Collection<? extends PasswordVerifier> verifiers) {
+        for (final PasswordVerifier verifier : verifiers) {
+            register(verifier);
+        }
+    }
+
+    /**
+     * @param fullHash Stored password hash, including the algorithm prefix
+     * @return the verifier registered for the hash's prefix, null if there is none
+     */
+    public PasswordVerifier lookup(String fullHash) {
+        final int prefixLength = fullHash.indexOf(')') + 1;
+        if (prefixLength <= 0) {
+            return null;
+        }
+
+        for (final PasswordVerifier verifier : this.verifiers) {
+            final String prefix = verifier.getPrefix();
+            if (prefix.length() == prefixLength && fullHash.startsWith(prefix)) {
+                return verifier;
+            }
+        }
+        return null;
+    }
+}
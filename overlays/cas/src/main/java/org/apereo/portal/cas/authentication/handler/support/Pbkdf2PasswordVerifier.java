@@ -0,0 +1,202 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifies PBKDF2 password hashes of the form <code>(PBKDF2)iterations:salt:hash</code>, where salt
+ * and hash are Base64. The iteration count travels with each hash, so it can be raised over time;
+ * hashes with fewer iterations than configured report {@link #needsRehash(String)}. Each thread
+ * reuses its own {@link Mac}, so the MAC algorithm is fixed when the verifier is constructed.
+ *
+ */
+public class Pbkdf2PasswordVerifier extends AbstractPasswordVerifier {
+    private static final String DEFAULT_PREFIX = "(PBKDF2)";
+
+    private static final String DEFAULT_MAC_ALGORITHM = "HmacSHA256";
+
+    private final String macAlgorithm;
+    private int iterations = 100000;
+    private int saltSizeBytes = 16;
+    private int hashSizeBytes = 32;
+
+    private final ThreadLocal<Mac> macs =
+            new ThreadLocal<Mac>() {
+                @Override
+                protected Mac initialValue() {
+                    try {
+                        return Mac.getInstance(macAlgorithm);
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(
+                                "MAC algorithm is not available: " + macAlgorithm, e);
+                    }
+                }
+            };
+
+    public Pbkdf2PasswordVerifier() {
+        this(DEFAULT_MAC_ALGORITHM);
+    }
+
+    /**
+     * @param macAlgorithm the JCA MAC used as the PBKDF2 pseudorandom function
+     * @throws IllegalArgumentException if the MAC algorithm is not available
+     */
+    public Pbkdf2PasswordVerifier(String macAlgorithm) {
+        super(DEFAULT_PREFIX);
+        try {
+            Mac.getInstance(macAlgorithm);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException(
+                    "MAC algorithm is not available: " + macAlgorithm, e);
+        }
+        this.macAlgorithm = macAlgorithm;
+    }
+
+    /** @param iterations the iteration count used for new hashes */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /** @param saltSizeBytes the salt size used for new hashes */
+    public void setSaltSizeBytes(int saltSizeBytes) {
+        this.saltSizeBytes = saltSizeBytes;
+    }
+
+    /** @param hashSizeBytes the derived key size used for new hashes */
+    public void setHashSizeBytes(int hashSizeBytes) {
+        this.hashSizeBytes = hashSizeBytes;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#verify(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean verify(String cleartextPassword, String fullHash) {
+        final int iterationsEnd = fullHash.indexOf(':', getPrefix().length());
+        final int saltEnd = iterationsEnd < 0 ? -1 : fullHash.indexOf(':', iterationsEnd + 1);
+        if (saltEnd < 0) {
+            return false;
+        }
+
+        final int hashIterations = parseIterations(fullHash, getPrefix().length(), iterationsEnd);
+        final byte[] salt = decodeBase64(fullHash, iterationsEnd + 1, saltEnd);
+        final byte[] expected = decodeBase64(fullHash, saltEnd + 1, fullHash.length());
+        if (hashIterations < 1 || salt == null || expected == null || expected.length == 0) {
+            return false;
+        }
+
+        final byte[] password = passwordBytes(cleartextPassword);
+        if (password.length == 0) {
+            return false;
+        }
+
+        final byte[] actual = derive(password, salt, hashIterations, expected.length);
+        return constantTimeEquals(expected, 0, actual, actual.length);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#hash(java.lang.String)
+     */
+    @Override
+    public String hash(String cleartextPassword) {
+        final byte[] password = passwordBytes(cleartextPassword);
+        if (password.length == 0) {
+            throw new IllegalArgumentException("Cannot hash an empty password");
+        }
+
+        final byte[] salt = newSalt(this.saltSizeBytes);
+        final byte[] hash = derive(password, salt, this.iterations, this.hashSizeBytes);
+        final Base64.Encoder encoder = Base64.getEncoder();
+        return getPrefix()
+                + this.iterations
+                + ':'
+                + encoder.encodeToString(salt)
+                + ':'
+                + encoder.encodeToString(hash);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#needsRehash(java.lang.String)
+     */
+    @Override
+    public boolean needsRehash(String fullHash) {
+        final int iterationsEnd = fullHash.indexOf(':', getPrefix().length());
+        return iterationsEnd < 0
+                || parseIterations(fullHash, getPrefix().length(), iterationsEnd) < this.iterations;
+    }
+
+    private static int parseIterations(String source, int from, int to) {
+        if (to <= from || to - from > 9) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = from; i < to; i++) {
+            final char c = source.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /** PBKDF2 as defined by RFC 8018, section 5.2. */
+    private byte[] derive(byte[] password, byte[] salt, int iterationCount, int length) {
+        final Mac mac = this.macs.get();
+        try {
+            mac.init(new SecretKeySpec(password, this.macAlgorithm));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to initialize " + this.macAlgorithm, e);
+        }
+
+        final int blockSize = mac.getMacLength();
+        final byte[] result = new byte[length];
+        final byte[] u = new byte[blockSize];
+        final byte[] t = new byte[blockSize];
+
+        for (int block = 1, offset = 0; offset < length; block++, offset += blockSize) {
+            mac.update(salt);
+            mac.update((byte) (block >>> 24));
+            mac.update((byte) (block >>> 16));
+            mac.update((byte) (block >>> 8));
+            mac.update((byte) block);
+            doFinal(mac, u);
+            System.arraycopy(u, 0, t, 0, blockSize);
+
+            for (int i = 1; i < iterationCount; i++) {
+                mac.update(u);
+                doFinal(mac, u);
+                for (int j = 0; j < blockSize; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            System.arraycopy(t, 0, result, offset, Math.min(blockSize, length - offset));
+        }
+        return result;
+    }
+
+    private static void doFinal(Mac mac, byte[] output) {
+        try {
+            mac.doFinal(output, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -14,15 +14,39 @@
  */
 package org.apereo.portal.cas.authentication.handler.support;
 
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.apereo.portal.cas.metrics.Timer;
 import org.jasig.cas.authentication.handler.AuthenticationException;
 import org.jasig.cas.authentication.handler.support.AbstractUsernamePasswordAuthenticationHandler;
 import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
-import org.jasypt.digest.config.SimpleDigesterConfig;
-import org.jasypt.util.password.ConfigurablePasswordEncryptor;
 
 /**
  * Impl of the uPortal MD5 password checking algorithm
  *
+ * <p>Stored hashes are checked by the {@link PasswordVerifier} registered for their algorithm
+ * prefix. The legacy uPortal <code>(MD5)</code> and <code>(SHA256)</code> formats are always
+ * supported; additional verifiers (e.g. {@link Pbkdf2PasswordVerifier}) may be registered with
+ * {@link #setPasswordVerifiers(List)}. When a rehash verifier is configured, a successful login
+ * against any other format, or against a hash weaker than the rehash verifier is configured for,
+ * replaces the stored hash through {@link UserPasswordDao#updatePasswordHash(String, String)}.
+ *
+ * <p>Optionally, database lookups and password digests run on separate bounded {@link
+ * ThrottledExecutor}s. When either is saturated the login fails fast with an {@link
+ * AuthenticationThrottledException} instead of tying up another servlet container thread. Hash
+ * upgrades run on the same executors, and are skipped until a later login when they are
+ * saturated.
+ *
+ * <p>When {@link Metrics} are set, each login is timed by hash algorithm and outcome (success,
+ * cached, bad_password, unknown_user, invalid_hash or error), as are the password hash lookup and
+ * the digest.
+ *
  */
 public class PersonDirAuthenticationHandler extends AbstractUsernamePasswordAuthenticationHandler {
     private static final String MD5_PREFIX = "(MD5)";
@@ -31,32 +55,45 @@ public class PersonDirAuthenticationHandler extends AbstractUsernamePasswordAuth
 
     private UserPasswordDao userPasswordDao;
 
-    private ConfigurablePasswordEncryptor md5Encryptor;
-    private ConfigurablePasswordEncryptor sha256Encryptor;
+    private VerifiedCredentialCache verifiedCredentialCache;
+
+    private final PasswordVerifierRegistry passwordVerifierRegistry =
+            new PasswordVerifierRegistry();
+
+    private PasswordVerifier rehashVerifier;
+
+    private ThrottledExecutor lookupExecutor;
+
+    private ThrottledExecutor verificationExecutor;
+
+    private Metrics metrics;
+
+    private Timer lookupTimer;
+
+    private Timer unknownUserTimer;
+
+    private Timer invalidHashTimer;
+
+    private Timer errorTimer;
+
+    private final ConcurrentMap<String, AlgorithmTimers> algorithmTimers =
+            new ConcurrentHashMap<String, AlgorithmTimers>();
 
     public PersonDirAuthenticationHandler() {
         /*
-         * Create an MD5 password encryptor that uses an 8-byte salt with one
-         * hash iteration.  This encryptor should be  capable of validating
+         * Create an MD5 password verifier that uses an 8-byte salt with one
+         * hash iteration.  This verifier should be  capable of validating
          * legacy uPortal passwords.
          */
-        md5Encryptor = new ConfigurablePasswordEncryptor();
-        SimpleDigesterConfig md5Config = new SimpleDigesterConfig();
-        md5Config.setIterations(1);
-        md5Config.setAlgorithm("MD5");
-        md5Config.setSaltSizeBytes(8);
-        md5Encryptor.setConfig(md5Config);
+        passwordVerifierRegistry.register(
+                new SaltedDigestPasswordVerifier(MD5_PREFIX, "MD5", 1, 8));
 
         /*
-         * Create a stronger SHA-256 password encryptor for setting and
+         * Create a stronger SHA-256 password verifier for setting and
          * validating new passwords.
          */
-        sha256Encryptor = new ConfigurablePasswordEncryptor();
-        SimpleDigesterConfig shaConfig = new SimpleDigesterConfig();
-        shaConfig.setIterations(1000);
-        shaConfig.setAlgorithm("SHA-256");
-        shaConfig.setSaltSizeBytes(8);
-        sha256Encryptor.setConfig(shaConfig);
+        passwordVerifierRegistry.register(
+                new SaltedDigestPasswordVerifier(SHA256_PREFIX, "SHA-256", 1000, 8));
     }
 
     /** @return the userPasswordDao */
@@ -68,37 +105,303 @@ public class PersonDirAuthenticationHandler extends AbstractUsernamePasswordAuth
         this.userPasswordDao = userPasswordDao;
     }
 
+    /** @return the verifiedCredentialCache, null if repeat logins are always fully verified */
+    public VerifiedCredentialCache getVerifiedCredentialCache() {
+        return this.verifiedCredentialCache;
+    }
+    /**
+     * @param verifiedCredentialCache optional cache of recently verified credentials; when set, a
+     *     repeat login with the same password against an unchanged stored hash skips the digest
+     */
+    public void setVerifiedCredentialCache(VerifiedCredentialCache verifiedCredentialCache) {
+        this.verifiedCredentialCache = verifiedCredentialCache;
+    }
+
+    /**
+     * @param passwordVerifiers additional verifiers to register; a verifier replaces any existing
+     *     verifier with the same prefix, including the built-in (MD5) and (SHA256) verifiers
+     */
+    public void setPasswordVerifiers(List<PasswordVerifier> passwordVerifiers) {
+        this.passwordVerifierRegistry.registerAll(passwordVerifiers);
+    }
+
+    /** @return the rehashVerifier, null if stored hashes are never upgraded */
+    public PasswordVerifier getRehashVerifier() {
+        return this.rehashVerifier;
+    }
+    /**
+     * Upgrading hashes is disabled by default because uPortal's own (non-CAS) local
+     * authentication only understands the (MD5) and (SHA256) formats.
+     *
+     * @param rehashVerifier verifier used to upgrade stored hashes after a successful login; it is
+     *     registered as well, so the upgraded hashes can be verified
+     */
+    public void setRehashVerifier(PasswordVerifier rehashVerifier) {
+        this.rehashVerifier = rehashVerifier;
+        if (rehashVerifier != null) {
+            this.passwordVerifierRegistry.register(rehashVerifier);
+        }
+    }
+
+    /** @return the lookupExecutor, null if lookups run on the calling thread */
+    public ThrottledExecutor getLookupExecutor() {
+        return this.lookupExecutor;
+    }
+    /** @param lookupExecutor optional executor for password hash lookups (blocking I/O) */
+    public void setLookupExecutor(ThrottledExecutor lookupExecutor) {
+        this.lookupExecutor = lookupExecutor;
+    }
+
+    /** @return the verificationExecutor, null if digests run on the calling thread */
+    public ThrottledExecutor getVerificationExecutor() {
+        return this.verificationExecutor;
+    }
+    /**
+     * @param verificationExecutor optional executor for password digests (CPU bound), usually
+     *     sized to the number of cores
+     */
+    public void setVerificationExecutor(ThrottledExecutor verificationExecutor) {
+        this.verificationExecutor = verificationExecutor;
+    }
+
+    /** @return the metrics, null if nothing is recorded */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+    /** @param metrics optional registry of the login timers */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.algorithmTimers.clear();
+        if (metrics == null) {
+            this.lookupTimer = null;
+            this.unknownUserTimer = null;
+            this.invalidHashTimer = null;
+            this.errorTimer = null;
+            return;
+        }
+        this.lookupTimer =
+                metrics.timer(
+                        "cas_password_lookup_seconds",
+                        "Time to look up password hashes, "
+                                + "including any wait for the lookup executor");
+        this.unknownUserTimer = loginTimer(metrics, "none", "unknown_user");
+        this.invalidHashTimer = loginTimer(metrics, "unknown", "invalid_hash");
+        this.errorTimer = loginTimer(metrics, "none", "error");
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.cas.authentication.handler.support.AbstractUsernamePasswordAuthenticationHandler#authenticateUsernamePasswordInternal(org.jasig.cas.authentication.principal.UsernamePasswordCredentials)
      */
     @Override
     protected boolean authenticateUsernamePasswordInternal(UsernamePasswordCredentials credentials)
             throws AuthenticationException {
-        final String username = credentials.getUsername();
-        final String cleartextPassword = credentials.getPassword();
+        final long started = System.nanoTime();
+        // Whichever timer applies to the outcome; null when nothing is recorded
+        Timer outcomeTimer = this.errorTimer;
+        try {
+            final String username = credentials.getUsername();
+            final String cleartextPassword = credentials.getPassword();
+
+            final String expectedFullHash =
+                    execute(
+                            this.lookupExecutor,
+                            new Callable<String>() {
+                                @Override
+                                public String call() {
+                                    return userPasswordDao.getPasswordHash(username);
+                                }
+                            });
+            if (this.lookupTimer != null) {
+                this.lookupTimer.recordSince(started);
+            }
+
+            if (expectedFullHash == null) {
+                outcomeTimer = this.unknownUserTimer;
+                return false;
+            }
+
+            final PasswordVerifier verifier =
+                    this.passwordVerifierRegistry.lookup(expectedFullHash);
+            if (verifier == null) {
+                this.log.error(
+                        "Existing password hash for user '"
+                                + username
+                                + "' is not a valid hash. It does not start with a supported algorithm prefix");
+                outcomeTimer = this.invalidHashTimer;
+                return false;
+            }
+            final AlgorithmTimers timers = algorithmTimers(verifier);
+
+            if (this.verifiedCredentialCache != null
+                    && this.verifiedCredentialCache.isVerified(
+                            username, cleartextPassword, expectedFullHash)) {
+                outcomeTimer = timers != null ? timers.cached : null;
+                return true;
+            }
+
+            final long verifyStarted = System.nanoTime();
+            final boolean verified =
+                    execute(
+                            this.verificationExecutor,
+                            new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() {
+                                    return verifier.verify(cleartextPassword, expectedFullHash);
+                                }
+                            });
+            if (timers != null) {
+                timers.verify.recordSince(verifyStarted);
+            }
+            if (!verified) {
+                outcomeTimer = timers != null ? timers.badPassword : null;
+                return false;
+            }
+
+            final String verifiedFullHash =
+                    rehashIfNecessary(username, cleartextPassword, expectedFullHash, verifier);
+            if (this.verifiedCredentialCache != null) {
+                this.verifiedCredentialCache.verified(
+                        username, cleartextPassword, verifiedFullHash);
+            }
+            outcomeTimer = timers != null ? timers.success : null;
+            return true;
+        } finally {
+            if (outcomeTimer != null) {
+                outcomeTimer.recordSince(started);
+            }
+        }
+    }
 
-        final String expectedFullHash = this.userPasswordDao.getPasswordHash(username);
+    /** @return the timers for the verifier's algorithm, or null if nothing is recorded */
+    private AlgorithmTimers algorithmTimers(PasswordVerifier verifier) {
+        final Metrics metrics = this.metrics;
+        if (metrics == null) {
+            return null;
+        }
+        AlgorithmTimers timers = this.algorithmTimers.get(verifier.getPrefix());
+        if (timers == null) {
+            // The registry returns the same timers to racing threads
+            timers = new AlgorithmTimers(metrics, verifier.getPrefix());
+            this.algorithmTimers.put(verifier.getPrefix(), timers);
+        }
+        return timers;
+    }
 
-        if (expectedFullHash == null) {
-            return false;
+    private static Timer loginTimer(Metrics metrics, String algorithm, String outcome) {
+        return metrics.timer(
+                "cas_authentication_seconds",
+                "Time to authenticate a username and password, by hash algorithm and outcome",
+                "algorithm",
+                algorithm,
+                "outcome",
+                outcome);
+    }
+
+    /**
+     * Runs the task on the executor, if there is one, or else on the calling thread.
+     *
+     * @throws AuthenticationThrottledException if the executor is saturated
+     */
+    private <T> T execute(ThrottledExecutor executor, Callable<T> task)
+            throws AuthenticationThrottledException {
+        try {
+            return executor != null ? executor.call(task) : task.call();
+        } catch (RejectedExecutionException | TimeoutException e) {
+            throw new AuthenticationThrottledException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationThrottledException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        } catch (Exception e) {
+            throw propagate(e);
         }
+    }
 
-        if (expectedFullHash.startsWith(MD5_PREFIX)) {
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
 
-            String hashWithoutAlgorithmPrefix = expectedFullHash.substring(5);
-            return md5Encryptor.checkPassword(cleartextPassword, hashWithoutAlgorithmPrefix);
+    /** @return the hash now stored for the user */
+    private String rehashIfNecessary(
+            final String username,
+            final String cleartextPassword,
+            String expectedFullHash,
+            PasswordVerifier verifier) {
+        final PasswordVerifier target = this.rehashVerifier;
+        if (target == null
+                || (target.getPrefix().equals(verifier.getPrefix())
+                        && !target.needsRehash(expectedFullHash))) {
+            return expectedFullHash;
+        }
 
-        } else if (expectedFullHash.startsWith(SHA256_PREFIX)) {
+        try {
+            // The new hash is the costliest step of the login, so it is throttled like the others
+            final String upgradedFullHash =
+                    execute(
+                            this.verificationExecutor,
+                            new Callable<String>() {
+                                @Override
+                                public String call() {
+                                    return target.hash(cleartextPassword);
+                                }
+                            });
+            final boolean updated =
+                    execute(
+                            this.lookupExecutor,
+                            new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() {
+                                    return userPasswordDao.updatePasswordHash(
+                                            username, upgradedFullHash);
+                                }
+                            });
+            if (updated) {
+                this.log.info(
+                        "Upgraded password hash for user '"
+                                + username
+                                + "' from "
+                                + verifier.getPrefix()
+                                + " to "
+                                + target.getPrefix());
+                return upgradedFullHash;
+            }
+        } catch (AuthenticationThrottledException e) {
+            // The login already succeeded; try again next time
+            this.log.debug("Skipped upgrading password hash for user '" + username + "'", e);
+        } catch (RuntimeException e) {
+            // The login already succeeded; try again next time
+            this.log.warn("Failed to upgrade password hash for user '" + username + "'", e);
+        }
+        return expectedFullHash;
+    }
 
-            String hashWithoutAlgorithmPrefix = expectedFullHash.substring(8);
-            return sha256Encryptor.checkPassword(cleartextPassword, hashWithoutAlgorithmPrefix);
+    /** The timers of one hash algorithm, looked up once so recording does not allocate */
+    private static final class AlgorithmTimers {
+        final Timer success;
+        final Timer cached;
+        final Timer badPassword;
+        final Timer verify;
 
-        } else {
-            this.log.error(
-                    "Existing password hash for user '"
-                            + username
-                            + "' is not a valid hash. It does not start with a supported algorithm prefix");
-            return false;
+        AlgorithmTimers(Metrics metrics, String prefix) {
+            // e.g. (SHA256) -> SHA256
+            final String algorithm = prefix.replaceAll("^\\(|\\)$", "");
+            this.success = loginTimer(metrics, algorithm, "success");
+            this.cached = loginTimer(metrics, algorithm, "cached");
+            this.badPassword = loginTimer(metrics, algorithm, "bad_password");
+            this.verify =
+                    metrics.timer(
+                            "cas_password_verify_seconds",
+                            "Time to verify passwords against their hashes, "
+                                    + "including any wait for the verification executor",
+                            "algorithm",
+                            algorithm);
         }
     }
 }
@@ -14,22 +14,47 @@
  */
 package org.apereo.portal.cas.authentication.handler.support;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import javax.sql.DataSource;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.apereo.portal.cas.metrics.Timer;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
-;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
 
 /**
  * Retrieves password hashes from the uPortal UP_PERSON_DIR table
  *
+ * <p>When {@link Metrics} are set, each kind of query is timed, as is the wait for a connection
+ * from the dataSource (i.e. the connection pool).
+ *
  */
-public class PortalPersonDirUserPasswordDao implements UserPasswordDao {
+public class PortalPersonDirUserPasswordDao implements BulkUserPasswordDao {
     private static final String PERSON_DIR_QUERY =
             "SELECT ENCRPTD_PSWD FROM UP_PERSON_DIR WHERE USER_NAME = ?";
 
+    private static final String PERSON_DIR_BULK_QUERY =
+            "SELECT USER_NAME, ENCRPTD_PSWD FROM UP_PERSON_DIR WHERE USER_NAME IN ";
+
+    private static final String PERSON_DIR_UPDATE =
+            "UPDATE UP_PERSON_DIR SET ENCRPTD_PSWD = ? WHERE USER_NAME = ?";
+
     private DataSource dataSource;
     private JdbcTemplate jdbcTemplate;
 
+    private Metrics metrics;
+    private Timer queryTimer;
+    private Timer bulkQueryTimer;
+    private Timer updateTimer;
+    private Timer connectionWaitTimer;
+
     /** @return the dataSource */
     public DataSource getDataSource() {
         return dataSource;
@@ -38,17 +63,131 @@ public class PortalPersonDirUserPasswordDao implements UserPasswordDao {
     /** @param dataSource the dataSource to set */
     public void setDataSource(DataSource dataSource) {
         this.dataSource = dataSource;
-        this.jdbcTemplate = new JdbcTemplate(this.dataSource);
+        this.jdbcTemplate = new JdbcTemplate(new ConnectionTimingDataSource(this.dataSource));
+    }
+
+    /** @return the metrics, null if nothing is recorded */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** @param metrics optional registry of the query and connection wait timers */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.queryTimer = metrics != null ? queryTimer(metrics, "single") : null;
+        this.bulkQueryTimer = metrics != null ? queryTimer(metrics, "bulk") : null;
+        this.updateTimer = metrics != null ? queryTimer(metrics, "update") : null;
+        this.connectionWaitTimer =
+                metrics != null
+                        ? metrics.timer(
+                                "cas_password_dao_connection_wait_seconds",
+                                "Time to get a connection from the dataSource, "
+                                        + "i.e. to wait for the connection pool")
+                        : null;
     }
 
     /* (non-Javadoc)
      * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#getPasswordHash(java.lang.String)
      */
     public String getPasswordHash(String userName) {
+        final long started = System.nanoTime();
         try {
             return this.jdbcTemplate.queryForObject(PERSON_DIR_QUERY, String.class, userName);
         } catch (EmptyResultDataAccessException e) {
             return null;
+        } finally {
+            record(this.queryTimer, started);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.BulkUserPasswordDao#getPasswordHashes(java.util.Collection)
+     */
+    public Map<String, String> getPasswordHashes(Collection<String> userNames) {
+        final Map<String, String> passwordHashes = new HashMap<String, String>();
+        if (userNames.isEmpty()) {
+            return passwordHashes;
+        }
+
+        final StringBuilder query = new StringBuilder(PERSON_DIR_BULK_QUERY).append('(');
+        for (int i = 0; i < userNames.size(); i++) {
+            query.append(i == 0 ? "?" : ", ?");
+        }
+        query.append(')');
+
+        final long started = System.nanoTime();
+        try {
+            this.jdbcTemplate.query(
+                    query.toString(),
+                    new RowCallbackHandler() {
+                        @Override
+                        public void processRow(ResultSet rs) throws SQLException {
+                            final String userName = rs.getString(1);
+                            if (passwordHashes.put(userName, rs.getString(2)) != null) {
+                                throw new IncorrectResultSizeDataAccessException(
+                                        "More than one password hash for user '" + userName + "'",
+                                        1,
+                                        2);
+                            }
+                        }
+                    },
+                    userNames.toArray());
+        } finally {
+            record(this.bulkQueryTimer, started);
+        }
+        return passwordHashes;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.UserPasswordDao#updatePasswordHash(java.lang.String, java.lang.String)
+     */
+    public boolean updatePasswordHash(String userName, String passwordHash) {
+        final long started = System.nanoTime();
+        try {
+            return this.jdbcTemplate.update(PERSON_DIR_UPDATE, passwordHash, userName) > 0;
+        } finally {
+            record(this.updateTimer, started);
+        }
+    }
+
+    private static void record(Timer timer, long started) {
+        if (timer != null) {
+            timer.recordSince(started);
+        }
+    }
+
+    private static Timer queryTimer(Metrics metrics, String query) {
+        return metrics.timer(
+                "cas_password_dao_query_seconds",
+                "Time to run UP_PERSON_DIR queries, including the wait for a connection",
+                "query",
+                query);
+    }
+
+    /** Times the wait for connections, which is mostly the wait for the connection pool */
+    private class ConnectionTimingDataSource extends DelegatingDataSource {
+        ConnectionTimingDataSource(DataSource targetDataSource) {
+            super(targetDataSource);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            final long started = System.nanoTime();
+            try {
+                return super.getConnection();
+            } finally {
+                record(connectionWaitTimer, started);
+            }
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            final long started = System.nanoTime();
+            try {
+                return super.getConnection(username, password);
+            } finally {
+                record(connectionWaitTimer, started);
+            }
         }
     }
 }
@@ -0,0 +1,129 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Verifies iterated, salted message digests in the format written by uPortal and jasypt's
+ * <code>ConfigurablePasswordEncryptor</code>: Base64 of the plain salt followed by the digest.
+ * Each thread reuses its own {@link MessageDigest}, so a check allocates only the decoded hash and
+ * the password bytes.
+ *
+ */
+public class SaltedDigestPasswordVerifier extends AbstractPasswordVerifier {
+    private String algorithm;
+    private int iterations = 1;
+    private int saltSizeBytes = 8;
+
+    private final ThreadLocal<MessageDigest> digests =
+            new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance(algorithm);
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(
+                                "Message digest algorithm is not available: " + algorithm, e);
+                    }
+                }
+            };
+
+    public SaltedDigestPasswordVerifier() {
+        super(null);
+    }
+
+    public SaltedDigestPasswordVerifier(
+            String prefix, String algorithm, int iterations, int saltSizeBytes) {
+        super(prefix);
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+        this.saltSizeBytes = saltSizeBytes;
+    }
+
+    /** @param algorithm the JCA message digest algorithm, e.g. SHA-256 */
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /** @param iterations the number of times the digest is applied */
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /** @param saltSizeBytes the size of the salt stored ahead of the digest */
+    public void setSaltSizeBytes(int saltSizeBytes) {
+        this.saltSizeBytes = saltSizeBytes;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#verify(java.lang.String, java.lang.String)
+     */
+    @Override
+    public boolean verify(String cleartextPassword, String fullHash) {
+        final byte[] saltAndDigest =
+                decodeBase64(fullHash, getPrefix().length(), fullHash.length());
+        if (saltAndDigest == null || saltAndDigest.length <= this.saltSizeBytes) {
+            return false;
+        }
+
+        final byte[] digest = digest(passwordBytes(cleartextPassword), saltAndDigest);
+        return constantTimeEquals(saltAndDigest, this.saltSizeBytes, digest, digest.length);
+    }
+
+    /* (non-Javadoc)
+     * @see org.apereo.portal.cas.authentication.handler.support.PasswordVerifier#hash(java.lang.String)
+     */
+    @Override
+    public String hash(String cleartextPassword) {
+        final byte[] salt = newSalt(this.saltSizeBytes);
+        final byte[] digest = digest(passwordBytes(cleartextPassword), salt);
+
+        final byte[] saltAndDigest = new byte[salt.length + digest.length];
+        System.arraycopy(salt, 0, saltAndDigest, 0, salt.length);
+        System.arraycopy(digest, 0, saltAndDigest, salt.length, digest.length);
+        return getPrefix() + Base64.getEncoder().encodeToString(saltAndDigest);
+    }
+
+    /**
+     * The iteration count is not recorded in this hash format, so hashes are never considered
+     * stale; change the prefix when changing the configuration.
+     */
+    @Override
+    public boolean needsRehash(String fullHash) {
+        return false;
+    }
+
+    /** Digests the salt (the first saltSizeBytes of saltSource) and password. */
+    private byte[] digest(byte[] password, byte[] saltSource) {
+        final MessageDigest md = this.digests.get();
+        md.reset();
+        md.update(saltSource, 0, this.saltSizeBytes);
+        md.update(password);
+        final byte[] digest = md.digest();
+        for (int i = 1; i < this.iterations; i++) {
+            md.update(digest);
+            try {
+                md.digest(digest, 0, digest.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return digest;
+    }
+}
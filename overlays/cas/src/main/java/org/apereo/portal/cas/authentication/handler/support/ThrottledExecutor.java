@@ -0,0 +1,359 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+import org.apereo.portal.cas.metrics.Counter;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.apereo.portal.cas.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed-size executor with a bounded wait queue that rejects work immediately once the queue is
+ * full, rather than letting callers pile up. Used by {@link PersonDirAuthenticationHandler} to cap
+ * the number of concurrent password digests and database lookups so that a login storm cannot
+ * consume every servlet container thread.
+ *
+ * <p>Records queue depth, the time tasks wait to start, and the time they take to run, so the pool
+ * and queue can be sized from production measurements. When <code>metrics</code> is set, these are
+ * also registered there, labelled with the executor's name, as the gauges
+ * <code>cas_executor_queue_depth</code> and <code>cas_executor_active_threads</code>, the timers
+ * <code>cas_executor_wait_seconds</code> and <code>cas_executor_service_seconds</code>, and the
+ * counters <code>cas_executor_rejected_total</code> and <code>cas_executor_timed_out_total</code>.
+ * When <code>virtualThreads</code> is set and the JVM supports them (Java 21+), worker threads are
+ * virtual threads; this suits blocking I/O such as JDBC lookups.
+ *
+ */
+public class ThrottledExecutor {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private String name = "authentication";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = -1;
+    private long timeoutMillis = TimeUnit.SECONDS.toMillis(10);
+    private boolean virtualThreads = false;
+    private Metrics metrics;
+
+    private volatile ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalServiceNanos = new AtomicLong();
+    private final AtomicLong maxServiceNanos = new AtomicLong();
+
+    private volatile Timer waitTimer;
+    private volatile Timer serviceTimer;
+    private volatile Counter rejectedCounter;
+    private volatile Counter timedOutCounter;
+
+    /** @param name prefix for worker thread names */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /** @param threads the number of tasks that may run at once; defaults to the number of cores */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /** @param queueCapacity the number of tasks that may wait to run; defaults to 4 x threads */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /** @param timeoutMillis how long a caller waits for a queued task before giving up */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** @param virtualThreads whether to run tasks on virtual threads when the JVM supports them */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /** @param metrics optional registry of the executor's gauges, timers and counters */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Starts the worker pool; called automatically by the first task if not called explicitly. */
+    public synchronized void init() {
+        if (this.executor != null) {
+            return;
+        }
+        if (this.metrics != null) {
+            registerMeters(this.metrics);
+        }
+
+        final int capacity = this.queueCapacity >= 0 ? this.queueCapacity : this.threads * 4;
+        final ThreadPoolExecutor pool =
+                new ThreadPoolExecutor(
+                        this.threads,
+                        this.threads,
+                        0L,
+                        TimeUnit.MILLISECONDS,
+                        capacity > 0
+                                ? new ArrayBlockingQueue<Runnable>(capacity)
+                                : new SynchronousQueue<Runnable>(),
+                        createThreadFactory(),
+                        new ThreadPoolExecutor.AbortPolicy());
+        pool.prestartAllCoreThreads();
+        this.executor = pool;
+    }
+
+    /** Stops accepting work and interrupts running tasks. */
+    public synchronized void shutdown() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Runs the task on a worker thread and waits for its result.
+     *
+     * @throws RejectedExecutionException if the wait queue is full
+     * @throws TimeoutException if the task did not complete within timeoutMillis
+     * @throws ExecutionException if the task threw an exception
+     */
+    public <T> T call(final Callable<T> task)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        ThreadPoolExecutor pool = this.executor;
+        if (pool == null) {
+            init();
+            pool = this.executor;
+        }
+
+        final long enqueued = System.nanoTime();
+        final Future<T> future;
+        try {
+            future =
+                    pool.submit(
+                            new Callable<T>() {
+                                @Override
+                                public T call() throws Exception {
+                                    final long started = System.nanoTime();
+                                    record(totalWaitNanos, maxWaitNanos, started - enqueued);
+                                    final Timer waitTimer = ThrottledExecutor.this.waitTimer;
+                                    if (waitTimer != null) {
+                                        waitTimer.record(started - enqueued);
+                                    }
+                                    try {
+                                        return task.call();
+                                    } finally {
+                                        final long serviceNanos = System.nanoTime() - started;
+                                        record(totalServiceNanos, maxServiceNanos, serviceNanos);
+                                        final Timer serviceTimer =
+                                                ThrottledExecutor.this.serviceTimer;
+                                        if (serviceTimer != null) {
+                                            serviceTimer.record(serviceNanos);
+                                        }
+                                        completed.incrementAndGet();
+                                    }
+                                }
+                            });
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            final Counter rejectedCounter = this.rejectedCounter;
+            if (rejectedCounter != null) {
+                rejectedCounter.increment();
+            }
+            this.logger.debug(
+                    "Rejected {} task; {} tasks already queued", this.name, getQueueDepth());
+            throw e;
+        }
+        this.submitted.incrementAndGet();
+
+        try {
+            return future.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            this.timedOut.incrementAndGet();
+            final Counter timedOutCounter = this.timedOutCounter;
+            if (timedOutCounter != null) {
+                timedOutCounter.increment();
+            }
+            future.cancel(true);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /** @return the number of tasks waiting to start */
+    public int getQueueDepth() {
+        final ThreadPoolExecutor pool = this.executor;
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /** @return the number of tasks currently running */
+    public int getActiveCount() {
+        final ThreadPoolExecutor pool = this.executor;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /** @return the number of tasks accepted */
+    public long getSubmittedCount() {
+        return this.submitted.get();
+    }
+
+    /** @return the number of tasks rejected because the queue was full */
+    public long getRejectedCount() {
+        return this.rejected.get();
+    }
+
+    /** @return the number of callers that gave up waiting for a result */
+    public long getTimedOutCount() {
+        return this.timedOut.get();
+    }
+
+    /** @return the number of tasks that finished running */
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    /** @return the mean time, in milliseconds, tasks waited in the queue */
+    public double getMeanWaitMillis() {
+        return mean(this.totalWaitNanos.get());
+    }
+
+    /** @return the longest time, in milliseconds, a task waited in the queue */
+    public double getMaxWaitMillis() {
+        return this.maxWaitNanos.get() / 1e6;
+    }
+
+    /** @return the mean time, in milliseconds, tasks took to run */
+    public double getMeanServiceMillis() {
+        return mean(this.totalServiceNanos.get());
+    }
+
+    /** @return the longest time, in milliseconds, a task took to run */
+    public double getMaxServiceMillis() {
+        return this.maxServiceNanos.get() / 1e6;
+    }
+
+    private double mean(long totalNanos) {
+        final long count = this.completed.get();
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    private void registerMeters(Metrics metrics) {
+        metrics.gauge(
+                "cas_executor_queue_depth",
+                "Tasks waiting to start",
+                new DoubleSupplier() {
+                    @Override
+                    public double getAsDouble() {
+                        return getQueueDepth();
+                    }
+                },
+                "executor",
+                this.name);
+        metrics.gauge(
+                "cas_executor_active_threads",
+                "Tasks running",
+                new DoubleSupplier() {
+                    @Override
+                    public double getAsDouble() {
+                        return getActiveCount();
+                    }
+                },
+                "executor",
+                this.name);
+        this.waitTimer =
+                metrics.timer(
+                        "cas_executor_wait_seconds",
+                        "Time tasks waited in the queue",
+                        "executor",
+                        this.name);
+        this.serviceTimer =
+                metrics.timer(
+                        "cas_executor_service_seconds",
+                        "Time tasks took to run",
+                        "executor",
+                        this.name);
+        this.rejectedCounter =
+                metrics.counter(
+                        "cas_executor_rejected_total",
+                        "Tasks rejected because the queue was full",
+                        "executor",
+                        this.name);
+        this.timedOutCounter =
+                metrics.counter(
+                        "cas_executor_timed_out_total",
+                        "Callers that gave up waiting for a result",
+                        "executor",
+                        this.name);
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos) {
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    private ThreadFactory createThreadFactory() {
+        if (this.virtualThreads) {
+            try {
+                // Thread.ofVirtual().name(name + "-", 0).factory(), when running on Java 21+
+                final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                final Method nameMethod = builderType.getMethod("name", String.class, long.class);
+                final Object namedBuilder = nameMethod.invoke(builder, this.name + "-", 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(namedBuilder);
+            } catch (ReflectiveOperationException e) {
+                this.logger.info(
+                        "Virtual threads are not available; using platform threads for {}",
+                        this.name);
+            }
+        }
+
+        final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = defaultFactory.newThread(r);
+                thread.setName(name + "-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -23,4 +23,14 @@ public interface UserPasswordDao {
      *     does not exist.
      */
     public String getPasswordHash(String userName);
+
+    /**
+     * Replaces the stored password hash for an existing user, for example to upgrade a legacy hash
+     * after a successful login.
+     *
+     * @param userName Name of the user to update the password hash for.
+     * @param passwordHash New password hash, including the algorithm prefix.
+     * @return true if the user existed and the hash was updated
+     */
+    public boolean updatePasswordHash(String userName, String passwordHash);
 }
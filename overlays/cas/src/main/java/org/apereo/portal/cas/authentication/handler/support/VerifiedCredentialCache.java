@@ -0,0 +1,218 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Size and time bounded cache of recently verified credentials. Allows {@link
+ * PersonDirAuthenticationHandler} to confirm a repeat login without re-running an expensive
+ * password digest.
+ *
+ * <p>Entries are keyed on the user name and hold an HMAC of the submitted password (computed with
+ * a random key that never leaves this JVM) together with the stored password hash the password was
+ * verified against. A lookup only succeeds when both the HMAC and the stored hash match, so
+ * changing a user's password in the database invalidates the entry. Cleartext passwords are never
+ * retained.
+ *
+ */
+public class VerifiedCredentialCache {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final int HMAC_KEY_SIZE_BYTES = 32;
+
+    private final SecretKeySpec hmacKey;
+
+    private final ThreadLocal<Mac> macs =
+            new ThreadLocal<Mac>() {
+                @Override
+                protected Mac initialValue() {
+                    try {
+                        final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                        mac.init(hmacKey);
+                        return mac;
+                    } catch (GeneralSecurityException e) {
+                        throw new IllegalStateException(
+                                "Unable to initialize " + HMAC_ALGORITHM + " for credential cache",
+                                e);
+                    }
+                }
+            };
+
+    private final Map<String, CachedCredential> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private volatile int maxSize = 10000;
+    private volatile long timeToLiveMillis = TimeUnit.MINUTES.toMillis(5);
+
+    public VerifiedCredentialCache() {
+        final byte[] keyBytes = new byte[HMAC_KEY_SIZE_BYTES];
+        new SecureRandom().nextBytes(keyBytes);
+        this.hmacKey = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+
+        this.entries =
+                new LinkedHashMap<String, CachedCredential>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(
+                            Map.Entry<String, CachedCredential> eldest) {
+                        if (size() > maxSize) {
+                            evictions.incrementAndGet();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+    }
+
+    /** @param maxSize the maximum number of users whose credentials are retained */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /** @param timeToLiveSeconds how long a verified credential may be reused */
+    public void setTimeToLiveSeconds(long timeToLiveSeconds) {
+        if (timeToLiveSeconds < 1) {
+            throw new IllegalArgumentException("timeToLiveSeconds must be at least 1");
+        }
+        this.timeToLiveMillis = TimeUnit.SECONDS.toMillis(timeToLiveSeconds);
+    }
+
+    /**
+     * @param username User that is attempting to authenticate
+     * @param cleartextPassword Password submitted by the user
+     * @param storedHash Full password hash currently stored for the user
+     * @return true if this exact password was recently verified against this exact stored hash
+     */
+    public boolean isVerified(String username, String cleartextPassword, String storedHash) {
+        final byte[] hmac = hmac(username, cleartextPassword);
+        final long now = System.currentTimeMillis();
+
+        synchronized (this.entries) {
+            final CachedCredential credential = this.entries.get(username);
+            if (credential == null) {
+                this.misses.incrementAndGet();
+                return false;
+            }
+            if (credential.expires < now || !credential.storedHash.equals(storedHash)) {
+                // Expired, or the stored hash changed since this credential was verified
+                this.entries.remove(username);
+                this.evictions.incrementAndGet();
+                this.misses.incrementAndGet();
+                return false;
+            }
+            if (!MessageDigest.isEqual(credential.hmac, hmac)) {
+                this.misses.incrementAndGet();
+                return false;
+            }
+        }
+
+        this.hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Records that the password was successfully verified against the stored hash.
+     *
+     * @param username User that authenticated
+     * @param cleartextPassword Password submitted by the user
+     * @param storedHash Full password hash the password was verified against
+     */
+    public void verified(String username, String cleartextPassword, String storedHash) {
+        final CachedCredential credential =
+                new CachedCredential(
+                        hmac(username, cleartextPassword),
+                        storedHash,
+                        System.currentTimeMillis() + this.timeToLiveMillis);
+
+        synchronized (this.entries) {
+            this.entries.put(username, credential);
+        }
+    }
+
+    /** @param username User whose cached credential should be discarded */
+    public void invalidate(String username) {
+        synchronized (this.entries) {
+            if (this.entries.remove(username) != null) {
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Discards every cached credential. */
+    public void clear() {
+        synchronized (this.entries) {
+            this.evictions.addAndGet(this.entries.size());
+            this.entries.clear();
+        }
+    }
+
+    /** @return the number of users currently cached */
+    public int getSize() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /** @return the number of logins confirmed from the cache */
+    public long getHitCount() {
+        return this.hits.get();
+    }
+
+    /** @return the number of logins that required a full password check */
+    public long getMissCount() {
+        return this.misses.get();
+    }
+
+    /** @return the number of entries removed due to size, expiry, hash change or invalidation */
+    public long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    private byte[] hmac(String username, String cleartextPassword) {
+        final Mac mac = this.macs.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(cleartextPassword.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class CachedCredential {
+        private final byte[] hmac;
+        private final String storedHash;
+        private final long expires;
+
+        private CachedCredential(byte[] hmac, String storedHash, long expires) {
+            this.hmac = hmac;
+            this.storedHash = storedHash;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Reports a value read from its owner, such as the depth of a queue, each time it is collected.
+ *
+ */
+public final class Gauge extends Meter implements GaugeMBean {
+    private final DoubleSupplier value;
+
+    Gauge(String name, String help, DoubleSupplier value, String[] labels) {
+        super(name, help, labels);
+        this.value = value;
+    }
+
+    @Override
+    public double getValue() {
+        return this.value.getAsDouble();
+    }
+
+    @Override
+    String getType() {
+        return "gauge";
+    }
+
+    @Override
+    void writeSamples(Writer writer) throws IOException {
+        writeSample(writer, "", null, null, Double.toString(getValue()));
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A named measurement with a fixed set of labels, created by {@link Metrics}.
+ *
+ */
+public abstract class Meter {
+    private final String name;
+    private final String help;
+    private final String[] labels;
+
+    /** @param labels label names and values, alternately */
+    Meter(String name, String help, String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs: " + name);
+        }
+        this.name = name;
+        this.help = help;
+        this.labels = labels.clone();
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public String getHelp() {
+        return this.help;
+    }
+
+    /** @return label names and values, alternately */
+    String[] getLabels() {
+        return this.labels.clone();
+    }
+
+    /** @return the Prometheus metric type */
+    abstract String getType();
+
+    /** Writes the samples of this meter in the Prometheus text format. */
+    abstract void writeSamples(Writer writer) throws IOException;
+
+    /** Writes a sample, with the meter's labels plus the extra label, if any. */
+    void writeSample(
+            Writer writer, String suffix, String extraLabel, String extraValue, String value)
+            throws IOException {
+        writer.write(this.name);
+        writer.write(suffix);
+        if (this.labels.length > 0 || extraLabel != null) {
+            writer.write('{');
+            for (int i = 0; i < this.labels.length; i += 2) {
+                writeLabel(writer, i == 0, this.labels[i], this.labels[i + 1]);
+            }
+            if (extraLabel != null) {
+                writeLabel(writer, this.labels.length == 0, extraLabel, extraValue);
+            }
+            writer.write('}');
+        }
+        writer.write(' ');
+        writer.write(value);
+        writer.write('\n');
+    }
+
+    private static void writeLabel(Writer writer, boolean first, String name, String value)
+            throws IOException {
+        if (!first) {
+            writer.write(',');
+        }
+        writer.write(name);
+        writer.write("=\"");
+        writer.write(
+                value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+        writer.write('"');
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the {@link Timer}s, {@link Counter}s and {@link Gauge}s of the login path, exposed
+ * as MBeans in the platform MBean server (under the <code>org.apereo.portal.cas</code> domain by
+ * default) and in the Prometheus text format by {@link PrometheusMetricsServlet}.
+ *
+ * <p>Components look up their meters once, when they are configured, and record to them directly,
+ * so recording never touches the registry.
+ *
+ */
+public class Metrics {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentNavigableMap<String, Meter> meters =
+            new ConcurrentSkipListMap<String, Meter>();
+
+    private String jmxDomain = "org.apereo.portal.cas";
+
+    private volatile MBeanServer mbeanServer;
+
+    /** @param jmxDomain the domain of the MBeans' object names */
+    public void setJmxDomain(String jmxDomain) {
+        this.jmxDomain = jmxDomain;
+    }
+
+    /** Registers the meters, and any created later, as MBeans. */
+    public synchronized void init() {
+        this.mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        for (Meter meter : this.meters.values()) {
+            registerMBean(meter);
+        }
+    }
+
+    /** Unregisters the MBeans. */
+    public synchronized void shutdown() {
+        final MBeanServer server = this.mbeanServer;
+        this.mbeanServer = null;
+        if (server == null) {
+            return;
+        }
+        for (Meter meter : this.meters.values()) {
+            try {
+                final ObjectName objectName = objectNameOf(meter);
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                this.logger.warn("Failed to unregister MBean for {}", meter.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * @param labels label names and values, alternately
+     * @return the timer with the name and labels, created if necessary
+     */
+    public Timer timer(String name, String help, String... labels) {
+        final String key = keyOf(name, labels);
+        final Meter meter = this.meters.get(key);
+        if (meter instanceof Timer) {
+            return (Timer) meter;
+        }
+        return (Timer) register(key, new Timer(name, help, labels));
+    }
+
+    /**
+     * @param labels label names and values, alternately
+     * @return the counter with the name and labels, created if necessary
+     */
+    public Counter counter(String name, String help, String... labels) {
+        final String key = keyOf(name, labels);
+        final Meter meter = this.meters.get(key);
+        if (meter instanceof Counter) {
+            return (Counter) meter;
+        }
+        return (Counter) register(key, new Counter(name, help, labels));
+    }
+
+    /**
+     * @param value read each time the gauge is collected; a gauge already registered with the name
+     *     and labels keeps its own
+     * @param labels label names and values, alternately
+     * @return the gauge with the name and labels, created if necessary
+     */
+    public Gauge gauge(String name, String help, DoubleSupplier value, String... labels) {
+        final String key = keyOf(name, labels);
+        final Meter meter = this.meters.get(key);
+        if (meter instanceof Gauge) {
+            return (Gauge) meter;
+        }
+        return (Gauge) register(key, new Gauge(name, help, value, labels));
+    }
+
+    /** @return the meters, ordered by name and labels */
+    public List<Meter> getMeters() {
+        return new ArrayList<Meter>(this.meters.values());
+    }
+
+    /** Writes every meter in the Prometheus text exposition format (version 0.0.4). */
+    public void writePrometheus(Writer writer) throws IOException {
+        String previousName = null;
+        for (Meter meter : this.meters.values()) {
+            if (!meter.getName().equals(previousName)) {
+                writer.write("# HELP ");
+                writer.write(meter.getName());
+                writer.write(' ');
+                writer.write(meter.getHelp().replace("\\", "\\\\").replace("\n", "\\n"));
+                writer.write("\n# TYPE ");
+                writer.write(meter.getName());
+                writer.write(' ');
+                writer.write(meter.getType());
+                writer.write('\n');
+                previousName = meter.getName();
+            }
+            meter.writeSamples(writer);
+        }
+    }
+
+    private synchronized Meter register(String key, Meter meter) {
+        final Meter existing = this.meters.get(key);
+        if (existing != null) {
+            if (!existing.getType().equals(meter.getType())) {
+                throw new IllegalArgumentException(
+                        meter.getName() + " is already registered as a " + existing.getType());
+            }
+            return existing;
+        }
+        this.meters.put(key, meter);
+        if (this.mbeanServer != null) {
+            registerMBean(meter);
+        }
+        return meter;
+    }
+
+    private void registerMBean(Meter meter) {
+        try {
+            final ObjectName objectName = objectNameOf(meter);
+            if (!this.mbeanServer.isRegistered(objectName)) {
+                this.mbeanServer.registerMBean(meter, objectName);
+            }
+        } catch (JMException e) {
+            this.logger.warn("Failed to register MBean for {}", meter.getName(), e);
+        }
+    }
+
+    private ObjectName objectNameOf(Meter meter) throws JMException {
+        final StringBuilder name = new StringBuilder(this.jmxDomain);
+        name.append(":type=").append(meter.getClass().getSimpleName());
+        name.append(",name=").append(meter.getName());
+        final String[] labels = meter.getLabels();
+        for (int i = 0; i < labels.length; i += 2) {
+            name.append(',').append(labels[i]).append('=').append(ObjectName.quote(labels[i + 1]));
+        }
+        return new ObjectName(name.toString());
+    }
+
+    /*
+     * Sorts meters of the same name together, so the Prometheus output has one HELP and TYPE line
+     * for each name.
+     */
+    private static String keyOf(String name, String[] labels) {
+        final StringBuilder key = new StringBuilder(name).append('\u0000');
+        for (String label : labels) {
+            key.append(label).append('\u0001');
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.regex.Pattern;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Serves the {@link Metrics} bean of the root application context in the Prometheus text format.
+ * Only clients whose address matches the <code>allowedAddresses</code> init parameter (a regular
+ * expression) may read it; without the parameter, every request is refused.
+ *
+ */
+public class PrometheusMetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Logger logger = LoggerFactory.getLogger(getClass());
+
+    private transient Metrics metrics;
+
+    private transient Pattern allowedAddresses;
+
+    @Override
+    public void init() throws ServletException {
+        this.metrics =
+                WebApplicationContextUtils.getRequiredWebApplicationContext(getServletContext())
+                        .getBean(Metrics.class);
+        final String allowed = getInitParameter("allowedAddresses");
+        if (allowed == null || allowed.trim().isEmpty()) {
+            this.logger.warn("allowedAddresses is not set; refusing every request for metrics");
+            this.allowedAddresses = null;
+        } else {
+            this.allowedAddresses = Pattern.compile(allowed.trim());
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final Pattern allowed = this.allowedAddresses;
+        if (allowed == null || !allowed.matcher(request.getRemoteAddr()).matches()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        final Writer writer = response.getWriter();
+        this.metrics.writePrometheus(writer);
+        writer.flush();
+    }
+}
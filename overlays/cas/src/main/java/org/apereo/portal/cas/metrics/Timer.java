@@ -0,0 +1,129 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the duration of events in a fixed histogram, from half a millisecond to ten seconds,
+ * along with their count, total and maximum. Recording does not allocate and, apart from a new
+ * maximum, does not contend with other threads.
+ *
+ */
+public final class Timer extends Meter implements TimerMBean {
+
+    /** Upper bounds of the histogram buckets, in nanoseconds */
+    private static final long[] BUCKET_BOUNDS = {
+        500000L,
+        1000000L,
+        2500000L,
+        5000000L,
+        10000000L,
+        25000000L,
+        50000000L,
+        100000000L,
+        250000000L,
+        500000000L,
+        1000000000L,
+        2500000000L,
+        5000000000L,
+        10000000000L
+    };
+
+    /** The bucket bounds in seconds, as Prometheus "le" labels */
+    private static final String[] BUCKET_LABELS = new String[BUCKET_BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            BUCKET_LABELS[i] = Double.toString(BUCKET_BOUNDS[i] / 1e9);
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    Timer(String name, String help, String[] labels) {
+        super(name, help, labels);
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    /** Records an event that started at the given {@link System#nanoTime()} and has just ended. */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && nanos > BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        this.buckets[bucket].increment();
+        this.totalNanos.add(nanos);
+        long max = this.maxNanos.get();
+        while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+            max = this.maxNanos.get();
+        }
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : this.buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return this.totalNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        final long count = getCount();
+        return count == 0 ? 0 : this.totalNanos.sum() / 1e6 / count;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return this.maxNanos.get() / 1e6;
+    }
+
+    @Override
+    String getType() {
+        return "histogram";
+    }
+
+    @Override
+    void writeSamples(Writer writer) throws IOException {
+        // Buckets are cumulative in the Prometheus format
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            cumulative += this.buckets[i].sum();
+            writeSample(writer, "_bucket", "le", BUCKET_LABELS[i], Long.toString(cumulative));
+        }
+        cumulative += this.buckets[BUCKET_BOUNDS.length].sum();
+        writeSample(writer, "_bucket", "le", "+Inf", Long.toString(cumulative));
+        writeSample(writer, "_sum", null, null, Double.toString(this.totalNanos.sum() / 1e9));
+        writeSample(writer, "_count", null, null, Long.toString(cumulative));
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.metrics;
+
+/**
+ * JMX view of a {@link Timer}.
+ *
+ */
+public interface TimerMBean {
+
+    /** @return the number of events recorded */
+    long getCount();
+
+    /** @return the total time, in milliseconds, of the events recorded */
+    double getTotalMillis();
+
+    /** @return the mean time, in milliseconds, of the events recorded */
+    double getMeanMillis();
+
+    /** @return the longest time, in milliseconds, of an event recorded */
+    double getMaxMillis();
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small thread-safe LRU cache with an optional time to live, used by {@link
+ * ConfigurableUserAgentOverrideThemeResolver} to remember resolved theme names.
+ *
+ */
+class BoundedCache<K, V> {
+    private final Map<K, CachedValue<V>> entries;
+    private final long timeToLiveMillis;
+
+    /**
+     * @param maxSize the most entries retained; the least recently used entry is evicted first
+     * @param timeToLiveMillis how long an entry is valid; 0 or less for no expiry
+     */
+    BoundedCache(final int maxSize, long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.entries =
+                new LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                        return size() > maxSize;
+                    }
+                };
+    }
+
+    /** @return the cached value, null if absent or expired */
+    synchronized V get(K key) {
+        final CachedValue<V> entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires != 0 && entry.expires < System.currentTimeMillis()) {
+            this.entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value) {
+        final long expires =
+                this.timeToLiveMillis > 0 ? System.currentTimeMillis() + this.timeToLiveMillis : 0;
+        this.entries.put(key, new CachedValue<V>(value, expires));
+    }
+
+    synchronized void clear() {
+        this.entries.clear();
+    }
+
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    private static final class CachedValue<V> {
+        private final V value;
+        private final long expires;
+
+        private CachedValue(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
@@ -14,14 +14,17 @@
  */
 package org.apereo.portal.cas.services.web;
 
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.apereo.portal.cas.metrics.Counter;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.apereo.portal.cas.metrics.Timer;
 import org.jasig.cas.authentication.principal.Service;
 import org.jasig.cas.services.RegisteredService;
 import org.jasig.cas.services.ServicesManager;
@@ -41,6 +44,13 @@ import org.springframework.web.servlet.theme.AbstractThemeResolver;
  * to determine if an alternate theme name is configured for the current user agent. This class is
  * designed to allow us to define alternate themes for mobile devices on a per-service basis.
  *
+ * <p>The regular expressions for each theme are combined into a single precompiled matcher, and
+ * resolved theme names are cached by service URL and by (theme, user agent), so that most requests
+ * are resolved with two cache lookups.
+ *
+ * <p>When {@link Metrics} are set, resolutions are timed and counted by service theme and resolved
+ * theme (for service themes with overrides), as are hits and misses of the user agent cache.
+ *
  */
 public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeResolver {
 
@@ -49,13 +59,57 @@ public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeRes
 
     private List<ArgumentExtractor> argumentExtractors;
 
-    private Map<String, Map<Pattern, String>> overrides;
+    private Map<String, UserAgentOverrides> overrides = new HashMap<String, UserAgentOverrides>();
+
+    private int userAgentCacheSize = 1000;
+
+    private int serviceCacheSize = 1000;
+
+    /*
+     * Registered services may be reloaded (by default every two minutes), so service themes are
+     * only cached for that long.
+     */
+    private long serviceCacheTimeToLiveMillis = TimeUnit.MINUTES.toMillis(2);
+
+    private volatile Map<String, BoundedCache<String, String>> userAgentCaches =
+            new HashMap<String, BoundedCache<String, String>>();
+
+    private volatile BoundedCache<String, String> serviceCache =
+            new BoundedCache<String, String>(serviceCacheSize, serviceCacheTimeToLiveMillis);
+
+    private Metrics metrics;
+
+    private Timer resolutionTimer;
+
+    private Counter userAgentCacheHits;
+
+    private Counter userAgentCacheMisses;
+
+    /*
+     * Resolution counters by service theme and resolved theme, created with the overrides so that
+     * counting does not allocate.
+     */
+    private volatile Map<String, Map<String, Counter>> resolutionCounters =
+            Collections.emptyMap();
 
     /*
      * (non-Javadoc)
      * @see org.springframework.web.servlet.ThemeResolver#resolveThemeName(javax.servlet.http.HttpServletRequest)
      */
     public String resolveThemeName(HttpServletRequest request) {
+        final Timer timer = this.resolutionTimer;
+        if (timer == null) {
+            return resolveThemeNameInternal(request);
+        }
+        final long started = System.nanoTime();
+        try {
+            return resolveThemeNameInternal(request);
+        } finally {
+            timer.recordSince(started);
+        }
+    }
+
+    private String resolveThemeNameInternal(HttpServletRequest request) {
 
         // get the theme name indicated by the service
         String themeName = resolveServiceThemeName(request);
@@ -67,16 +121,29 @@ public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeRes
          * regex.
          */
 
-        if (overrides.containsKey(themeName)) {
+        final BoundedCache<String, String> userAgentCache = this.userAgentCaches.get(themeName);
+        if (userAgentCache != null) {
 
             // retrieve the user agent string from the request
             String userAgent = request.getHeader("User-Agent");
+            if (userAgent == null) {
+                countResolution(themeName, themeName);
+                return themeName;
+            }
 
-            for (Entry<Pattern, String> entry : overrides.get(themeName).entrySet()) {
-                if (entry.getKey().matcher(userAgent).matches()) {
-                    return entry.getValue();
+            String overrideThemeName = userAgentCache.get(userAgent);
+            if (overrideThemeName == null) {
+                overrideThemeName = this.overrides.get(themeName).resolve(userAgent);
+                if (overrideThemeName == null) {
+                    overrideThemeName = themeName;
                 }
+                userAgentCache.put(userAgent, overrideThemeName);
+                count(this.userAgentCacheMisses);
+            } else {
+                count(this.userAgentCacheHits);
             }
+            countResolution(themeName, overrideThemeName);
+            return overrideThemeName;
         }
 
         // if no override was found for the current theme and user agent,
@@ -105,12 +172,22 @@ public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeRes
         }
 
         final Service service = WebUtils.getService(this.argumentExtractors, request);
+        if (service == null) {
+            return getDefaultThemeName();
+        }
 
-        final RegisteredService rService = this.servicesManager.findServiceBy(service);
+        final BoundedCache<String, String> cache = this.serviceCache;
+        String themeName = cache.get(service.getId());
+        if (themeName == null) {
+            final RegisteredService rService = this.servicesManager.findServiceBy(service);
 
-        return service != null && rService != null && StringUtils.hasText(rService.getTheme())
-                ? rService.getTheme()
-                : getDefaultThemeName();
+            themeName =
+                    rService != null && StringUtils.hasText(rService.getTheme())
+                            ? rService.getTheme()
+                            : getDefaultThemeName();
+            cache.put(service.getId(), themeName);
+        }
+        return themeName;
     }
 
     public void setServicesManager(final ServicesManager servicesManager) {
@@ -128,17 +205,133 @@ public class ConfigurableUserAgentOverrideThemeResolver extends AbstractThemeRes
      * @param overrides
      */
     public void setOverrides(Map<String, Map<String, String>> overrides) {
-        // initialize the overrides variable to an empty map
-        this.overrides = new HashMap<String, Map<Pattern, String>>();
+        final Map<String, UserAgentOverrides> compiled = new HashMap<String, UserAgentOverrides>();
+        final Map<String, BoundedCache<String, String>> caches =
+                new HashMap<String, BoundedCache<String, String>>();
 
-        // convert the provided map's regular expressions to Pattern objects
+        // combine each theme's regular expressions into a single matcher
         for (Entry<String, Map<String, String>> themeMapping : overrides.entrySet()) {
-            Map<Pattern, String> mappings = new LinkedHashMap<Pattern, String>();
-            for (Entry<String, String> browserMapping : themeMapping.getValue().entrySet()) {
-                Pattern p = Pattern.compile(browserMapping.getKey());
-                mappings.put(p, browserMapping.getValue());
+            compiled.put(themeMapping.getKey(), new UserAgentOverrides(themeMapping.getValue()));
+            caches.put(
+                    themeMapping.getKey(),
+                    new BoundedCache<String, String>(this.userAgentCacheSize, 0));
+        }
+
+        this.overrides = compiled;
+        this.userAgentCaches = caches;
+        createResolutionCounters();
+    }
+
+    /**
+     * Set the registry of the resolution timer and counters.
+     *
+     * @param metrics
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            this.resolutionTimer =
+                    metrics.timer(
+                            "cas_theme_resolution_seconds",
+                            "Time to resolve the CAS theme of requests");
+            this.userAgentCacheHits = userAgentCacheCounter(metrics, "hit");
+            this.userAgentCacheMisses = userAgentCacheCounter(metrics, "miss");
+        } else {
+            this.resolutionTimer = null;
+            this.userAgentCacheHits = null;
+            this.userAgentCacheMisses = null;
+        }
+        createResolutionCounters();
+    }
+
+    /**
+     * Set the number of distinct user agents remembered per theme. Must be set before the
+     * overrides.
+     *
+     * @param userAgentCacheSize
+     */
+    public void setUserAgentCacheSize(int userAgentCacheSize) {
+        this.userAgentCacheSize = userAgentCacheSize;
+    }
+
+    /**
+     * Set the number of service URLs whose theme is remembered.
+     *
+     * @param serviceCacheSize
+     */
+    public void setServiceCacheSize(int serviceCacheSize) {
+        this.serviceCacheSize = serviceCacheSize;
+        this.serviceCache =
+                new BoundedCache<String, String>(
+                        this.serviceCacheSize, this.serviceCacheTimeToLiveMillis);
+    }
+
+    /**
+     * Set how long the theme of a service URL is remembered; should not exceed the service
+     * registry reload interval.
+     *
+     * @param serviceCacheTimeToLiveSeconds
+     */
+    public void setServiceCacheTimeToLiveSeconds(long serviceCacheTimeToLiveSeconds) {
+        this.serviceCacheTimeToLiveMillis =
+                TimeUnit.SECONDS.toMillis(serviceCacheTimeToLiveSeconds);
+        this.serviceCache =
+                new BoundedCache<String, String>(
+                        this.serviceCacheSize, this.serviceCacheTimeToLiveMillis);
+    }
+
+    private void createResolutionCounters() {
+        final Metrics metrics = this.metrics;
+        if (metrics == null) {
+            this.resolutionCounters = Collections.emptyMap();
+            return;
+        }
+        final Map<String, Map<String, Counter>> counters =
+                new HashMap<String, Map<String, Counter>>();
+        for (Entry<String, UserAgentOverrides> themeOverrides : this.overrides.entrySet()) {
+            final String themeName = themeOverrides.getKey();
+            final Map<String, Counter> themeCounters = new HashMap<String, Counter>();
+            themeCounters.put(themeName, resolutionCounter(metrics, themeName, themeName));
+            for (String overrideThemeName : themeOverrides.getValue().getThemeNames()) {
+                themeCounters.put(
+                        overrideThemeName,
+                        resolutionCounter(metrics, themeName, overrideThemeName));
             }
-            this.overrides.put(themeMapping.getKey(), mappings);
+            counters.put(themeName, themeCounters);
+        }
+        this.resolutionCounters = counters;
+    }
+
+    private void countResolution(String themeName, String resolvedThemeName) {
+        final Map<String, Counter> themeCounters = this.resolutionCounters.get(themeName);
+        if (themeCounters != null) {
+            count(themeCounters.get(resolvedThemeName));
         }
     }
+
+    private static void count(Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    private static Counter resolutionCounter(
+            Metrics metrics, String themeName, String resolvedThemeName) {
+        return metrics.counter(
+                "cas_theme_resolutions_total",
+                "Requests for services with user agent overrides, "
+                        + "by service theme and resolved theme",
+                "theme",
+                themeName,
+                "resolved",
+                resolvedThemeName);
+    }
+
+    private static Counter userAgentCacheCounter(Metrics metrics, String result) {
+        return metrics.counter(
+                "cas_theme_user_agent_cache_total",
+                "Lookups in the user agent cache, by result",
+                "result",
+                result);
+    }
 }
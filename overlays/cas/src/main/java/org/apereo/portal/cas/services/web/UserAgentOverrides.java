@@ -0,0 +1,104 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The user agent overrides for a single service theme, combined into one precompiled alternation
+ * so a user agent is classified in a single pass. Each configured regular expression is wrapped in
+ * its own capture group; the first group that participates in the match identifies the override,
+ * which gives the same result as trying the expressions one at a time in configuration order.
+ *
+ * <p>Expressions containing back references cannot be renumbered safely; if any are present, the
+ * expressions are tried one at a time instead.
+ *
+ */
+class UserAgentOverrides {
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+
+    private final Pattern combined;
+    private final int[] groups;
+    private final Pattern[] patterns;
+    private final String[] themeNames;
+
+    /** @param overrides map of user agent regular expression to override theme name, in order */
+    UserAgentOverrides(Map<String, String> overrides) {
+        final List<Pattern> compiled = new ArrayList<Pattern>(overrides.size());
+        final List<String> names = new ArrayList<String>(overrides.size());
+        boolean combinable = true;
+        for (Entry<String, String> browserMapping : overrides.entrySet()) {
+            compiled.add(Pattern.compile(browserMapping.getKey()));
+            names.add(browserMapping.getValue());
+            combinable &= !BACK_REFERENCE.matcher(browserMapping.getKey()).find();
+        }
+        this.patterns = compiled.toArray(new Pattern[compiled.size()]);
+        this.themeNames = names.toArray(new String[names.size()]);
+
+        if (!combinable || this.patterns.length < 2) {
+            this.combined = null;
+            this.groups = null;
+            return;
+        }
+
+        final StringBuilder alternation = new StringBuilder();
+        this.groups = new int[this.patterns.length];
+        int group = 1;
+        for (int i = 0; i < this.patterns.length; i++) {
+            if (i > 0) {
+                alternation.append('|');
+            }
+            alternation.append('(').append(this.patterns[i].pattern()).append(')');
+            this.groups[i] = group;
+            group += 1 + this.patterns[i].matcher("").groupCount();
+        }
+        this.combined = Pattern.compile(alternation.toString());
+    }
+
+    /** @return the override theme names, in configuration order (may contain duplicates) */
+    List<String> getThemeNames() {
+        return Collections.unmodifiableList(Arrays.asList(this.themeNames));
+    }
+
+    /** @return the override theme name for the user agent, null if no expression matches */
+    String resolve(String userAgent) {
+        if (this.combined != null) {
+            final Matcher matcher = this.combined.matcher(userAgent);
+            if (!matcher.matches()) {
+                return null;
+            }
+            for (int i = 0; i < this.groups.length; i++) {
+                if (matcher.start(this.groups[i]) >= 0) {
+                    return this.themeNames[i];
+                }
+            }
+            return null;
+        }
+
+        for (int i = 0; i < this.patterns.length; i++) {
+            if (this.patterns[i].matcher(userAgent).matches()) {
+                return this.themeNames[i];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent hash ring mapping keys, such as ticket ids, to the nodes that own them. Each
+ * node is placed on the ring at several points so that keys are spread evenly, and adding or
+ * removing a node only moves the keys owned by that node.
+ *
+ */
+final class ConsistentHashRing {
+    private final Set<String> nodes;
+    /** Sorted positions of the points on the ring */
+    private final long[] points;
+    /** The node at each point */
+    private final String[] owners;
+
+    /**
+     * @param nodes the nodes, which must not be empty
+     * @param pointsPerNode number of points each node is placed at
+     */
+    ConsistentHashRing(Collection<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("The ring needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableSet(new TreeSet<String>(nodes));
+
+        final long[][] entries = new long[this.nodes.size() * pointsPerNode][];
+        final String[] nodeArray = this.nodes.toArray(new String[this.nodes.size()]);
+        int i = 0;
+        for (int node = 0; node < nodeArray.length; node++) {
+            for (int point = 0; point < pointsPerNode; point++) {
+                entries[i++] = new long[] {hash(nodeArray[node] + "#" + point), node};
+            }
+        }
+        Arrays.sort(
+                entries,
+                new Comparator<long[]>() {
+                    @Override
+                    public int compare(long[] a, long[] b) {
+                        // Order ties by node so every member builds the same ring
+                        final int byHash = Long.compare(a[0], b[0]);
+                        return byHash != 0 ? byHash : Long.compare(a[1], b[1]);
+                    }
+                });
+
+        this.points = new long[entries.length];
+        this.owners = new String[entries.length];
+        for (i = 0; i < entries.length; i++) {
+            this.points[i] = entries[i][0];
+            this.owners[i] = nodeArray[(int) entries[i][1]];
+        }
+    }
+
+    Set<String> getNodes() {
+        return this.nodes;
+    }
+
+    /** @return the node owning the key: the first node at or after the key's position */
+    String ownerOf(String key) {
+        int index = Arrays.binarySearch(this.points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return this.owners[index == this.points.length ? 0 : index];
+    }
+
+    /** 64 bit FNV-1a of the characters, finished with the MurmurHash3 mixer. */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
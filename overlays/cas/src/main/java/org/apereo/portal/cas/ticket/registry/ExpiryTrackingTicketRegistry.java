@@ -0,0 +1,46 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.Collection;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+
+/**
+ * A ticket registry that records when each ticket is due to be checked for expiry as it is added,
+ * so expired tickets can be found without scanning the whole registry. Used by {@link
+ * IncrementalTicketRegistryCleaner}.
+ *
+ */
+public interface ExpiryTrackingTicketRegistry extends TicketRegistry {
+
+    /**
+     * Checks tickets that have come due and returns those that have expired. The tickets are not
+     * removed; the caller is expected to delete them.
+     *
+     * @param maxTickets the most tickets to return
+     * @return expired tickets, empty if none are due
+     */
+    Collection<Ticket> pollExpiredTickets(int maxTickets);
+
+    /**
+     * Has a ticket returned by {@link #pollExpiredTickets(int)} checked again, e.g. because it
+     * could not be deleted. Ignored if the ticket is no longer in the registry.
+     *
+     * @param ticketId the ticket
+     * @param checkAt when the ticket is due to be checked
+     */
+    void reschedule(String ticketId, long checkAt);
+}
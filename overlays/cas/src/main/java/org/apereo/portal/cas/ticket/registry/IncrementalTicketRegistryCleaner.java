@@ -0,0 +1,252 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.RegistryCleaner;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry cleaner that removes expired tickets continuously, in small batches, instead of
+ * periodically scanning every ticket as DefaultTicketRegistryCleaner does. Expired tickets are
+ * found through an {@link ExpiryTrackingTicketRegistry}, which tracks expiry as tickets are added,
+ * and deleted through the (possibly decorated) ticket registry so that decorators such as the
+ * clearpass TicketRegistryDecorator see every deletion. A ticket that cannot be deleted is
+ * returned to the expiry tracking and retried by the next run.
+ *
+ * <p>The cleaner runs itself every <code>intervalMillis</code> once {@link #init()} is called. It
+ * may instead be driven by Quartz by leaving <code>intervalMillis</code> at 0 and invoking {@link
+ * #clean()} as DefaultTicketRegistryCleaner would be.
+ *
+ */
+public class IncrementalTicketRegistryCleaner implements RegistryCleaner {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private TicketRegistry ticketRegistry;
+    private ExpiryTrackingTicketRegistry expiryTrackingTicketRegistry;
+    private boolean logUserOutOfServices = true;
+    private int batchSize = 100;
+    private int maxBatchesPerRun = 100;
+    private long intervalMillis = 1000;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalBatchNanos = new AtomicLong();
+    private final AtomicLong maxBatchNanos = new AtomicLong();
+    private volatile int lastBatchReclaimed;
+    private volatile long lastBatchNanos;
+
+    /**
+     * @param ticketRegistry the registry expired tickets are deleted from; defaults to
+     *     expiryTrackingTicketRegistry
+     */
+    public void setTicketRegistry(TicketRegistry ticketRegistry) {
+        this.ticketRegistry = ticketRegistry;
+    }
+
+    /**
+     * @param expiryTrackingTicketRegistry the registry expired tickets are found in; usually the
+     *     registry wrapped by ticketRegistry
+     */
+    public void setExpiryTrackingTicketRegistry(
+            ExpiryTrackingTicketRegistry expiryTrackingTicketRegistry) {
+        this.expiryTrackingTicketRegistry = expiryTrackingTicketRegistry;
+    }
+
+    /** @param logUserOutOfServices whether to send single sign out messages for expired sessions */
+    public void setLogUserOutOfServices(boolean logUserOutOfServices) {
+        this.logUserOutOfServices = logUserOutOfServices;
+    }
+
+    /** @param batchSize the most tickets removed per batch */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /** @param maxBatchesPerRun the most batches removed by each call to {@link #clean()} */
+    public void setMaxBatchesPerRun(int maxBatchesPerRun) {
+        if (maxBatchesPerRun < 1) {
+            throw new IllegalArgumentException("maxBatchesPerRun must be at least 1");
+        }
+        this.maxBatchesPerRun = maxBatchesPerRun;
+    }
+
+    /** @param intervalMillis time between runs; 0 when the cleaner is scheduled externally */
+    public void setIntervalMillis(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /** Starts cleaning every intervalMillis, unless it is 0. */
+    public synchronized void init() {
+        if (this.scheduler != null || this.intervalMillis <= 0) {
+            return;
+        }
+
+        this.scheduler =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                final Thread thread = new Thread(r, "ticket-registry-cleaner");
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        this.scheduler.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            clean();
+                        } catch (RuntimeException e) {
+                            logger.error("Failed to clean ticket registry", e);
+                        }
+                    }
+                },
+                this.intervalMillis,
+                this.intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops cleaning. */
+    public synchronized void shutdown() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.RegistryCleaner#clean()
+     */
+    public void clean() {
+        final TicketRegistry registry =
+                this.ticketRegistry != null
+                        ? this.ticketRegistry
+                        : this.expiryTrackingTicketRegistry;
+
+        // Polling took these off the schedule; put them back for the next run to retry
+        final List<String> failed = new ArrayList<String>();
+        try {
+            for (int i = 0; i < this.maxBatchesPerRun; i++) {
+                final long start = System.nanoTime();
+                final Collection<Ticket> expired =
+                        this.expiryTrackingTicketRegistry.pollExpiredTickets(this.batchSize);
+                if (expired.isEmpty()) {
+                    return;
+                }
+
+                int count = 0;
+                for (final Ticket ticket : expired) {
+                    try {
+                        if (this.logUserOutOfServices && ticket instanceof TicketGrantingTicket) {
+                            ((TicketGrantingTicket) ticket).expire();
+                        }
+                        if (registry.deleteTicket(ticket.getId())) {
+                            count++;
+                        }
+                    } catch (RuntimeException e) {
+                        this.failures.incrementAndGet();
+                        failed.add(ticket.getId());
+                        this.logger.warn("Failed to remove expired ticket {}", ticket.getId(), e);
+                    }
+                }
+
+                final long nanos = System.nanoTime() - start;
+                record(count, nanos);
+                this.logger.debug(
+                        "Removed {} of {} expired tickets in {} ms",
+                        count,
+                        expired.size(),
+                        nanos / 1000000);
+
+                if (expired.size() < this.batchSize) {
+                    return;
+                }
+            }
+        } finally {
+            final long now = System.currentTimeMillis();
+            for (final String ticketId : failed) {
+                this.expiryTrackingTicketRegistry.reschedule(ticketId, now);
+            }
+        }
+    }
+
+    /** @return the number of batches removed */
+    public long getBatchCount() {
+        return this.batches.get();
+    }
+
+    /** @return the number of expired tickets removed */
+    public long getReclaimedCount() {
+        return this.reclaimed.get();
+    }
+
+    /** @return the number of failed attempts to remove an expired ticket; each is retried later */
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /** @return the number of tickets removed by the most recent batch */
+    public int getLastBatchReclaimedCount() {
+        return this.lastBatchReclaimed;
+    }
+
+    /** @return the time, in milliseconds, the most recent batch took */
+    public double getLastBatchMillis() {
+        return this.lastBatchNanos / 1e6;
+    }
+
+    /** @return the mean time, in milliseconds, a batch took */
+    public double getMeanBatchMillis() {
+        final long count = this.batches.get();
+        return count == 0 ? 0 : this.totalBatchNanos.get() / 1e6 / count;
+    }
+
+    /** @return the longest time, in milliseconds, a batch took */
+    public double getMaxBatchMillis() {
+        return this.maxBatchNanos.get() / 1e6;
+    }
+
+    private void record(int count, long nanos) {
+        this.batches.incrementAndGet();
+        this.reclaimed.addAndGet(count);
+        this.totalBatchNanos.addAndGet(nanos);
+        this.lastBatchReclaimed = count;
+        this.lastBatchNanos = nanos;
+        long current = this.maxBatchNanos.get();
+        while (nanos > current && !this.maxBatchNanos.compareAndSet(current, nanos)) {
+            current = this.maxBatchNanos.get();
+        }
+    }
+}
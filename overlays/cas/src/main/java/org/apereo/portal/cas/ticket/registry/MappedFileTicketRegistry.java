@@ -0,0 +1,825 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistryState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Ticket registry that keeps serialized tickets off the heap, in memory-mapped segment files on the
+ * local file system, so that tickets survive a restart or redeploy of CAS.
+ *
+ * <p>Every change is appended to the newest segment as a record holding the ticket id, its type,
+ * when it is due for an expiry check and the serialized ticket, protected by a CRC. Only an index
+ * from ticket id to record location is kept on the heap. On startup the segments are scanned to
+ * rebuild the index without deserializing any ticket; tickets are deserialized when they are next
+ * looked up. Once little of an older segment is still current, its current records are copied to
+ * the newest segment and the file is deleted. A deletion record is only copied while a segment
+ * that may hold an earlier record of the ticket remains; it stores the oldest such segment in
+ * place of an expiry check time.
+ *
+ * <p>Tickets returned by this registry are copies, so changes to them are written back through
+ * the callbacks provided by AbstractDistributedTicketRegistry.
+ *
+ */
+public class MappedFileTicketRegistry extends AbstractDistributedTicketRegistry
+        implements ExpiryTrackingTicketRegistry, TicketRegistryState {
+    private static final int MAGIC = 0x43415354;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private static final byte OTHER_TICKET = 0;
+    private static final byte TICKET_GRANTING_TICKET = 1;
+    private static final byte SERVICE_TICKET = 2;
+
+    /**
+     * length, operation, ticket type, expiry check time (for a deletion, the oldest segment that
+     * may hold a record of the ticket) and id length
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 1 + 8 + 2;
+    private static final int TYPE_POSITION = 5;
+    private static final int CHECK_AT_POSITION = 6;
+    /** CRC32 of everything after the length */
+    private static final int RECORD_TRAILER_SIZE = 4;
+
+    private static final String FILE_PREFIX = "tickets-";
+    private static final String FILE_SUFFIX = ".seg";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final TicketSerializer serializer = new TicketSerializer();
+    private final TicketSerializer.TicketResolver resolver =
+            new TicketSerializer.TicketResolver() {
+                @Override
+                public Ticket getTicket(String ticketId) {
+                    return getRawTicket(ticketId);
+                }
+            };
+
+    private File directory = new File(System.getProperty("java.io.tmpdir"), "cas-tickets");
+    private int segmentSize = 64 * 1024 * 1024;
+    private double compactionThreshold = 0.5;
+    private long compactionIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+    private long serviceTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(10);
+    private long ticketGrantingTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(7200);
+
+    /** Ticket id to record location, see {@link #location(int, int)} */
+    private final Map<String, Long> index = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Oldest segment holding a record of the ticket, for tickets whose records span segments;
+     * guarded by the write lock
+     */
+    private final Map<String, Integer> firstSegments = new HashMap<String, Integer>();
+
+    private final ConcurrentSkipListMap<Integer, SegmentFile> segments =
+            new ConcurrentSkipListMap<Integer, SegmentFile>();
+
+    /** Guards appends and the index, so the order of records matches the order of changes */
+    private final Object writeLock = new Object();
+
+    private SegmentFile activeSegment;
+
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private final AtomicInteger serviceTicketCount = new AtomicInteger();
+
+    private final long tickMillis;
+    private TicketExpiryWheel wheel;
+    private ScheduledExecutorService scheduler;
+
+    public MappedFileTicketRegistry() {
+        this(1000);
+    }
+
+    MappedFileTicketRegistry(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    /** @param directory where segment files are kept; must be on a local file system */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param allowedClasses classes, or packages ending with a dot, that tickets may hold besides
+     *     those of CAS and the JDK classes {@link TicketSerializer} allows
+     */
+    public void setAllowedClasses(String[] allowedClasses) {
+        this.serializer.allow(Arrays.asList(allowedClasses));
+    }
+
+    /** @param segmentSize size, in bytes, of each segment file */
+    public void setSegmentSize(int segmentSize) {
+        Assert.isTrue(segmentSize > FILE_HEADER_SIZE + 1024, "segmentSize is too small");
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * @param compactionThreshold older segments whose current records take up less than this
+     *     fraction of the segment are compacted
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /** @param compactionIntervalMillis time between compactions; 0 to only compact on demand */
+    public void setCompactionIntervalMillis(long compactionIntervalMillis) {
+        this.compactionIntervalMillis = compactionIntervalMillis;
+    }
+
+    /**
+     * Time after which a service ticket is first checked for expiry; should match
+     * st.timeToKillInSeconds.
+     *
+     * @param serviceTicketTimeToKillInSeconds
+     */
+    public void setServiceTicketTimeToKillInSeconds(long serviceTicketTimeToKillInSeconds) {
+        this.serviceTicketTimeToKillMillis =
+                TimeUnit.SECONDS.toMillis(serviceTicketTimeToKillInSeconds);
+    }
+
+    /**
+     * Time after which a ticket granting ticket is first checked for expiry; should match
+     * tgt.timeToKillInSeconds.
+     *
+     * @param ticketGrantingTicketTimeToKillInSeconds
+     */
+    public void setTicketGrantingTicketTimeToKillInSeconds(
+            long ticketGrantingTicketTimeToKillInSeconds) {
+        this.ticketGrantingTicketTimeToKillMillis =
+                TimeUnit.SECONDS.toMillis(ticketGrantingTicketTimeToKillInSeconds);
+    }
+
+    /** Opens the segment files, reloading the tickets they hold, and starts compaction. */
+    public synchronized void init() throws IOException {
+        if (this.wheel != null) {
+            return;
+        }
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Unable to create ticket directory " + this.directory);
+        }
+
+        final long start = System.currentTimeMillis();
+        this.wheel = new TicketExpiryWheel(4096, this.tickMillis, start);
+        synchronized (this.writeLock) {
+            for (final File file : listSegmentFiles()) {
+                load(file);
+            }
+            if (this.activeSegment == null) {
+                roll();
+            }
+            for (final Map.Entry<String, Long> entry : this.index.entrySet()) {
+                final long location = entry.getValue();
+                this.wheel.schedule(
+                        entry.getKey(),
+                        buffer(location).getLong(offset(location) + CHECK_AT_POSITION));
+            }
+        }
+        this.logger.info(
+                "Loaded {} tickets from {} segments in {} in {} ms",
+                this.index.size(),
+                this.segments.size(),
+                this.directory,
+                System.currentTimeMillis() - start);
+
+        if (this.compactionIntervalMillis > 0) {
+            this.scheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    final Thread thread =
+                                            new Thread(r, "ticket-registry-compaction");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+            this.scheduler.scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                compact();
+                            } catch (RuntimeException e) {
+                                logger.error("Failed to compact ticket registry", e);
+                            }
+                        }
+                    },
+                    this.compactionIntervalMillis,
+                    this.compactionIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Stops compaction and flushes the segment files to disk. */
+    public synchronized void shutdown() {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+        synchronized (this.writeLock) {
+            for (final SegmentFile segment : this.segments.values()) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#addTicket(org.jasig.cas.ticket.Ticket)
+     */
+    public void addTicket(final Ticket ticket) {
+        Assert.notNull(ticket, "ticket cannot be null");
+        write(ticket, false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry#updateTicket(org.jasig.cas.ticket.Ticket)
+     */
+    protected void updateTicket(final Ticket ticket) {
+        write(ticket, true);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry#needsCallback()
+     */
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTicket(java.lang.String)
+     */
+    public Ticket getTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        return getProxiedTicketInstance(getRawTicket(ticketId));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#deleteTicket(java.lang.String)
+     */
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+        final byte[] id = ticketId.getBytes(StandardCharsets.UTF_8);
+
+        synchronized (this.writeLock) {
+            final Long location = this.index.remove(ticketId);
+            if (location == null) {
+                return false;
+            }
+            final byte type = buffer(location).get(offset(location) + TYPE_POSITION);
+            final Integer firstSegment = this.firstSegments.remove(ticketId);
+            append(
+                    DELETE,
+                    type,
+                    firstSegment != null ? firstSegment : segment(location),
+                    id,
+                    EMPTY);
+            release(location);
+            count(type, -1);
+            return true;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTickets()
+     */
+    public Collection<Ticket> getTickets() {
+        final List<Ticket> tickets = new ArrayList<Ticket>(this.index.size());
+        for (final String ticketId : this.index.keySet()) {
+            final Ticket ticket = getRawTicket(ticketId);
+            if (ticket != null) {
+                tickets.add(getProxiedTicketInstance(ticket));
+            }
+        }
+        return Collections.unmodifiableCollection(tickets);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apereo.portal.cas.ticket.registry.ExpiryTrackingTicketRegistry#pollExpiredTickets(int)
+     */
+    public Collection<Ticket> pollExpiredTickets(int maxTickets) {
+        final long now = System.currentTimeMillis();
+        final List<String> due = new ArrayList<String>();
+        synchronized (this.wheel) {
+            this.wheel.poll(now, maxTickets, due);
+        }
+
+        final List<Ticket> expired = new ArrayList<Ticket>();
+        for (final String ticketId : due) {
+            final Ticket ticket = getRawTicket(ticketId);
+            if (ticket == null) {
+                // A service ticket whose ticket granting ticket was deleted, or an unreadable
+                // record; neither can be returned, so remove it here or it would never be removed
+                deleteTicket(ticketId);
+                continue;
+            }
+            if (ticket.isExpired()) {
+                expired.add(ticket);
+            } else {
+                synchronized (this.wheel) {
+                    this.wheel.schedule(ticketId, now + timeToKillMillis(type(ticket)));
+                }
+            }
+        }
+        return expired;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apereo.portal.cas.ticket.registry.ExpiryTrackingTicketRegistry#reschedule(java.lang.String, long)
+     */
+    public void reschedule(final String ticketId, final long checkAt) {
+        if (this.index.containsKey(ticketId)) {
+            synchronized (this.wheel) {
+                this.wheel.schedule(ticketId, checkAt);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistryState#sessionCount()
+     */
+    public int sessionCount() {
+        return this.sessionCount.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistryState#serviceTicketCount()
+     */
+    public int serviceTicketCount() {
+        return this.serviceTicketCount.get();
+    }
+
+    /** @return the number of tickets in the registry */
+    public int size() {
+        return this.index.size();
+    }
+
+    /** @return the number of segment files */
+    public int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /**
+     * Copies the current records out of older segments that are mostly out of date, and deletes
+     * them.
+     */
+    public synchronized void compact() {
+        // Not the segments that records are copied to
+        final List<SegmentFile> older;
+        synchronized (this.writeLock) {
+            older =
+                    new ArrayList<SegmentFile>(
+                            this.segments.headMap(this.activeSegment.id).values());
+        }
+        for (final SegmentFile segment : older) {
+            synchronized (this.writeLock) {
+                if (segment.liveBytes
+                        > this.compactionThreshold * (segment.writePosition - FILE_HEADER_SIZE)) {
+                    continue;
+                }
+            }
+
+            final long start = System.currentTimeMillis();
+            int copied = 0;
+            int offset = FILE_HEADER_SIZE;
+            while (offset < segment.writePosition) {
+                final long location = location(segment.id, offset);
+                final Record record = read(segment, offset);
+                synchronized (this.writeLock) {
+                    if (record.operation == PUT) {
+                        final Long current = this.index.get(record.ticketId);
+                        if (current != null && current == location) {
+                            this.index.put(record.ticketId, appendCopy(segment, offset, record));
+                            segment.liveBytes -= record.length;
+                            copied++;
+                        }
+                    } else if (!this.index.containsKey(record.ticketId)
+                            && holdsEarlierRecords(record.checkAt, segment.id)) {
+                        // Without it, the ticket would come back when the segments are reloaded
+                        appendCopy(segment, offset, record);
+                    }
+                }
+                offset += record.length;
+            }
+
+            this.segments.remove(segment.id);
+            if (!segment.file.delete()) {
+                segment.file.deleteOnExit();
+            }
+            this.logger.debug(
+                    "Compacted {}, copying {} tickets, in {} ms",
+                    segment.file.getName(),
+                    copied,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    private void write(Ticket ticket, boolean update) {
+        final String ticketId = ticket.getId();
+        final byte[] id = ticketId.getBytes(StandardCharsets.UTF_8);
+        final byte type = type(ticket);
+        final long checkAt = System.currentTimeMillis() + timeToKillMillis(type);
+        final byte[] serialized;
+        try {
+            serialized = this.serializer.serialize(ticket);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to serialize ticket " + ticketId, e);
+        }
+
+        synchronized (this.writeLock) {
+            final Long previous = this.index.get(ticketId);
+            if (update && previous == null) {
+                // Deleted since it was read
+                return;
+            }
+            final long location = append(PUT, type, checkAt, id, serialized);
+            this.index.put(ticketId, location);
+            if (previous != null) {
+                release(previous);
+                spanSegments(ticketId, previous, location);
+            } else {
+                count(type, 1);
+                synchronized (this.wheel) {
+                    this.wheel.schedule(ticketId, checkAt);
+                }
+            }
+        }
+    }
+
+    private Ticket getRawTicket(String ticketId) {
+        Long location = this.index.get(ticketId);
+        while (location != null) {
+            final SegmentFile segment = this.segments.get(segment(location));
+            if (segment != null) {
+                final Record record = read(segment, offset(location));
+                try {
+                    return this.serializer.deserialize(record.serialized, this.resolver);
+                } catch (IOException e) {
+                    this.logger.warn("Unable to read ticket {}", ticketId, e);
+                    return null;
+                }
+            }
+
+            // Compacted since the location was read
+            final Long current = this.index.get(ticketId);
+            location = current == null || current.equals(location) ? null : current;
+        }
+        return null;
+    }
+
+    /** Appends a record, returning its location. Called holding the write lock. */
+    private long append(byte operation, byte type, long checkAt, byte[] id, byte[] serialized) {
+        final int length =
+                RECORD_HEADER_SIZE + id.length + serialized.length + RECORD_TRAILER_SIZE;
+        final SegmentFile segment = segmentFor(length);
+        final int offset = segment.writePosition;
+
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(length);
+        buffer.put(operation);
+        buffer.put(type);
+        buffer.putLong(checkAt);
+        buffer.putShort((short) id.length);
+        buffer.put(id);
+        buffer.put(serialized);
+        buffer.putInt(crc(segment.buffer, offset, length));
+
+        segment.writePosition += length;
+        if (operation == PUT) {
+            segment.liveBytes += length;
+        }
+        return location(segment.id, offset);
+    }
+
+    /** Appends an existing record unchanged, returning its location. Called holding the lock. */
+    private long appendCopy(SegmentFile source, int sourceOffset, Record record) {
+        final SegmentFile segment = segmentFor(record.length);
+        final int offset = segment.writePosition;
+
+        final ByteBuffer from = source.buffer.duplicate();
+        from.position(sourceOffset);
+        from.limit(sourceOffset + record.length);
+        final ByteBuffer to = segment.buffer.duplicate();
+        to.position(offset);
+        to.put(from);
+
+        segment.writePosition += record.length;
+        if (record.operation == PUT) {
+            segment.liveBytes += record.length;
+        }
+        return location(segment.id, offset);
+    }
+
+    private SegmentFile segmentFor(int length) {
+        if (length > this.segmentSize - FILE_HEADER_SIZE) {
+            throw new IllegalStateException(
+                    "Ticket of " + length + " bytes does not fit in a segment");
+        }
+        if (this.activeSegment.writePosition + length > this.activeSegment.buffer.capacity()) {
+            roll();
+        }
+        return this.activeSegment;
+    }
+
+    /** Marks the record at the location as out of date. Called holding the write lock. */
+    private void release(long location) {
+        final SegmentFile segment = this.segments.get(segment(location));
+        if (segment != null) {
+            segment.liveBytes -= segment.buffer.getInt(offset(location));
+        }
+    }
+
+    private void roll() {
+        final int id = this.segments.isEmpty() ? 1 : this.segments.lastKey() + 1;
+        final File file =
+                new File(this.directory, String.format("%s%08d%s", FILE_PREFIX, id, FILE_SUFFIX));
+        try {
+            final MappedByteBuffer buffer = map(file, this.segmentSize);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            this.activeSegment = new SegmentFile(id, file, buffer);
+            this.segments.put(id, this.activeSegment);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create ticket segment " + file, e);
+        }
+    }
+
+    /** Rebuilds the index from a segment file. Called holding the write lock. */
+    private void load(File file) throws IOException {
+        final int id =
+                Integer.parseInt(
+                        file.getName()
+                                .substring(
+                                        FILE_PREFIX.length(),
+                                        file.getName().length() - FILE_SUFFIX.length()));
+        final MappedByteBuffer buffer = map(file, 0);
+        if (buffer.capacity() < FILE_HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            this.logger.warn("Ignoring {}, which is not a ticket segment", file);
+            return;
+        }
+
+        final SegmentFile segment = new SegmentFile(id, file, buffer);
+        this.segments.put(id, segment);
+
+        int offset = FILE_HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE
+                    || offset + length > buffer.capacity()
+                    || crc(buffer, offset, length)
+                            != buffer.getInt(offset + length - RECORD_TRAILER_SIZE)) {
+                this.logger.warn("Ignoring incomplete record at {} in {}", offset, file);
+                // Clear the rest of the segment so later appends leave no trace of the record
+                for (int i = offset; i < buffer.capacity(); i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                break;
+            }
+
+            final Record record = read(segment, offset);
+            final long location = location(id, offset);
+            if (record.operation == PUT) {
+                final Long previous = this.index.put(record.ticketId, location);
+                segment.liveBytes += length;
+                if (previous != null) {
+                    release(previous);
+                    spanSegments(record.ticketId, previous, location);
+                } else {
+                    count(record.type, 1);
+                }
+            } else {
+                final Long previous = this.index.remove(record.ticketId);
+                this.firstSegments.remove(record.ticketId);
+                if (previous != null) {
+                    count(buffer(previous).get(offset(previous) + TYPE_POSITION), -1);
+                    release(previous);
+                }
+            }
+            offset += length;
+        }
+
+        segment.writePosition = offset;
+        this.activeSegment = segment;
+    }
+
+    /**
+     * Remembers the segment of a superseded record if it differs from the segment of the new one.
+     * Called holding the write lock.
+     */
+    private void spanSegments(String ticketId, long previous, long location) {
+        if (segment(previous) != segment(location) && !this.firstSegments.containsKey(ticketId)) {
+            this.firstSegments.put(ticketId, segment(previous));
+        }
+    }
+
+    /**
+     * @param firstSegment as stored in a deletion record; 0 if unknown
+     * @return whether any segment from firstSegment up to, but excluding, segment remains
+     */
+    private boolean holdsEarlierRecords(long firstSegment, int segment) {
+        final Integer earliest = this.segments.ceilingKey((int) firstSegment);
+        return earliest != null && earliest < segment;
+    }
+
+    private File[] listSegmentFiles() {
+        final File[] files =
+                this.directory.listFiles(
+                        new FilenameFilter() {
+                            @Override
+                            public boolean accept(File dir, String name) {
+                                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+                            }
+                        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private ByteBuffer buffer(long location) {
+        return this.segments.get(segment(location)).buffer;
+    }
+
+    private static Record read(SegmentFile segment, int offset) {
+        final ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        final int length = buffer.getInt();
+        final byte operation = buffer.get();
+        final byte type = buffer.get();
+        final long checkAt = buffer.getLong();
+        final byte[] id = new byte[buffer.getShort() & 0xffff];
+        buffer.get(id);
+        final byte[] serialized =
+                new byte[length - RECORD_HEADER_SIZE - id.length - RECORD_TRAILER_SIZE];
+        buffer.get(serialized);
+        return new Record(
+                length,
+                operation,
+                type,
+                checkAt,
+                new String(id, StandardCharsets.UTF_8),
+                serialized);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer record = buffer.duplicate();
+        record.position(offset + 4);
+        record.limit(offset + length - RECORD_TRAILER_SIZE);
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (size > 0) {
+                raf.setLength(size);
+            }
+            // The mapping remains valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void count(byte type, int delta) {
+        if (type == SERVICE_TICKET) {
+            this.serviceTicketCount.addAndGet(delta);
+        } else if (type == TICKET_GRANTING_TICKET) {
+            this.sessionCount.addAndGet(delta);
+        }
+    }
+
+    private long timeToKillMillis(byte type) {
+        return type == SERVICE_TICKET
+                ? this.serviceTicketTimeToKillMillis
+                : this.ticketGrantingTicketTimeToKillMillis;
+    }
+
+    private static byte type(Ticket ticket) {
+        if (ticket instanceof ServiceTicket) {
+            return SERVICE_TICKET;
+        }
+        return ticket instanceof TicketGrantingTicket ? TICKET_GRANTING_TICKET : OTHER_TICKET;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xffffffffL);
+    }
+
+    private static int segment(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offset(long location) {
+        return (int) location;
+    }
+
+    private static final class SegmentFile {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        /** Guarded by the write lock */
+        private int writePosition = FILE_HEADER_SIZE;
+        /** Bytes of current records, guarded by the write lock */
+        private long liveBytes;
+
+        SegmentFile(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Record {
+        private final int length;
+        private final byte operation;
+        private final byte type;
+        private final long checkAt;
+        private final String ticketId;
+        private final byte[] serialized;
+
+        Record(
+                int length,
+                byte operation,
+                byte type,
+                long checkAt,
+                String ticketId,
+                byte[] serialized) {
+            this.length = length;
+            this.operation = operation;
+            this.type = type;
+            this.checkAt = checkAt;
+            this.ticketId = ticketId;
+            this.serialized = serialized;
+        }
+    }
+}
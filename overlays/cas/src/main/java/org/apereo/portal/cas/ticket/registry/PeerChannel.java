@@ -0,0 +1,858 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.apereo.portal.cas.metrics.Counter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Plain TCP transport between the nodes of a {@link PeerTicketRegistry}.
+ *
+ * <p>Changes are published to an outbox where later changes to the same ticket or entry replace
+ * earlier ones. Every <code>flushIntervalMillis</code>, or as soon as <code>batchSize</code>
+ * changes are waiting, the outbox is encoded once as a batch and queued for every peer. Each peer
+ * has one outbound connection, written by its own thread, which carries the batches and lookup
+ * requests; responses to lookups come back on the same connection. Batches queue up while a peer
+ * is unreachable, and the oldest are dropped once <code>maxQueuedBatches</code> are waiting.
+ *
+ * <p>Keys are assigned to owners on a {@link ConsistentHashRing} of this node and the peers it is
+ * connected to.
+ *
+ * <p>Inbound connections are only accepted from the addresses of the configured peers, and only
+ * once both ends have proven they know the shared secret: each sends a random nonce, and each
+ * answers with an HMAC-SHA256, keyed with the secret, of both nonces and its own address. Nothing is read from a
+ * connection before that, and tickets are read only if their classes are allowed by {@link
+ * TicketSerializer}. The traffic is not encrypted, so the port should still only be reachable on a
+ * private network.
+ *
+ */
+final class PeerChannel {
+    static final byte PUT_TICKET = 1;
+    static final byte DELETE_TICKET = 2;
+    static final byte PUT_ENTRY = 3;
+    static final byte REMOVE_ENTRY = 4;
+
+    private static final int MAGIC = 0x43415350;
+    private static final int VERSION = 2;
+
+    private static final byte BATCH = 1;
+    private static final byte LOOKUP = 2;
+    private static final byte LOOKUP_RESULT = 3;
+
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private static final int POINTS_PER_NODE = 128;
+    private static final int NONCE_SIZE = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_SIZE = 32;
+
+    /** A change to replicate; the ticket is serialized by the caller. */
+    static final class Delta {
+        final byte operation;
+        final String key;
+        final byte[] ticket;
+        final String value;
+        final long changedAt;
+
+        Delta(byte operation, String key, byte[] ticket, String value, long changedAt) {
+            this.operation = operation;
+            this.key = key;
+            this.ticket = ticket;
+            this.value = value;
+            this.changedAt = changedAt;
+        }
+
+        /** Changes to the same ticket or entry share an outbox key, so only the last is sent */
+        String outboxKey() {
+            return (this.operation == PUT_TICKET || this.operation == DELETE_TICKET ? "T" : "E")
+                    + this.key;
+        }
+    }
+
+    /** Applies what the peers send. Called on the connection threads. */
+    interface Receiver {
+        /**
+         * @param deltas changes in the order they were made
+         * @param oldestChange when the oldest change in the batch was published, in millis
+         */
+        void receive(List<Delta> deltas, long oldestChange);
+
+        /** @return the serialized ticket, null if this node does not have it */
+        byte[] lookup(String ticketId);
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String localAddress;
+    private final byte[] sharedSecret;
+    private final Receiver receiver;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+
+    private int batchSize = 256;
+    private long flushIntervalMillis = 5;
+    private int maxQueuedBatches = 1024;
+    private int connectTimeoutMillis = 1000;
+    private long reconnectDelayMillis = 1000;
+    private long lookupTimeoutMillis = 500;
+    private Counter droppedBatches;
+
+    private final LinkedHashMap<String, Delta> outbox = new LinkedHashMap<String, Delta>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Set<Socket> inboundSockets =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private final Object ringLock = new Object();
+    private volatile ConsistentHashRing ring;
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * @param localAddress host:port this node listens on, as the peers know it
+     * @param peerAddresses host:port of the other nodes; the local address is ignored if present
+     * @param sharedSecret key every node of the cluster authenticates with
+     */
+    PeerChannel(
+            String localAddress,
+            Collection<String> peerAddresses,
+            byte[] sharedSecret,
+            Receiver receiver) {
+        this.localAddress = localAddress;
+        this.sharedSecret = sharedSecret.clone();
+        this.receiver = receiver;
+        for (String address : peerAddresses) {
+            if (!address.equals(localAddress)) {
+                this.peers.put(address, new Peer(address));
+            }
+        }
+        this.ring =
+                new ConsistentHashRing(Collections.singleton(localAddress), POINTS_PER_NODE);
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    void setMaxQueuedBatches(int maxQueuedBatches) {
+        this.maxQueuedBatches = maxQueuedBatches;
+    }
+
+    void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    void setReconnectDelayMillis(long reconnectDelayMillis) {
+        this.reconnectDelayMillis = reconnectDelayMillis;
+    }
+
+    void setLookupTimeoutMillis(long lookupTimeoutMillis) {
+        this.lookupTimeoutMillis = lookupTimeoutMillis;
+    }
+
+    void setDroppedBatches(Counter droppedBatches) {
+        this.droppedBatches = droppedBatches;
+    }
+
+    String getLocalAddress() {
+        return this.localAddress;
+    }
+
+    /** @return this node and the peers it is connected to */
+    Set<String> getLiveNodes() {
+        return this.ring.getNodes();
+    }
+
+    /** @return the live node that owns the key */
+    String ownerOf(String key) {
+        return this.ring.ownerOf(key);
+    }
+
+    synchronized void start() throws IOException {
+        if (this.running) {
+            return;
+        }
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(port(this.localAddress)));
+        this.running = true;
+
+        startThread(
+                "ticket-registry-peer-acceptor",
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        accept();
+                    }
+                });
+        startThread(
+                "ticket-registry-peer-flusher",
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        flushContinuously();
+                    }
+                });
+        for (final Peer peer : this.peers.values()) {
+            startThread("ticket-registry-peer-sender-" + peer.address, peer);
+        }
+        this.logger.info(
+                "Replicating tickets from {} to peers {}", this.localAddress, this.peers.keySet());
+    }
+
+    /**
+     * Sends the changes still in the outbox, waiting up to <code>timeoutMillis</code> for them to
+     * be written to connected peers, and closes every connection.
+     */
+    synchronized void stop(long timeoutMillis) {
+        if (!this.running) {
+            return;
+        }
+        flush();
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (final Peer peer : this.peers.values()) {
+            while (peer.isConnected()
+                    && !peer.frames.isEmpty()
+                    && System.currentTimeMillis() < deadline) {
+                sleep(10);
+            }
+        }
+
+        this.running = false;
+        closeQuietly(this.serverSocket);
+        for (final Socket socket : this.inboundSockets) {
+            closeQuietly(socket);
+        }
+        for (final Peer peer : this.peers.values()) {
+            peer.disconnect(null);
+        }
+        for (final Thread thread : this.threads) {
+            thread.interrupt();
+        }
+        this.threads.clear();
+    }
+
+    /** Queues a change for the peers; a later change to the same key replaces it. */
+    void publish(Delta delta) {
+        if (this.peers.isEmpty()) {
+            return;
+        }
+        synchronized (this.outbox) {
+            this.outbox.put(delta.outboxKey(), delta);
+            if (this.outbox.size() >= this.batchSize) {
+                this.outbox.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Asks a peer for a ticket, waiting up to <code>lookupTimeoutMillis</code>.
+     *
+     * @return the serialized ticket, null if the peer does not have it
+     * @throws IOException if the peer is not connected or did not answer in time
+     */
+    byte[] lookup(String node, String ticketId) throws IOException {
+        final Peer peer = this.peers.get(node);
+        if (peer == null) {
+            throw new IOException(node + " is not a peer");
+        }
+        final long requestId = this.nextRequestId.incrementAndGet();
+        final PendingLookup pending = new PendingLookup();
+        peer.lookups.put(requestId, pending);
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(LOOKUP);
+            out.writeLong(requestId);
+            out.writeUTF(ticketId);
+            if (!peer.write(frame(bytes), true)) {
+                throw new IOException(node + " is not connected");
+            }
+            return pending.await(this.lookupTimeoutMillis);
+        } finally {
+            peer.lookups.remove(requestId);
+        }
+    }
+
+    /** Moves the outbox into the queue of every peer, as batches of at most batchSize. */
+    void flush() {
+        final List<Delta> deltas;
+        synchronized (this.outbox) {
+            if (this.outbox.isEmpty()) {
+                return;
+            }
+            deltas = new ArrayList<Delta>(this.outbox.values());
+            this.outbox.clear();
+        }
+        for (int from = 0; from < deltas.size(); from += this.batchSize) {
+            final byte[] frame;
+            try {
+                frame =
+                        encodeBatch(
+                                deltas.subList(
+                                        from, Math.min(deltas.size(), from + this.batchSize)));
+            } catch (IOException e) {
+                // Not expected when writing to memory
+                this.logger.error("Failed to encode ticket replication batch", e);
+                continue;
+            }
+            for (final Peer peer : this.peers.values()) {
+                peer.enqueue(frame);
+            }
+        }
+    }
+
+    private void flushContinuously() {
+        while (this.running) {
+            try {
+                synchronized (this.outbox) {
+                    if (this.outbox.size() < this.batchSize) {
+                        this.outbox.wait(this.flushIntervalMillis);
+                    }
+                }
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                this.logger.error("Failed to flush ticket replication batch", e);
+            }
+        }
+    }
+
+    private void accept() {
+        while (this.running) {
+            final Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (IOException e) {
+                if (this.running) {
+                    this.logger.warn("Failed to accept peer connection", e);
+                    sleep(this.reconnectDelayMillis);
+                }
+                continue;
+            }
+            if (!isPeerAddress(socket.getInetAddress())) {
+                this.logger.warn(
+                        "Rejected ticket registry connection from {}, which is not a peer",
+                        socket.getInetAddress());
+                closeQuietly(socket);
+                continue;
+            }
+            this.inboundSockets.add(socket);
+            final Thread thread =
+                    new Thread(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        serve(socket);
+                                    } finally {
+                                        inboundSockets.remove(socket);
+                                        closeQuietly(socket);
+                                    }
+                                }
+                            },
+                            "ticket-registry-peer-receiver-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Reads the batches and lookups a peer sends over its outbound connection. */
+    private void serve(Socket socket) {
+        String remote = String.valueOf(socket.getRemoteSocketAddress());
+        try {
+            socket.setTcpNoDelay(true);
+            final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // The peer proves it knows the secret before anything else is read
+            socket.setSoTimeout(this.connectTimeoutMillis);
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                this.logger.warn("Closing connection from {}, which is not a peer", remote);
+                return;
+            }
+            final byte[] peerNonce = new byte[NONCE_SIZE];
+            in.readFully(peerNonce);
+            final byte[] nonce = newNonce();
+            out.write(nonce);
+            out.write(mac("server", peerNonce, nonce, this.localAddress));
+            out.flush();
+            final String peerAddress = in.readUTF();
+            final byte[] peerMac = new byte[MAC_SIZE];
+            in.readFully(peerMac);
+            if (!MessageDigest.isEqual(peerMac, mac("client", nonce, peerNonce, peerAddress))) {
+                this.logger.warn(
+                        "Closing connection from {}, which does not know the shared secret",
+                        remote);
+                return;
+            }
+            socket.setSoTimeout(0);
+            remote = peerAddress;
+            this.logger.info("Receiving tickets from {}", remote);
+
+            while (this.running) {
+                final DataInputStream frame = new DataInputStream(readFrame(in));
+                final byte type = frame.readByte();
+                if (type == BATCH) {
+                    final long oldestChange = frame.readLong();
+                    final int count = frame.readInt();
+                    final List<Delta> deltas = new ArrayList<Delta>(count);
+                    for (int i = 0; i < count; i++) {
+                        deltas.add(readDelta(frame));
+                    }
+                    try {
+                        this.receiver.receive(deltas, oldestChange);
+                    } catch (RuntimeException e) {
+                        this.logger.error("Failed to apply changes from {}", remote, e);
+                    }
+                } else if (type == LOOKUP) {
+                    final long requestId = frame.readLong();
+                    final byte[] ticket = this.receiver.lookup(frame.readUTF());
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+                    final DataOutputStream response = new DataOutputStream(bytes);
+                    response.writeByte(LOOKUP_RESULT);
+                    response.writeLong(requestId);
+                    writeBytes(response, ticket);
+                    out.write(frame(bytes));
+                    out.flush();
+                } else {
+                    throw new IOException("Unexpected frame type " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (this.running) {
+                this.logger.info("Connection from {} closed: {}", remote, e.toString());
+            }
+        }
+    }
+
+    private byte[] newNonce() {
+        final byte[] nonce = new byte[NONCE_SIZE];
+        this.random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * @param role which end of the connection answers, so one end's answer can not be replayed as
+     *     the other's
+     * @param challenge the nonce of the end that checks the answer
+     * @param answerNonce the nonce of the end that answers
+     * @param address the address of the end that answers, so an answer can not be relayed from
+     *     another node
+     * @return the HMAC of all of them, keyed with the shared secret
+     */
+    private byte[] mac(String role, byte[] challenge, byte[] answerNonce, String address) {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(this.sharedSecret, MAC_ALGORITHM));
+            mac.update(role.getBytes(StandardCharsets.UTF_8));
+            mac.update(challenge);
+            mac.update(answerNonce);
+            mac.update(address.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required of every JRE
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean isPeerAddress(InetAddress address) {
+        for (final String peer : this.peers.keySet()) {
+            try {
+                for (final InetAddress peerAddress : InetAddress.getAllByName(host(peer))) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (IOException e) {
+                this.logger.debug("Unable to resolve peer {}", peer, e);
+            }
+        }
+        return false;
+    }
+
+    private void updateRing() {
+        synchronized (this.ringLock) {
+            final Set<String> nodes = new TreeSet<String>();
+            nodes.add(this.localAddress);
+            for (final Peer peer : this.peers.values()) {
+                if (peer.isConnected()) {
+                    nodes.add(peer.address);
+                }
+            }
+            if (!nodes.equals(this.ring.getNodes())) {
+                this.ring = new ConsistentHashRing(nodes, POINTS_PER_NODE);
+            }
+        }
+    }
+
+    private void startThread(String name, Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        this.threads.add(thread);
+        thread.start();
+    }
+
+    private static byte[] encodeBatch(List<Delta> deltas) throws IOException {
+        long oldestChange = Long.MAX_VALUE;
+        for (final Delta delta : deltas) {
+            oldestChange = Math.min(oldestChange, delta.changedAt);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(deltas.size() * 512);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(BATCH);
+        out.writeLong(oldestChange);
+        out.writeInt(deltas.size());
+        for (final Delta delta : deltas) {
+            out.writeByte(delta.operation);
+            out.writeUTF(delta.key);
+            if (delta.operation == PUT_TICKET) {
+                writeBytes(out, delta.ticket);
+            } else if (delta.operation == PUT_ENTRY) {
+                out.writeUTF(delta.value);
+            }
+        }
+        return frame(bytes);
+    }
+
+    private static Delta readDelta(DataInputStream in) throws IOException {
+        final byte operation = in.readByte();
+        final String key = in.readUTF();
+        switch (operation) {
+            case PUT_TICKET:
+                return new Delta(operation, key, readBytes(in), null, 0);
+            case PUT_ENTRY:
+                return new Delta(operation, key, null, in.readUTF(), 0);
+            case DELETE_TICKET:
+            case REMOVE_ENTRY:
+                return new Delta(operation, key, null, null, 0);
+            default:
+                throw new IOException("Unexpected operation " + operation);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /** @return the contents prefixed with their length */
+    private static byte[] frame(ByteArrayOutputStream contents) {
+        final byte[] frame = new byte[4 + contents.size()];
+        final int length = contents.size();
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        System.arraycopy(contents.toByteArray(), 0, frame, 4, length);
+        return frame;
+    }
+
+    private static ByteArrayInputStream readFrame(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        final byte[] frame = new byte[length];
+        in.readFully(frame);
+        return new ByteArrayInputStream(frame);
+    }
+
+    private static String host(String address) {
+        return address.substring(0, address.lastIndexOf(':'));
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /** The outbound connection to a peer and the thread writing queued batches to it. */
+    private final class Peer implements Runnable {
+        private final String address;
+        private final LinkedBlockingDeque<byte[]> frames = new LinkedBlockingDeque<byte[]>();
+        private final Map<Long, PendingLookup> lookups =
+                new ConcurrentHashMap<Long, PendingLookup>();
+
+        private Socket socket;
+        private DataOutputStream out;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        synchronized boolean isConnected() {
+            return this.socket != null;
+        }
+
+        void enqueue(byte[] frame) {
+            this.frames.offerLast(frame);
+            while (this.frames.size() > maxQueuedBatches) {
+                if (this.frames.pollFirst() != null && droppedBatches != null) {
+                    droppedBatches.increment();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    if (!isConnected()) {
+                        connect();
+                    }
+                    // Wake up now and then to reconnect even if there is nothing to send
+                    final byte[] frame =
+                            this.frames.pollFirst(reconnectDelayMillis, TimeUnit.MILLISECONDS);
+                    if (frame != null && !write(frame, this.frames.isEmpty())) {
+                        // Send it once connected again
+                        this.frames.offerFirst(frame);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (running) {
+                        logger.debug("Unable to connect to {}: {}", this.address, e.toString());
+                        sleep(reconnectDelayMillis);
+                    }
+                }
+            }
+        }
+
+        /** @return whether the frame was written; false if not connected or the write failed */
+        boolean write(byte[] frame, boolean flush) {
+            final Socket current;
+            synchronized (this) {
+                current = this.socket;
+                if (current == null) {
+                    return false;
+                }
+                try {
+                    this.out.write(frame);
+                    if (flush) {
+                        this.out.flush();
+                    }
+                    return true;
+                } catch (IOException e) {
+                    logger.info("Connection to {} failed: {}", this.address, e.toString());
+                }
+            }
+            disconnect(current);
+            return false;
+        }
+
+        private void connect() throws IOException {
+            final Socket newSocket = new Socket();
+            final DataInputStream newIn;
+            try {
+                newSocket.setTcpNoDelay(true);
+                newSocket.connect(
+                        new InetSocketAddress(host(this.address), port(this.address)),
+                        connectTimeoutMillis);
+                final DataOutputStream newOut =
+                        new DataOutputStream(
+                                new BufferedOutputStream(newSocket.getOutputStream(), 65536));
+                newIn =
+                        new DataInputStream(
+                                new BufferedInputStream(newSocket.getInputStream()));
+
+                // Both ends prove they know the secret; lookup results are only read from a peer
+                final byte[] nonce = newNonce();
+                newOut.writeInt(MAGIC);
+                newOut.writeByte(VERSION);
+                newOut.write(nonce);
+                newOut.flush();
+                newSocket.setSoTimeout(connectTimeoutMillis);
+                final byte[] peerNonce = new byte[NONCE_SIZE];
+                newIn.readFully(peerNonce);
+                final byte[] peerMac = new byte[MAC_SIZE];
+                newIn.readFully(peerMac);
+                if (!MessageDigest.isEqual(
+                        peerMac, mac("server", nonce, peerNonce, this.address))) {
+                    throw new IOException(
+                            this.address + " does not know the shared secret of the cluster");
+                }
+                newOut.writeUTF(localAddress);
+                newOut.write(mac("client", peerNonce, nonce, localAddress));
+                newOut.flush();
+                newSocket.setSoTimeout(0);
+
+                synchronized (this) {
+                    this.socket = newSocket;
+                    this.out = newOut;
+                }
+            } catch (IOException e) {
+                closeQuietly(newSocket);
+                throw e;
+            }
+            logger.info("Connected to ticket registry peer {}", this.address);
+            updateRing();
+
+            final DataInputStream responses = newIn;
+            final Thread reader =
+                    new Thread(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    readResponses(newSocket, responses);
+                                }
+                            },
+                            "ticket-registry-peer-responses-" + this.address);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readResponses(Socket responseSocket, DataInputStream in) {
+            try {
+                while (running) {
+                    final DataInputStream frame = new DataInputStream(readFrame(in));
+                    if (frame.readByte() != LOOKUP_RESULT) {
+                        throw new IOException("Unexpected frame from " + this.address);
+                    }
+                    final PendingLookup pending = this.lookups.remove(frame.readLong());
+                    final byte[] ticket = readBytes(frame);
+                    if (pending != null) {
+                        pending.complete(ticket);
+                    }
+                }
+            } catch (IOException e) {
+                if (running && !(e instanceof SocketException && responseSocket.isClosed())) {
+                    logger.info("Connection to {} closed: {}", this.address, e.toString());
+                }
+            }
+            disconnect(responseSocket);
+        }
+
+        /** Closes the connection if it is still the given one, or any connection if null. */
+        void disconnect(Socket expected) {
+            synchronized (this) {
+                if (this.socket == null || (expected != null && this.socket != expected)) {
+                    return;
+                }
+                closeQuietly(this.socket);
+                this.socket = null;
+                this.out = null;
+            }
+            for (final PendingLookup pending : this.lookups.values()) {
+                pending.abandon();
+            }
+            updateRing();
+        }
+    }
+
+    private static final class PendingLookup {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean answered;
+        private volatile byte[] ticket;
+
+        void complete(byte[] ticket) {
+            this.ticket = ticket;
+            this.answered = true;
+            this.done.countDown();
+        }
+
+        /** Releases the waiting caller without an answer, e.g. because the connection closed. */
+        void abandon() {
+            this.done.countDown();
+        }
+
+        byte[] await(long timeoutMillis) throws IOException {
+            try {
+                if (!this.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("No answer within " + timeoutMillis + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for an answer");
+            }
+            if (!this.answered) {
+                throw new IOException("Connection closed before answering");
+            }
+            return this.ticket;
+        }
+    }
+}
@@ -0,0 +1,598 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apereo.portal.cas.metrics.Counter;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.apereo.portal.cas.metrics.Timer;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistryState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Ticket registry for a cluster of CAS servers that replicates every ticket to its peers, so any
+ * node can serve any request without a sticky load balancer.
+ *
+ * <p>Each node keeps all tickets in a local {@link StripedTicketRegistry}. Tickets that are added,
+ * changed or deleted are sent to the peers over plain TCP in small batches (see {@link
+ * PeerChannel}), with later changes to a ticket replacing earlier ones that have not been sent
+ * yet. Tickets are serialized by {@link TicketSerializer}, so a service ticket carries only the id
+ * of its ticket granting ticket.
+ *
+ * <p>Ticket ids are assigned to owner nodes by consistent hashing over the nodes that are up. A
+ * ticket that is not found locally, because its batch has not arrived yet or because this node
+ * was down when it was created, is looked up from its owner and kept locally; ids the owner does
+ * not have either are remembered for <code>negativeCacheTimeToLiveMillis</code>, so repeated
+ * requests for an unknown ticket do not each wait for the owner. The owner is also
+ * the only node that returns an expired ticket from {@link #pollExpiredTickets(int)}, so the
+ * cleaner logs users out of their services once; the other nodes drop their copy when it expires.
+ *
+ * <p>Nodes only exchange tickets after proving to each other that they know the
+ * <code>sharedSecret</code>, and only read the classes {@link TicketSerializer} allows.
+ *
+ * <p>Tickets returned by this registry are proxies, so changes to them are replicated through the
+ * callbacks provided by AbstractDistributedTicketRegistry. Clearpass credentials are only
+ * replicated if the credentials cache is wrapped in a {@link ReplicatedCredentialsMap}.
+ *
+ */
+public class PeerTicketRegistry extends AbstractDistributedTicketRegistry
+        implements ExpiryTrackingTicketRegistry, TicketRegistryState {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final StripedTicketRegistry tickets;
+    private final TicketSerializer serializer = new TicketSerializer();
+    private final TicketSerializer.TicketResolver localResolver =
+            new TicketSerializer.TicketResolver() {
+                @Override
+                public Ticket getTicket(String ticketId) {
+                    return tickets.getTicket(ticketId);
+                }
+            };
+    private final TicketSerializer.TicketResolver remoteResolver =
+            new TicketSerializer.TicketResolver() {
+                @Override
+                public Ticket getTicket(String ticketId) {
+                    return getRawTicket(ticketId);
+                }
+            };
+
+    private String localAddress;
+    private List<String> peers = Collections.emptyList();
+    private String sharedSecret;
+    private int batchSize = 256;
+    private long flushIntervalMillis = 5;
+    private int maxQueuedBatches = 1024;
+    private long lookupTimeoutMillis = 500;
+    private volatile long negativeCacheTimeToLiveMillis = 1000;
+    private volatile int negativeCacheMaxSize = 10000;
+    private Metrics metrics;
+
+    /** Ids of tickets their owner did not have, mapped to when to stop believing it */
+    private final Map<String, Long> missingTickets =
+            new LinkedHashMap<String, Long>(16, 0.75f, false) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > negativeCacheMaxSize;
+                }
+            };
+
+    private volatile ReplicatedCredentialsMap credentialsMap;
+    private volatile PeerChannel channel;
+
+    private Timer replicationLagTimer;
+    private Timer remoteLookupTimer;
+    private Counter localHits;
+    private Counter remoteHits;
+    private Counter misses;
+
+    public PeerTicketRegistry() {
+        this.tickets = new StripedTicketRegistry();
+    }
+
+    /** @param tickMillis resolution of expiry checks */
+    PeerTicketRegistry(long tickMillis) {
+        this.tickets = new StripedTicketRegistry(4, tickMillis);
+    }
+
+    /** @param localAddress host:port to listen on for peers, as the peers know this node */
+    public void setLocalAddress(String localAddress) {
+        this.localAddress = localAddress;
+    }
+
+    /**
+     * @param peers host:port of every node in the cluster; the local address may be included, so
+     *     all nodes can share the setting
+     */
+    public void setPeers(String[] peers) {
+        final List<String> addresses = new ArrayList<String>();
+        for (final String peer : peers) {
+            if (!peer.trim().isEmpty()) {
+                addresses.add(peer.trim());
+            }
+        }
+        this.peers = addresses;
+    }
+
+    /**
+     * @param sharedSecret secret, of at least 16 characters, that every node of the cluster is
+     *     configured with; connections from nodes that do not know it are refused
+     */
+    public void setSharedSecret(String sharedSecret) {
+        this.sharedSecret = sharedSecret;
+    }
+
+    /**
+     * @param allowedClasses classes, or packages ending with a dot, that tickets may hold besides
+     *     those of CAS and the JDK classes {@link TicketSerializer} allows
+     */
+    public void setAllowedClasses(String[] allowedClasses) {
+        this.serializer.allow(Arrays.asList(allowedClasses));
+    }
+
+    /** @param batchSize most changes sent in one batch; a full batch is sent immediately */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /** @param flushIntervalMillis longest time a change waits to be sent */
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        Assert.isTrue(flushIntervalMillis > 0, "flushIntervalMillis must be positive");
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * @param maxQueuedBatches batches kept for an unreachable peer before the oldest are dropped
+     */
+    public void setMaxQueuedBatches(int maxQueuedBatches) {
+        this.maxQueuedBatches = maxQueuedBatches;
+    }
+
+    /** @param lookupTimeoutMillis longest time to wait for the owner of a missing ticket */
+    public void setLookupTimeoutMillis(long lookupTimeoutMillis) {
+        this.lookupTimeoutMillis = lookupTimeoutMillis;
+    }
+
+    /**
+     * @param negativeCacheTimeToLiveMillis how long a ticket id the owner did not have is answered
+     *     as missing without asking again; 0 disables. Keep it short: a ticket created on another
+     *     node may reach its owner after the owner was asked.
+     */
+    public void setNegativeCacheTimeToLiveMillis(long negativeCacheTimeToLiveMillis) {
+        this.negativeCacheTimeToLiveMillis = negativeCacheTimeToLiveMillis;
+    }
+
+    /** @param negativeCacheMaxSize the most missing ticket ids remembered at once */
+    public void setNegativeCacheMaxSize(int negativeCacheMaxSize) {
+        this.negativeCacheMaxSize = negativeCacheMaxSize;
+    }
+
+    /** @param metrics where to record replication lag and lookups; null to not record them */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Time after which a service ticket is first checked for expiry; should match
+     * st.timeToKillInSeconds.
+     *
+     * @param serviceTicketTimeToKillInSeconds
+     */
+    public void setServiceTicketTimeToKillInSeconds(long serviceTicketTimeToKillInSeconds) {
+        this.tickets.setServiceTicketTimeToKillInSeconds(serviceTicketTimeToKillInSeconds);
+    }
+
+    /**
+     * Time after which a ticket granting ticket is first checked for expiry; should match
+     * tgt.timeToKillInSeconds.
+     *
+     * @param ticketGrantingTicketTimeToKillInSeconds
+     */
+    public void setTicketGrantingTicketTimeToKillInSeconds(
+            long ticketGrantingTicketTimeToKillInSeconds) {
+        this.tickets.setTicketGrantingTicketTimeToKillInSeconds(
+                ticketGrantingTicketTimeToKillInSeconds);
+    }
+
+    /** Starts listening for peers and connecting to them. */
+    public synchronized void init() throws IOException {
+        if (this.channel != null) {
+            return;
+        }
+        Assert.hasText(this.localAddress, "localAddress is required");
+        Assert.isTrue(
+                this.sharedSecret != null && this.sharedSecret.trim().length() >= 16,
+                "sharedSecret of at least 16 characters is required");
+
+        if (this.metrics != null) {
+            this.replicationLagTimer =
+                    this.metrics.timer(
+                            "cas_ticket_replication_lag_seconds",
+                            "Time from a ticket change on a peer to its arrival here, "
+                                    + "subject to clock differences between the nodes");
+            this.remoteLookupTimer =
+                    this.metrics.timer(
+                            "cas_ticket_remote_lookup_seconds",
+                            "Time to look up tickets missing locally from their owner");
+            this.localHits = lookupCounter("local");
+            this.remoteHits = lookupCounter("remote");
+            this.misses = lookupCounter("miss");
+        }
+
+        final PeerChannel newChannel =
+                new PeerChannel(
+                        this.localAddress,
+                        this.peers,
+                        this.sharedSecret.trim().getBytes(StandardCharsets.UTF_8),
+                        new PeerChannel.Receiver() {
+                            @Override
+                            public void receive(List<PeerChannel.Delta> deltas, long oldestChange) {
+                                apply(deltas, oldestChange);
+                            }
+
+                            @Override
+                            public byte[] lookup(String ticketId) {
+                                return serialize(tickets.getTicket(ticketId));
+                            }
+                        });
+        newChannel.setBatchSize(this.batchSize);
+        newChannel.setFlushIntervalMillis(this.flushIntervalMillis);
+        newChannel.setMaxQueuedBatches(this.maxQueuedBatches);
+        newChannel.setLookupTimeoutMillis(this.lookupTimeoutMillis);
+        if (this.metrics != null) {
+            newChannel.setDroppedBatches(
+                    this.metrics.counter(
+                            "cas_ticket_replication_dropped_batches_total",
+                            "Batches of ticket changes dropped while a peer was unreachable"));
+        }
+        newChannel.start();
+        this.channel = newChannel;
+    }
+
+    /** Sends any outstanding changes and disconnects from the peers. */
+    public synchronized void shutdown() {
+        if (this.channel != null) {
+            this.channel.stop(TimeUnit.SECONDS.toMillis(1));
+            this.channel = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#addTicket(org.jasig.cas.ticket.Ticket)
+     */
+    public void addTicket(final Ticket ticket) {
+        Assert.notNull(ticket, "ticket cannot be null");
+        this.tickets.addTicket(ticket);
+        publish(ticket);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry#updateTicket(org.jasig.cas.ticket.Ticket)
+     */
+    protected void updateTicket(final Ticket ticket) {
+        this.tickets.addTicket(ticket);
+        publish(ticket);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry#needsCallback()
+     */
+    protected boolean needsCallback() {
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTicket(java.lang.String)
+     */
+    public Ticket getTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        return getProxiedTicketInstance(getRawTicket(ticketId));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#deleteTicket(java.lang.String)
+     */
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+        final boolean deleted = this.tickets.deleteTicket(ticketId);
+        // Peers may have the ticket even if it has not reached this node
+        publish(
+                new PeerChannel.Delta(
+                        PeerChannel.DELETE_TICKET,
+                        ticketId,
+                        null,
+                        null,
+                        System.currentTimeMillis()));
+        return deleted;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTickets()
+     */
+    public Collection<Ticket> getTickets() {
+        final Collection<Ticket> local = this.tickets.getTickets();
+        final List<Ticket> proxied = new ArrayList<Ticket>(local.size());
+        for (final Ticket ticket : local) {
+            proxied.add(getProxiedTicketInstance(ticket));
+        }
+        return Collections.unmodifiableCollection(proxied);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apereo.portal.cas.ticket.registry.ExpiryTrackingTicketRegistry#pollExpiredTickets(int)
+     */
+    public Collection<Ticket> pollExpiredTickets(int maxTickets) {
+        final Collection<Ticket> expired = this.tickets.pollExpiredTickets(maxTickets);
+        final List<Ticket> owned = new ArrayList<Ticket>(expired.size());
+        for (final Ticket ticket : expired) {
+            if (isLocal(ownerOf(ticket.getId()))) {
+                owned.add(ticket);
+            } else {
+                // The owner deletes it through the cleaner, which replicates the deletion
+                this.tickets.deleteTicket(ticket.getId());
+            }
+        }
+        return owned;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apereo.portal.cas.ticket.registry.ExpiryTrackingTicketRegistry#reschedule(java.lang.String, long)
+     */
+    public void reschedule(final String ticketId, final long checkAt) {
+        this.tickets.reschedule(ticketId, checkAt);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistryState#sessionCount()
+     */
+    public int sessionCount() {
+        return this.tickets.sessionCount();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistryState#serviceTicketCount()
+     */
+    public int serviceTicketCount() {
+        return this.tickets.serviceTicketCount();
+    }
+
+    /** @return the number of tickets held by this node */
+    public int size() {
+        return this.tickets.size();
+    }
+
+    /** @return this node and the peers it is connected to */
+    public Set<String> getLiveNodes() {
+        final PeerChannel current = this.channel;
+        return current != null
+                ? current.getLiveNodes()
+                : Collections.singleton(this.localAddress);
+    }
+
+    /** @return the live node that owns the ticket */
+    String ownerOf(String ticketId) {
+        final PeerChannel current = this.channel;
+        return current != null ? current.ownerOf(ticketId) : this.localAddress;
+    }
+
+    /** Called by {@link ReplicatedCredentialsMap} to receive the entries changed on peers. */
+    void setCredentialsMap(ReplicatedCredentialsMap credentialsMap) {
+        this.credentialsMap = credentialsMap;
+    }
+
+    /** Replicates a change to the credentials cache; a null value removes the entry. */
+    void publishCredentials(String key, String value) {
+        publish(
+                new PeerChannel.Delta(
+                        value != null ? PeerChannel.PUT_ENTRY : PeerChannel.REMOVE_ENTRY,
+                        key,
+                        null,
+                        value,
+                        System.currentTimeMillis()));
+    }
+
+    private Ticket getRawTicket(String ticketId) {
+        final Ticket ticket = this.tickets.getTicket(ticketId);
+        if (ticket != null) {
+            increment(this.localHits);
+            return ticket;
+        }
+
+        final PeerChannel current = this.channel;
+        final String owner = ownerOf(ticketId);
+        if (current == null || isLocal(owner) || isKnownMissing(ticketId)) {
+            increment(this.misses);
+            return null;
+        }
+        final long start = System.nanoTime();
+        final byte[] serialized;
+        try {
+            serialized = current.lookup(owner, ticketId);
+        } catch (IOException e) {
+            // Not remembered: the owner may well have the ticket
+            this.logger.debug("Lookup of {} from {} failed", ticketId, owner, e);
+            increment(this.misses);
+            return null;
+        } finally {
+            if (this.remoteLookupTimer != null) {
+                this.remoteLookupTimer.recordSince(start);
+            }
+        }
+        if (serialized == null) {
+            rememberMissing(ticketId);
+            increment(this.misses);
+            return null;
+        }
+        final Ticket remote = deserialize(serialized, this.remoteResolver);
+        if (remote == null) {
+            increment(this.misses);
+            return null;
+        }
+        increment(this.remoteHits);
+        this.tickets.addTicket(remote);
+        return remote;
+    }
+
+    private boolean isKnownMissing(String ticketId) {
+        synchronized (this.missingTickets) {
+            final Long expires = this.missingTickets.get(ticketId);
+            if (expires == null) {
+                return false;
+            }
+            if (expires < System.currentTimeMillis()) {
+                this.missingTickets.remove(ticketId);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private void rememberMissing(String ticketId) {
+        final long timeToLive = this.negativeCacheTimeToLiveMillis;
+        if (timeToLive > 0) {
+            synchronized (this.missingTickets) {
+                this.missingTickets.put(ticketId, System.currentTimeMillis() + timeToLive);
+            }
+        }
+    }
+
+    private void apply(List<PeerChannel.Delta> deltas, long oldestChange) {
+        if (this.replicationLagTimer != null) {
+            this.replicationLagTimer.record(
+                    TimeUnit.MILLISECONDS.toNanos(
+                            Math.max(0, System.currentTimeMillis() - oldestChange)));
+        }
+        final ReplicatedCredentialsMap credentials = this.credentialsMap;
+        for (final PeerChannel.Delta delta : deltas) {
+            switch (delta.operation) {
+                case PeerChannel.PUT_TICKET:
+                    // Null if the ticket granting ticket it refers to has since been deleted
+                    final Ticket ticket = deserialize(delta.ticket, this.localResolver);
+                    if (ticket != null) {
+                        this.tickets.addTicket(ticket);
+                    }
+                    break;
+                case PeerChannel.DELETE_TICKET:
+                    this.tickets.deleteTicket(delta.key);
+                    break;
+                case PeerChannel.PUT_ENTRY:
+                    if (credentials != null) {
+                        credentials.apply(delta.key, delta.value);
+                    }
+                    break;
+                case PeerChannel.REMOVE_ENTRY:
+                    if (credentials != null) {
+                        credentials.apply(delta.key, null);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void publish(Ticket ticket) {
+        final byte[] serialized = serialize(ticket);
+        if (serialized != null) {
+            publish(
+                    new PeerChannel.Delta(
+                            PeerChannel.PUT_TICKET,
+                            ticket.getId(),
+                            serialized,
+                            null,
+                            System.currentTimeMillis()));
+        }
+    }
+
+    private void publish(PeerChannel.Delta delta) {
+        final PeerChannel current = this.channel;
+        if (current != null) {
+            current.publish(delta);
+        }
+    }
+
+    private byte[] serialize(Ticket ticket) {
+        if (ticket == null) {
+            return null;
+        }
+        try {
+            return this.serializer.serialize(ticket);
+        } catch (IOException e) {
+            this.logger.error("Failed to serialize ticket {} for peers", ticket.getId(), e);
+            return null;
+        }
+    }
+
+    private Ticket deserialize(byte[] serialized, TicketSerializer.TicketResolver resolver) {
+        if (serialized == null) {
+            return null;
+        }
+        try {
+            return this.serializer.deserialize(serialized, resolver);
+        } catch (IOException e) {
+            this.logger.error("Failed to read ticket from peer", e);
+            return null;
+        }
+    }
+
+    private boolean isLocal(String node) {
+        return node == null || node.equals(this.localAddress);
+    }
+
+    private Counter lookupCounter(String result) {
+        return this.metrics.counter(
+                "cas_ticket_lookups_total",
+                "Ticket lookups by where the ticket was found: on this node, "
+                        + "from its owner, or not at all",
+                "result",
+                result);
+    }
+
+    private static void increment(Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Clearpass credentials cache that replicates its changes to the peers of a {@link
+ * PeerTicketRegistry}, so the clearPass service and the TicketRegistryDecorator find the same
+ * entries on every node. Wraps the cache that holds the entries locally, such as the
+ * EhcacheBackedMap.
+ *
+ * <p>The cached passwords are sent to the peers in the clear, like the tickets.
+ *
+ */
+public class ReplicatedCredentialsMap implements Map<String, String> {
+    private final Map<String, String> credentials;
+    private final PeerTicketRegistry ticketRegistry;
+
+    /**
+     * @param credentials the local cache
+     * @param ticketRegistry the registry whose peers receive the changes
+     */
+    public ReplicatedCredentialsMap(
+            Map<String, String> credentials, PeerTicketRegistry ticketRegistry) {
+        this.credentials = credentials;
+        this.ticketRegistry = ticketRegistry;
+        ticketRegistry.setCredentialsMap(this);
+    }
+
+    @Override
+    public int size() {
+        return this.credentials.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.credentials.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.credentials.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return this.credentials.containsValue(value);
+    }
+
+    @Override
+    public String get(Object key) {
+        return this.credentials.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        final String previous = this.credentials.put(key, value);
+        this.ticketRegistry.publishCredentials(key, value);
+        return previous;
+    }
+
+    @Override
+    public String remove(Object key) {
+        final String previous = this.credentials.remove(key);
+        if (key instanceof String) {
+            this.ticketRegistry.publishCredentials((String) key, null);
+        }
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> entries) {
+        for (final Map.Entry<? extends String, ? extends String> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (final String key : new ArrayList<String>(this.credentials.keySet())) {
+            remove(key);
+        }
+    }
+
+    /** Read only, so every change goes through this map and is replicated. */
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(this.credentials.keySet());
+    }
+
+    /** Read only, so every change goes through this map and is replicated. */
+    @Override
+    public Collection<String> values() {
+        return Collections.unmodifiableCollection(this.credentials.values());
+    }
+
+    /** Read only, so every change goes through this map and is replicated. */
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return Collections.unmodifiableSet(this.credentials.entrySet());
+    }
+
+    /** Applies a change made on a peer; a null value removes the entry. */
+    void apply(String key, String value) {
+        if (value != null) {
+            this.credentials.put(key, value);
+        } else {
+            this.credentials.remove(key);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.registry.AbstractTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistryState;
+import org.springframework.util.Assert;
+
+/**
+ * In-memory ticket registry split into independently locked segments, intended as a drop-in
+ * replacement for DefaultTicketRegistry.
+ *
+ * <p>Lookups do not lock. Changes lock only the segment holding the ticket, so a segment resizes
+ * without stalling the rest of the registry. Each segment tracks when its tickets should be checked
+ * for expiry in a {@link TicketExpiryWheel}, and expired service tickets are removed a few at a
+ * time as tickets are added rather than waiting for the next run of the ticket registry cleaner.
+ * Ticket granting tickets are still removed by the cleaner, which also logs the user out of their
+ * services and removes any cached credentials; {@link IncrementalTicketRegistryCleaner} finds them
+ * through {@link #pollExpiredTickets(int)}.
+ *
+ * <p>Tickets are held as the same objects DefaultTicketRegistry holds, so heap use is about the
+ * same; the ticketRegistryBenchmark task compares the two.
+ *
+ */
+public class StripedTicketRegistry extends AbstractTicketRegistry
+        implements ExpiryTrackingTicketRegistry, TicketRegistryState {
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+    private static final int WHEEL_SIZE = 512;
+    private static final long TICK_MILLIS = 1000;
+    private static final int INLINE_EXPIRY_BATCH_SIZE = 16;
+    private static final int EXPIRED_QUEUE_CAPACITY = 1024;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final AtomicInteger nextSegment = new AtomicInteger();
+
+    private volatile long serviceTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(10);
+    private volatile long ticketGrantingTicketTimeToKillMillis = TimeUnit.SECONDS.toMillis(7200);
+
+    public StripedTicketRegistry() {
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /** @param concurrencyLevel number of segments, rounded up to a power of two */
+    public StripedTicketRegistry(int concurrencyLevel) {
+        this(concurrencyLevel, TICK_MILLIS);
+    }
+
+    /**
+     * @param concurrencyLevel number of segments, rounded up to a power of two
+     * @param tickMillis resolution of expiry checks
+     */
+    StripedTicketRegistry(int concurrencyLevel, long tickMillis) {
+        Assert.isTrue(concurrencyLevel > 0, "concurrencyLevel must be positive");
+        int segmentBits = 0;
+        while ((1 << segmentBits) < concurrencyLevel) {
+            segmentBits++;
+        }
+
+        final long now = System.currentTimeMillis();
+        this.segments = new Segment[1 << segmentBits];
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment(now, tickMillis);
+        }
+        this.segmentShift = 32 - segmentBits;
+    }
+
+    /**
+     * Time after which a service ticket is first checked for expiry; should match
+     * st.timeToKillInSeconds.
+     *
+     * @param serviceTicketTimeToKillInSeconds
+     */
+    public void setServiceTicketTimeToKillInSeconds(long serviceTicketTimeToKillInSeconds) {
+        this.serviceTicketTimeToKillMillis =
+                TimeUnit.SECONDS.toMillis(serviceTicketTimeToKillInSeconds);
+    }
+
+    /**
+     * Time after which a ticket granting ticket is first checked for expiry; should match
+     * tgt.timeToKillInSeconds.
+     *
+     * @param ticketGrantingTicketTimeToKillInSeconds
+     */
+    public void setTicketGrantingTicketTimeToKillInSeconds(
+            long ticketGrantingTicketTimeToKillInSeconds) {
+        this.ticketGrantingTicketTimeToKillMillis =
+                TimeUnit.SECONDS.toMillis(ticketGrantingTicketTimeToKillInSeconds);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#addTicket(org.jasig.cas.ticket.Ticket)
+     */
+    public void addTicket(final Ticket ticket) {
+        Assert.notNull(ticket, "ticket cannot be null");
+
+        final String ticketId = ticket.getId();
+        final long now = System.currentTimeMillis();
+
+        final Segment segment = segmentFor(ticketId);
+        synchronized (segment) {
+            final Ticket previous = segment.tickets.put(ticketId, ticket);
+            if (previous == null) {
+                segment.added(ticket);
+                segment.wheel.schedule(ticketId, now + timeToKillMillis(ticket));
+            } else {
+                segment.removed(previous);
+                segment.added(ticket);
+            }
+        }
+
+        checkDueTickets(segment, now);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTicket(java.lang.String)
+     */
+    public Ticket getTicket(final String ticketId) {
+        if (ticketId == null) {
+            return null;
+        }
+        return segmentFor(ticketId).tickets.get(ticketId);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#deleteTicket(java.lang.String)
+     */
+    public boolean deleteTicket(final String ticketId) {
+        if (ticketId == null) {
+            return false;
+        }
+
+        final Segment segment = segmentFor(ticketId);
+        synchronized (segment) {
+            final Ticket ticket = segment.tickets.remove(ticketId);
+            if (ticket == null) {
+                return false;
+            }
+            segment.removed(ticket);
+            return true;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistry#getTickets()
+     */
+    public Collection<Ticket> getTickets() {
+        final List<Ticket> tickets = new ArrayList<Ticket>(size());
+        for (final Segment segment : this.segments) {
+            tickets.addAll(segment.tickets.values());
+        }
+        return Collections.unmodifiableCollection(tickets);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistryState#sessionCount()
+     */
+    public int sessionCount() {
+        int count = 0;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                count += segment.tickets.size() - segment.serviceTicketCount;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.jasig.cas.ticket.registry.TicketRegistryState#serviceTicketCount()
+     */
+    public int serviceTicketCount() {
+        int count = 0;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                count += segment.serviceTicketCount;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apereo.portal.cas.ticket.registry.ExpiryTrackingTicketRegistry#pollExpiredTickets(int)
+     */
+    public Collection<Ticket> pollExpiredTickets(int maxTickets) {
+        final List<Ticket> expired = new ArrayList<Ticket>();
+        final List<String> due = new ArrayList<String>();
+        final long now = System.currentTimeMillis();
+
+        // Start from a different segment each time so that no segment is starved
+        final int start = this.nextSegment.getAndIncrement();
+        for (int i = 0; i < this.segments.length && expired.size() < maxTickets; i++) {
+            final Segment segment = this.segments[(start + i) & (this.segments.length - 1)];
+            synchronized (segment) {
+                while (expired.size() < maxTickets && !segment.expired.isEmpty()) {
+                    final Ticket ticket = segment.tickets.get(segment.expired.poll());
+                    if (ticket != null) {
+                        expired.add(ticket);
+                    }
+                }
+
+                due.clear();
+                segment.wheel.poll(now, maxTickets - expired.size(), due);
+                for (final String ticketId : due) {
+                    final Ticket ticket = segment.tickets.get(ticketId);
+                    if (ticket == null) {
+                        continue;
+                    }
+                    if (ticket.isExpired()) {
+                        expired.add(ticket);
+                    } else {
+                        segment.wheel.schedule(ticketId, now + timeToKillMillis(ticket));
+                    }
+                }
+            }
+        }
+        return expired;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.apereo.portal.cas.ticket.registry.ExpiryTrackingTicketRegistry#reschedule(java.lang.String, long)
+     */
+    public void reschedule(final String ticketId, final long checkAt) {
+        final Segment segment = segmentFor(ticketId);
+        synchronized (segment) {
+            if (segment.tickets.containsKey(ticketId)) {
+                segment.wheel.schedule(ticketId, checkAt);
+            }
+        }
+    }
+
+    /** @return the number of tickets in the registry */
+    public int size() {
+        int count = 0;
+        for (final Segment segment : this.segments) {
+            count += segment.tickets.size();
+        }
+        return count;
+    }
+
+    /** Check the due tickets of the segment, removing expired service tickets. */
+    private void checkDueTickets(Segment segment, long now) {
+        final List<String> due = new ArrayList<String>(INLINE_EXPIRY_BATCH_SIZE);
+        synchronized (segment) {
+            if (segment.wheel.poll(now, INLINE_EXPIRY_BATCH_SIZE, due) == 0) {
+                return;
+            }
+
+            for (final String ticketId : due) {
+                final Ticket ticket = segment.tickets.get(ticketId);
+                if (ticket == null) {
+                    // Already deleted
+                    continue;
+                }
+                if (!ticket.isExpired()) {
+                    segment.wheel.schedule(ticketId, now + timeToKillMillis(ticket));
+                } else if (ticket instanceof ServiceTicket) {
+                    segment.tickets.remove(ticketId);
+                    segment.removed(ticket);
+                } else if (segment.expired.size() < EXPIRED_QUEUE_CAPACITY) {
+                    // Hand over to the cleaner
+                    segment.expired.add(ticketId);
+                } else {
+                    // No cleaner is draining the queue, check again later
+                    segment.wheel.schedule(ticketId, now + timeToKillMillis(ticket));
+                }
+            }
+        }
+    }
+
+    private long timeToKillMillis(Ticket ticket) {
+        return ticket instanceof ServiceTicket
+                ? this.serviceTicketTimeToKillMillis
+                : this.ticketGrantingTicketTimeToKillMillis;
+    }
+
+    private Segment segmentFor(String ticketId) {
+        if (this.segmentShift == 32) {
+            return this.segments[0];
+        }
+        // Select by the high bits of a mixed hash, the maps within each segment use the low bits
+        return this.segments[(ticketId.hashCode() * 0x9E3779B9) >>> this.segmentShift];
+    }
+
+    /**
+     * Tickets by id. Changes are made holding the segment lock so that the count and wheel stay
+     * consistent with the tickets. Expired ticket granting tickets found while adding tickets are
+     * queued for {@link #pollExpiredTickets(int)}.
+     */
+    private static final class Segment {
+        private final Map<String, Ticket> tickets = new ConcurrentHashMap<String, Ticket>();
+        private final TicketExpiryWheel wheel;
+        private final ArrayDeque<String> expired = new ArrayDeque<String>();
+        private int serviceTicketCount;
+
+        Segment(long now, long tickMillis) {
+            this.wheel = new TicketExpiryWheel(WHEEL_SIZE, tickMillis, now);
+        }
+
+        void added(Ticket ticket) {
+            if (ticket instanceof ServiceTicket) {
+                this.serviceTicketCount++;
+            }
+        }
+
+        void removed(Ticket ticket) {
+            if (ticket instanceof ServiceTicket) {
+                this.serviceTicketCount--;
+            }
+        }
+    }
+}
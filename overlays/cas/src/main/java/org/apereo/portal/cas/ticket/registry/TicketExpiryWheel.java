@@ -0,0 +1,152 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.List;
+
+/**
+ * Hashed time wheel of ticket ids and the time at which each ticket should next be checked for
+ * expiry. Scheduling is constant time and polling only visits the buckets that have come due, so
+ * expiry never requires a scan of every ticket. Times are kept as whole ticks, rounded up, so an
+ * id is never polled before its deadline.
+ *
+ * <p>Ids are not removed when a ticket is deleted; a polled id whose ticket is gone is simply
+ * ignored by the caller. Not thread-safe, callers synchronize.
+ *
+ */
+final class TicketExpiryWheel {
+    private static final int INITIAL_BUCKET_SIZE = 8;
+
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long tickMillis;
+    private final long epoch;
+
+    /** The oldest tick that may still hold due entries */
+    private int cursor;
+
+    private int size;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     * @param tickMillis time covered by each bucket
+     * @param now current time
+     */
+    TicketExpiryWheel(int wheelSize, long tickMillis, long now) {
+        int buckets = 1;
+        while (buckets < wheelSize) {
+            buckets <<= 1;
+        }
+        this.buckets = new Bucket[buckets];
+        this.mask = buckets - 1;
+        this.tickMillis = tickMillis;
+        this.epoch = now;
+    }
+
+    /** Schedule the ticket to be checked at the deadline. */
+    void schedule(String ticketId, long deadline) {
+        final long ticks = (deadline - this.epoch + this.tickMillis - 1) / this.tickMillis;
+        final int tick = (int) Math.min(Math.max(ticks, this.cursor), Integer.MAX_VALUE);
+        final int index = tick & this.mask;
+        Bucket bucket = this.buckets[index];
+        if (bucket == null) {
+            bucket = new Bucket();
+            this.buckets[index] = bucket;
+        }
+        bucket.add(ticketId, tick);
+        this.size++;
+    }
+
+    /**
+     * Remove ticket ids whose deadline has passed.
+     *
+     * @param now current time
+     * @param max the most ids to remove
+     * @param due receives the removed ids
+     * @return number of ids removed
+     */
+    int poll(long now, int max, List<String> due) {
+        final int nowTick = (int) ((now - this.epoch) / this.tickMillis);
+        if (nowTick - this.cursor > this.mask) {
+            // A single rotation visits every bucket
+            this.cursor = nowTick - this.mask;
+        }
+
+        int polled = 0;
+        while (polled < max) {
+            final int index = this.cursor & this.mask;
+            final Bucket bucket = this.buckets[index];
+            if (bucket != null) {
+                polled += bucket.drain(nowTick, max - polled, due);
+                if (bucket.size == 0) {
+                    this.buckets[index] = null;
+                }
+            }
+            if (polled >= max || this.cursor >= nowTick) {
+                break;
+            }
+            this.cursor++;
+        }
+
+        this.size -= polled;
+        return polled;
+    }
+
+    /** @return number of scheduled ids, including those of deleted tickets */
+    int size() {
+        return this.size;
+    }
+
+    private static final class Bucket {
+        private String[] ticketIds = new String[INITIAL_BUCKET_SIZE];
+        private int[] ticks = new int[INITIAL_BUCKET_SIZE];
+        private int size;
+
+        void add(String ticketId, int tick) {
+            if (this.size == this.ticketIds.length) {
+                final int capacity = this.size + (this.size >> 1);
+                final String[] ticketIds = new String[capacity];
+                final int[] ticks = new int[capacity];
+                System.arraycopy(this.ticketIds, 0, ticketIds, 0, this.size);
+                System.arraycopy(this.ticks, 0, ticks, 0, this.size);
+                this.ticketIds = ticketIds;
+                this.ticks = ticks;
+            }
+            this.ticketIds[this.size] = ticketId;
+            this.ticks[this.size] = tick;
+            this.size++;
+        }
+
+        int drain(int nowTick, int max, List<String> due) {
+            int drained = 0;
+            int kept = 0;
+            for (int i = 0; i < this.size; i++) {
+                if (drained < max && this.ticks[i] <= nowTick) {
+                    due.add(this.ticketIds[i]);
+                    drained++;
+                } else {
+                    this.ticketIds[kept] = this.ticketIds[i];
+                    this.ticks[kept] = this.ticks[i];
+                    kept++;
+                }
+            }
+            for (int i = kept; i < this.size; i++) {
+                this.ticketIds[i] = null;
+            }
+            this.size = kept;
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+
+/**
+ * Java serialization of a single ticket. Any ticket granting ticket referenced by the ticket, such
+ * as the one that granted a service ticket, is written as its id and looked up again when the
+ * ticket is read, so each stored ticket holds only its own state.
+ *
+ * <p>Only the classes CAS keeps in tickets are read: the tickets, authentications, principals,
+ * services and expiration policies of CAS, boxed primitives, strings, dates and the common
+ * collections. Any other class in the stream, such as one a peer that is not a CAS server sent,
+ * fails the read with an {@link InvalidClassException} before the class is loaded. Tickets holding
+ * other classes, for example in principal attributes, need them allowed with {@link
+ * #allow(String)}.
+ *
+ */
+final class TicketSerializer {
+    /** Packages whose classes are allowed, with the trailing dot */
+    private static final List<String> ALLOWED_PACKAGES =
+            Arrays.asList("org.jasig.cas.authentication.", "org.jasig.cas.ticket.");
+
+    private static final Set<String> ALLOWED_CLASSES =
+            new HashSet<String>(
+                    Arrays.asList(
+                            TicketReference.class.getName(),
+                            "org.jasig.cas.util.HttpClient",
+                            "java.lang.Boolean",
+                            "java.lang.Byte",
+                            "java.lang.Character",
+                            "java.lang.Double",
+                            "java.lang.Enum",
+                            "java.lang.Float",
+                            "java.lang.Integer",
+                            "java.lang.Long",
+                            "java.lang.Number",
+                            "java.lang.Short",
+                            "java.lang.String",
+                            "java.lang.String$CaseInsensitiveComparator",
+                            "java.util.ArrayList",
+                            "java.util.Arrays$ArrayList",
+                            "java.util.Collections$EmptyList",
+                            "java.util.Collections$EmptyMap",
+                            "java.util.Collections$EmptySet",
+                            "java.util.Collections$SingletonList",
+                            "java.util.Collections$SingletonMap",
+                            "java.util.Collections$SingletonSet",
+                            "java.util.Collections$SynchronizedCollection",
+                            "java.util.Collections$SynchronizedList",
+                            "java.util.Collections$SynchronizedMap",
+                            "java.util.Collections$SynchronizedRandomAccessList",
+                            "java.util.Collections$SynchronizedSet",
+                            "java.util.Collections$UnmodifiableCollection",
+                            "java.util.Collections$UnmodifiableList",
+                            "java.util.Collections$UnmodifiableMap",
+                            "java.util.Collections$UnmodifiableRandomAccessList",
+                            "java.util.Collections$UnmodifiableSet",
+                            "java.util.Collections$UnmodifiableSortedMap",
+                            "java.util.Collections$UnmodifiableSortedSet",
+                            "java.util.Date",
+                            "java.util.HashMap",
+                            "java.util.HashSet",
+                            "java.util.LinkedHashMap",
+                            "java.util.LinkedHashSet",
+                            "java.util.LinkedList",
+                            "java.util.TreeMap",
+                            "java.util.TreeSet",
+                            "java.util.concurrent.ConcurrentHashMap",
+                            "java.util.concurrent.ConcurrentHashMap$Segment"));
+
+    private final List<String> allowedPackages = new ArrayList<String>(ALLOWED_PACKAGES);
+    private final Set<String> allowedClasses = new HashSet<String>(ALLOWED_CLASSES);
+
+    /** Looks up referenced ticket granting tickets while a ticket is read. */
+    interface TicketResolver {
+        /** @return the ticket, null if it no longer exists */
+        Ticket getTicket(String ticketId);
+    }
+
+    /**
+     * Allows tickets to hold another class, or the classes of a package if the name ends with a
+     * dot. Not thread safe; call before the first ticket is read.
+     */
+    void allow(String name) {
+        if (name.endsWith(".")) {
+            this.allowedPackages.add(name);
+        } else {
+            this.allowedClasses.add(name);
+        }
+    }
+
+    /** Allows each of the names, see {@link #allow(String)} */
+    void allow(Collection<String> names) {
+        for (final String name : names) {
+            allow(name);
+        }
+    }
+
+    byte[] serialize(Ticket ticket) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        final ObjectOutputStream out = new ReferencingOutputStream(bytes, ticket);
+        out.writeObject(ticket);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /** @return the ticket, null if a ticket it references no longer exists */
+    Ticket deserialize(byte[] serialized, TicketResolver resolver) throws IOException {
+        final ObjectInputStream in =
+                new ResolvingInputStream(new ByteArrayInputStream(serialized), resolver);
+        try {
+            return (Ticket) in.readObject();
+        } catch (MissingTicketException e) {
+            return null;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read ticket", e);
+        } catch (ClassCastException e) {
+            throw new IOException("Unable to read ticket", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class ReferencingOutputStream extends ObjectOutputStream {
+        private final Ticket ticket;
+
+        ReferencingOutputStream(OutputStream out, Ticket ticket) throws IOException {
+            super(out);
+            this.ticket = ticket;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj != this.ticket && obj instanceof TicketGrantingTicket) {
+                return new TicketReference(((TicketGrantingTicket) obj).getId());
+            }
+            return obj;
+        }
+    }
+
+    boolean isAllowed(String className) {
+        // Arrays are allowed if their elements are: [[I, [Ljava.lang.String;
+        String name = className;
+        while (name.startsWith("[")) {
+            name = name.substring(1);
+        }
+        if (name.length() != className.length()) {
+            if (name.length() == 1) {
+                return true;
+            }
+            if (!name.startsWith("L") || !name.endsWith(";")) {
+                return false;
+            }
+            name = name.substring(1, name.length() - 1);
+        }
+        if (this.allowedClasses.contains(name)) {
+            return true;
+        }
+        for (final String allowedPackage : this.allowedPackages) {
+            if (name.startsWith(allowedPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final class ResolvingInputStream extends ObjectInputStream {
+        private final TicketResolver resolver;
+
+        ResolvingInputStream(InputStream in, TicketResolver resolver) throws IOException {
+            super(in);
+            this.resolver = resolver;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            if (!isAllowed(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Not allowed in a ticket");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed in a ticket");
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof TicketReference) {
+                final String ticketId = ((TicketReference) obj).ticketId;
+                final Ticket ticket = this.resolver.getTicket(ticketId);
+                if (ticket == null) {
+                    throw new MissingTicketException(ticketId);
+                }
+                return ticket;
+            }
+            return obj;
+        }
+    }
+
+    private static final class TicketReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String ticketId;
+
+        TicketReference(String ticketId) {
+            this.ticketId = ticketId;
+        }
+    }
+
+    private static final class MissingTicketException extends InvalidObjectException {
+        private static final long serialVersionUID = 1L;
+
+        MissingTicketException(String ticketId) {
+            super("Referenced ticket " + ticketId + " no longer exists");
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ */
+public class Argon2PasswordVerifierTest {
+
+    // Argon2id of "secret" with m=64, t=1, p=1, computed with Bouncy Castle's Argon2BytesGenerator
+    private static final String KNOWN_HASH =
+            "(ARGON2)$argon2id$v=19$m=64,t=1,p=1$c29tZXNhbHRzb21lc2FsdA$"
+                    + "pclxcsa4X0bZ5lu7Vy5h3p7EU7VbuW7pGRWETxHuU0c";
+
+    @Test
+    public void testHashAndVerify() {
+        final Argon2PasswordVerifier verifier = newVerifier();
+
+        final String hash = verifier.hash("wombat");
+
+        assertTrue(hash.startsWith("(ARGON2)$argon2id$v=19$m=64,t=1,p=1$"));
+        assertTrue(verifier.verify("wombat", hash));
+        assertFalse(verifier.verify("student", hash));
+        assertFalse(verifier.needsRehash(hash));
+    }
+
+    @Test
+    public void testKnownHash() {
+        final Argon2PasswordVerifier verifier = newVerifier();
+
+        assertTrue(verifier.verify("secret", KNOWN_HASH));
+        assertFalse(verifier.verify("Secret", KNOWN_HASH));
+    }
+
+    @Test
+    public void testNeedsRehash() {
+        final Argon2PasswordVerifier verifier = newVerifier();
+
+        assertFalse(verifier.needsRehash(KNOWN_HASH));
+
+        verifier.setMemoryKiB(128);
+        assertTrue(verifier.needsRehash(KNOWN_HASH));
+
+        verifier.setMemoryKiB(64);
+        verifier.setIterations(2);
+        assertTrue(verifier.needsRehash(KNOWN_HASH));
+
+        verifier.setIterations(1);
+        verifier.setParallelism(2);
+        assertTrue(verifier.needsRehash(KNOWN_HASH));
+        assertTrue(verifier.verify("secret", KNOWN_HASH));
+    }
+
+    @Test
+    public void testMalformedHash() {
+        final Argon2PasswordVerifier verifier = newVerifier();
+        final String[] malformed = {
+            "(ARGON2)",
+            KNOWN_HASH.substring(0, 40),
+            KNOWN_HASH.substring(0, KNOWN_HASH.lastIndexOf('$') + 4),
+            KNOWN_HASH.replace("argon2id", "argon2i"),
+            KNOWN_HASH.replace("v=19", "v=16"),
+            KNOWN_HASH.replace("m=64", "m=6x"),
+            KNOWN_HASH.replace("m=64", "m=0"),
+            KNOWN_HASH.replace("m=64,", ""),
+            KNOWN_HASH.replace(",p=1", ",q=1"),
+            KNOWN_HASH.replace("c29tZXNhbHRzb21lc2FsdA", "c29tZX!hbHRzb21lc2FsdA"),
+            KNOWN_HASH.replace("c29tZXNhbHRzb21lc2FsdA", "c29tZQ"),
+            KNOWN_HASH + "$extra"
+        };
+
+        for (final String hash : malformed) {
+            assertFalse(hash, verifier.verify("secret", hash));
+            assertTrue(hash, verifier.needsRehash(hash));
+        }
+    }
+
+    private static Argon2PasswordVerifier newVerifier() {
+        // Minimal costs keep the tests fast
+        final Argon2PasswordVerifier verifier = new Argon2PasswordVerifier();
+        verifier.setMemoryKiB(64);
+        verifier.setIterations(1);
+        verifier.setParallelism(1);
+        return verifier;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ */
+public class BCryptPasswordVerifierTest {
+
+    // bcrypt of "secret" with a cost of 4, computed with crypt(3)
+    private static final String KNOWN_HASH =
+            "(BCRYPT)$2a$04$DCq7YPn5Rq63x1Lad4cll.6We44vn68DYwdgwGmkl0/lw.1Yaaf9W";
+
+    @Test
+    public void testHashAndVerify() {
+        final BCryptPasswordVerifier verifier = new BCryptPasswordVerifier();
+        verifier.setCost(4);
+
+        final String hash = verifier.hash("wombat");
+
+        assertTrue(hash.startsWith("(BCRYPT)$2a$04$"));
+        assertTrue(verifier.verify("wombat", hash));
+        assertFalse(verifier.verify("student", hash));
+        assertFalse(verifier.needsRehash(hash));
+    }
+
+    @Test
+    public void testKnownHash() {
+        final BCryptPasswordVerifier verifier = new BCryptPasswordVerifier();
+
+        assertTrue(verifier.verify("secret", KNOWN_HASH));
+        assertFalse(verifier.verify("Secret", KNOWN_HASH));
+    }
+
+    @Test
+    public void testNeedsRehash() {
+        final BCryptPasswordVerifier verifier = new BCryptPasswordVerifier();
+        verifier.setCost(4);
+
+        assertFalse(verifier.needsRehash(KNOWN_HASH));
+
+        verifier.setCost(5);
+
+        assertTrue(verifier.needsRehash(KNOWN_HASH));
+        assertTrue(verifier.verify("secret", KNOWN_HASH));
+    }
+
+    @Test
+    public void testMalformedHash() {
+        final BCryptPasswordVerifier verifier = new BCryptPasswordVerifier();
+        verifier.setCost(4);
+        final String truncated = KNOWN_HASH.substring(0, 30);
+        final String badCost = KNOWN_HASH.replace("$04$", "$0x$");
+
+        assertFalse(verifier.verify("secret", "(BCRYPT)"));
+        assertFalse(verifier.verify("secret", truncated));
+        assertFalse(verifier.verify("secret", badCost));
+        assertTrue(verifier.needsRehash("(BCRYPT)"));
+        assertTrue(verifier.needsRehash(truncated));
+        assertTrue(verifier.needsRehash(badCost));
+    }
+}
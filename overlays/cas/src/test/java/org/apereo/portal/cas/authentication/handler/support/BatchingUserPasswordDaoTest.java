@@ -0,0 +1,263 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
+
+/**
+ */
+public class BatchingUserPasswordDaoTest {
+
+    @Test
+    public void testSingleLookup() {
+        final StubUserPasswordDao stub = new StubUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+
+        assertEquals("(MD5)user1", dao.getPasswordHash("user1"));
+        assertEquals(1, stub.singleQueries.get());
+        assertEquals(0, stub.bulkQueries.get());
+    }
+
+    @Test
+    public void testConcurrentLookupsAreBatched() throws Exception {
+        final StubUserPasswordDao stub = new StubUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+        dao.setBatchWindowMillis(200);
+
+        final List<Future<String>> results = lookupConcurrently(dao, "user1", "user2", "user3");
+
+        assertEquals("(MD5)user1", results.get(0).get());
+        assertEquals("(MD5)user2", results.get(1).get());
+        assertEquals("(MD5)user3", results.get(2).get());
+        assertEquals(1, stub.bulkQueries.get());
+        assertEquals(0, stub.singleQueries.get());
+    }
+
+    @Test
+    public void testConcurrentLookupsForSameUserAreCoalesced() throws Exception {
+        final StubUserPasswordDao stub = new StubUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+        dao.setBatchWindowMillis(200);
+
+        final List<Future<String>> results = lookupConcurrently(dao, "user1", "user1", "user1");
+
+        for (final Future<String> result : results) {
+            assertEquals("(MD5)user1", result.get());
+        }
+        assertEquals(1, stub.singleQueries.get() + stub.bulkQueries.get());
+        assertEquals(2, dao.getCoalescedLookupCount());
+    }
+
+    @Test
+    public void testUnknownUserIsRemembered() {
+        final StubUserPasswordDao stub = new StubUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+
+        assertNull(dao.getPasswordHash("unknown"));
+        assertNull(dao.getPasswordHash("unknown"));
+
+        assertEquals(1, stub.singleQueries.get());
+        assertEquals(1, dao.getNegativeCacheHitCount());
+    }
+
+    @Test
+    public void testFailedBatchFallsBackToSingleLookups() throws Exception {
+        final StubUserPasswordDao stub = new StubUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+        dao.setBatchWindowMillis(200);
+
+        final List<Future<String>> results = lookupConcurrently(dao, "user1", "duplicate");
+
+        assertEquals("(MD5)user1", results.get(0).get());
+        try {
+            results.get(1).get();
+            fail("should have thrown IncorrectResultSizeDataAccessException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IncorrectResultSizeDataAccessException);
+        }
+    }
+
+    @Test
+    public void testBatchedLookupOfUserNameInOtherCase() throws Exception {
+        final StubUserPasswordDao stub = new CaseInsensitiveUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+        dao.setBatchWindowMillis(200);
+
+        final List<Future<String>> results = lookupConcurrently(dao, "User1", "user2");
+
+        assertEquals("(MD5)user1", results.get(0).get());
+        assertEquals("(MD5)user2", results.get(1).get());
+        assertEquals(1, stub.bulkQueries.get());
+        assertEquals(0, stub.singleQueries.get());
+        assertEquals("(MD5)user1", dao.getPasswordHash("User1"));
+        assertEquals(0, dao.getNegativeCacheHitCount());
+    }
+
+    @Test
+    public void testBatchedLookupOfUserNameInBothCases() throws Exception {
+        final StubUserPasswordDao stub = new CaseInsensitiveUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+        dao.setBatchWindowMillis(200);
+
+        final List<Future<String>> results = lookupConcurrently(dao, "user1", "User1");
+
+        assertEquals("(MD5)user1", results.get(0).get());
+        assertEquals("(MD5)user1", results.get(1).get());
+        // Only the database knows whether User1 is user1
+        assertEquals(1, stub.bulkQueries.get());
+        assertEquals(1, stub.singleQueries.get());
+    }
+
+    @Test
+    public void testBatchWithUnknownUsersIsOneQuery() throws Exception {
+        final StubUserPasswordDao stub = new CaseInsensitiveUserPasswordDao();
+        final BatchingUserPasswordDao dao = new BatchingUserPasswordDao();
+        dao.setUserPasswordDao(stub);
+        dao.setBatchWindowMillis(200);
+
+        final List<Future<String>> results =
+                lookupConcurrently(dao, "user1", "unknown1", "Unknown2", "unknown3");
+
+        assertEquals("(MD5)user1", results.get(0).get());
+        assertNull(results.get(1).get());
+        assertNull(results.get(2).get());
+        assertNull(results.get(3).get());
+        assertEquals(1, dao.getQueryCount());
+        assertEquals(4, dao.getLookupCount());
+
+        assertNull(dao.getPasswordHash("unknown1"));
+        assertEquals(1, dao.getQueryCount());
+        assertEquals(1, dao.getNegativeCacheHitCount());
+    }
+
+    /** Starts one lookup per user name at (nearly) the same time. */
+    private static List<Future<String>> lookupConcurrently(
+            final BatchingUserPasswordDao dao, String... userNames) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(userNames.length);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<String>> results = new ArrayList<Future<String>>();
+        try {
+            for (final String userName : userNames) {
+                results.add(
+                        executor.submit(
+                                new Callable<String>() {
+                                    @Override
+                                    public String call() throws Exception {
+                                        start.await();
+                                        return dao.getPasswordHash(userName);
+                                    }
+                                }));
+            }
+            start.countDown();
+            for (final Future<String> result : results) {
+                try {
+                    result.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    // Inspected by the caller
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    /** Returns "(MD5)" + user name, except for "duplicate" and names starting with "unknown". */
+    private static class StubUserPasswordDao implements BulkUserPasswordDao {
+        private final AtomicInteger singleQueries = new AtomicInteger();
+        private final AtomicInteger bulkQueries = new AtomicInteger();
+
+        @Override
+        public String getPasswordHash(String userName) {
+            this.singleQueries.incrementAndGet();
+            try {
+                // Hold the "connection" long enough for concurrent lookups to pile up
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if ("duplicate".equals(userName)) {
+                throw new IncorrectResultSizeDataAccessException(1, 2);
+            }
+            return userName.startsWith("unknown") ? null : "(MD5)" + userName;
+        }
+
+        @Override
+        public Map<String, String> getPasswordHashes(Collection<String> userNames) {
+            this.bulkQueries.incrementAndGet();
+            final Map<String, String> passwordHashes = new HashMap<String, String>();
+            for (final String userName : userNames) {
+                if ("duplicate".equals(userName)) {
+                    throw new IncorrectResultSizeDataAccessException(1, 2);
+                }
+                if (!userName.startsWith("unknown")) {
+                    passwordHashes.put(userName, "(MD5)" + userName);
+                }
+            }
+            return passwordHashes;
+        }
+
+        @Override
+        public boolean updatePasswordHash(String userName, String passwordHash) {
+            return true;
+        }
+    }
+
+    /**
+     * Stores user names in lower case and, like a database with a case-insensitive collation,
+     * finds them in any case; bulk results are keyed by the stored name.
+     */
+    private static class CaseInsensitiveUserPasswordDao extends StubUserPasswordDao {
+        @Override
+        public String getPasswordHash(String userName) {
+            return super.getPasswordHash(userName.toLowerCase());
+        }
+
+        @Override
+        public Map<String, String> getPasswordHashes(Collection<String> userNames) {
+            final List<String> storedNames = new ArrayList<String>();
+            for (final String userName : userNames) {
+                storedNames.add(userName.toLowerCase());
+            }
+            return super.getPasswordHashes(storedNames);
+        }
+    }
+}
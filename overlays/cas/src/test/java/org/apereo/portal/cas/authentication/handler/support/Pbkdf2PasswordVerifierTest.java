@@ -0,0 +1,87 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ */
+public class Pbkdf2PasswordVerifierTest {
+
+    @Test
+    public void testHashAndVerify() {
+        final Pbkdf2PasswordVerifier verifier = new Pbkdf2PasswordVerifier();
+        verifier.setIterations(1000);
+
+        final String hash = verifier.hash("wombat");
+
+        assertTrue(hash.startsWith("(PBKDF2)1000:"));
+        assertTrue(verifier.verify("wombat", hash));
+        assertFalse(verifier.verify("student", hash));
+        assertFalse(verifier.needsRehash(hash));
+    }
+
+    @Test
+    public void testKnownHash() {
+        // PBKDF2WithHmacSHA256, 1000 iterations, computed with javax.crypto.SecretKeyFactory
+        final String hash =
+                "(PBKDF2)1000:hYjzu+WLHE7Z0HJsDj4YeA==:"
+                        + "xVigHqeuM3STvE1r8Dr0xK/Mb6z9pVACHF3XRP//wQzd+gaSijwsQA==";
+
+        final Pbkdf2PasswordVerifier verifier = new Pbkdf2PasswordVerifier();
+
+        assertTrue(verifier.verify("secret", hash));
+        assertFalse(verifier.verify("Secret", hash));
+    }
+
+    @Test
+    public void testOtherMacAlgorithm() {
+        final Pbkdf2PasswordVerifier verifier = new Pbkdf2PasswordVerifier("HmacSHA512");
+        verifier.setIterations(1000);
+        final String hash = verifier.hash("wombat");
+
+        assertTrue(verifier.verify("wombat", hash));
+        assertFalse(new Pbkdf2PasswordVerifier().verify("wombat", hash));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownMacAlgorithm() {
+        new Pbkdf2PasswordVerifier("HmacNone");
+    }
+
+    @Test
+    public void testNeedsRehash() {
+        final Pbkdf2PasswordVerifier verifier = new Pbkdf2PasswordVerifier();
+        verifier.setIterations(1000);
+        final String hash = verifier.hash("wombat");
+
+        verifier.setIterations(2000);
+
+        assertTrue(verifier.needsRehash(hash));
+        assertTrue(verifier.verify("wombat", hash));
+    }
+
+    @Test
+    public void testMalformedHash() {
+        final Pbkdf2PasswordVerifier verifier = new Pbkdf2PasswordVerifier();
+
+        assertFalse(verifier.verify("wombat", "(PBKDF2)"));
+        assertFalse(verifier.verify("wombat", "(PBKDF2)abc:AAAA:AAAA"));
+        assertFalse(verifier.verify("wombat", "(PBKDF2)1000:A!AA:AAAA"));
+    }
+}
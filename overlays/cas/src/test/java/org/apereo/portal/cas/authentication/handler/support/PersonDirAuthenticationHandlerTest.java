@@ -14,9 +14,12 @@
  */
 package org.apereo.portal.cas.authentication.handler.support;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import org.apereo.portal.cas.metrics.Metrics;
+import org.easymock.Capture;
 import org.easymock.EasyMock;
 import org.jasig.cas.authentication.principal.UsernamePasswordCredentials;
 import org.junit.Test;
@@ -143,4 +146,195 @@ public class PersonDirAuthenticationHandlerTest {
 
         assertFalse(auth);
     }
+
+    @Test
+    public void testVerifiedCredentialCache() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("student"))
+                .andReturn("(SHA256)KwAQC001SoQq/CjHMLSz2o0aAqx7WrKeRFgWOeM2GEyLXGZd+1/XkA==")
+                .times(2);
+
+        final VerifiedCredentialCache verifiedCredentialCache = new VerifiedCredentialCache();
+
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setUserPasswordDao(userPasswordDao);
+        authenticationHandler.setVerifiedCredentialCache(verifiedCredentialCache);
+
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername("student");
+        credentials.setPassword("wombat");
+
+        EasyMock.replay(userPasswordDao);
+
+        assertTrue(authenticationHandler.authenticateUsernamePasswordInternal(credentials));
+        assertTrue(authenticationHandler.authenticateUsernamePasswordInternal(credentials));
+
+        EasyMock.verify(userPasswordDao);
+
+        assertEquals(1, verifiedCredentialCache.getHitCount());
+        assertEquals(1, verifiedCredentialCache.getMissCount());
+    }
+
+    @Test
+    public void testRehashLegacyPassword() throws Exception {
+        final Pbkdf2PasswordVerifier rehashVerifier = new Pbkdf2PasswordVerifier();
+        rehashVerifier.setIterations(1000);
+
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("admin"))
+                .andReturn("(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt");
+        final Capture<String> upgradedHash = EasyMock.newCapture();
+        EasyMock.expect(
+                        userPasswordDao.updatePasswordHash(
+                                EasyMock.eq("admin"), EasyMock.capture(upgradedHash)))
+                .andReturn(true);
+
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setUserPasswordDao(userPasswordDao);
+        authenticationHandler.setRehashVerifier(rehashVerifier);
+
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername("admin");
+        credentials.setPassword("admin");
+
+        EasyMock.replay(userPasswordDao);
+
+        final boolean auth =
+                authenticationHandler.authenticateUsernamePasswordInternal(credentials);
+
+        EasyMock.verify(userPasswordDao);
+
+        assertTrue(auth);
+        assertTrue(rehashVerifier.verify("admin", upgradedHash.getValue()));
+    }
+
+    @Test
+    public void testRehashRunsOnExecutors() throws Exception {
+        final Pbkdf2PasswordVerifier rehashVerifier = new Pbkdf2PasswordVerifier();
+        rehashVerifier.setIterations(1000);
+
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("admin"))
+                .andReturn("(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt");
+        EasyMock.expect(
+                        userPasswordDao.updatePasswordHash(
+                                EasyMock.eq("admin"), EasyMock.anyString()))
+                .andReturn(true);
+
+        final ThrottledExecutor lookupExecutor = new ThrottledExecutor();
+        lookupExecutor.setThreads(1);
+        final ThrottledExecutor verificationExecutor = new ThrottledExecutor();
+        verificationExecutor.setThreads(1);
+
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setUserPasswordDao(userPasswordDao);
+        authenticationHandler.setRehashVerifier(rehashVerifier);
+        authenticationHandler.setLookupExecutor(lookupExecutor);
+        authenticationHandler.setVerificationExecutor(verificationExecutor);
+
+        EasyMock.replay(userPasswordDao);
+
+        try {
+            assertTrue(
+                    authenticationHandler.authenticateUsernamePasswordInternal(
+                            credentials("admin", "admin")));
+        } finally {
+            lookupExecutor.shutdown();
+            verificationExecutor.shutdown();
+        }
+
+        EasyMock.verify(userPasswordDao);
+
+        // The lookup and the update of the hash; the verification and the new hash
+        assertEquals(2, lookupExecutor.getCompletedCount());
+        assertEquals(2, verificationExecutor.getCompletedCount());
+    }
+
+    @Test
+    public void testInvalidPasswordNotRehashed() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("admin"))
+                .andReturn("(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt");
+
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setUserPasswordDao(userPasswordDao);
+        authenticationHandler.setRehashVerifier(new Pbkdf2PasswordVerifier());
+
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername("admin");
+        credentials.setPassword("wrong");
+
+        EasyMock.replay(userPasswordDao);
+
+        final boolean auth =
+                authenticationHandler.authenticateUsernamePasswordInternal(credentials);
+
+        EasyMock.verify(userPasswordDao);
+
+        assertFalse(auth);
+    }
+
+    @Test
+    public void testOutcomesTimed() throws Exception {
+        final UserPasswordDao userPasswordDao = EasyMock.createMock(UserPasswordDao.class);
+        EasyMock.expect(userPasswordDao.getPasswordHash("admin"))
+                .andReturn("(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt")
+                .times(2);
+        EasyMock.expect(userPasswordDao.getPasswordHash("nobody")).andReturn(null);
+        EasyMock.expect(userPasswordDao.getPasswordHash("student")).andReturn("(XYZ)abc");
+
+        final Metrics metrics = new Metrics();
+        final PersonDirAuthenticationHandler authenticationHandler =
+                new PersonDirAuthenticationHandler();
+        authenticationHandler.setUserPasswordDao(userPasswordDao);
+        authenticationHandler.setMetrics(metrics);
+
+        EasyMock.replay(userPasswordDao);
+
+        assertTrue(
+                authenticationHandler.authenticateUsernamePasswordInternal(
+                        credentials("admin", "admin")));
+        assertFalse(
+                authenticationHandler.authenticateUsernamePasswordInternal(
+                        credentials("admin", "wrong")));
+        assertFalse(
+                authenticationHandler.authenticateUsernamePasswordInternal(
+                        credentials("nobody", "x")));
+        assertFalse(
+                authenticationHandler.authenticateUsernamePasswordInternal(
+                        credentials("student", "x")));
+
+        EasyMock.verify(userPasswordDao);
+
+        assertEquals(1, loginTimerCount(metrics, "MD5", "success"));
+        assertEquals(1, loginTimerCount(metrics, "MD5", "bad_password"));
+        assertEquals(1, loginTimerCount(metrics, "none", "unknown_user"));
+        assertEquals(1, loginTimerCount(metrics, "unknown", "invalid_hash"));
+        assertEquals(0, loginTimerCount(metrics, "none", "error"));
+        assertEquals(4, metrics.timer("cas_password_lookup_seconds", "").getCount());
+        assertEquals(
+                2, metrics.timer("cas_password_verify_seconds", "", "algorithm", "MD5").getCount());
+    }
+
+    private static UsernamePasswordCredentials credentials(String username, String password) {
+        final UsernamePasswordCredentials credentials = new UsernamePasswordCredentials();
+        credentials.setUsername(username);
+        credentials.setPassword(password);
+        return credentials;
+    }
+
+    private static long loginTimerCount(Metrics metrics, String algorithm, String outcome) {
+        return metrics.timer(
+                        "cas_authentication_seconds",
+                        "",
+                        "algorithm",
+                        algorithm,
+                        "outcome",
+                        outcome)
+                .getCount();
+    }
 }
@@ -14,6 +14,8 @@
  */
 package org.apereo.portal.cas.authentication.handler.support;
 
+import java.util.Arrays;
+import java.util.Map;
 import javax.sql.DataSource;
 import junit.framework.TestCase;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
@@ -79,4 +81,28 @@ public class PortalPersonDirUserPasswordDaoTest extends TestCase {
             //expected
         }
     }
+
+    public void testBulkLookup() {
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_DIR VALUES ('foobar', 'pass1')");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_DIR VALUES ('student', 'pass2')");
+
+        final Map<String, String> passwordHashes =
+                this.userPasswordDao.getPasswordHashes(
+                        Arrays.asList("foobar", "student", "nobody"));
+        assertEquals(2, passwordHashes.size());
+        assertEquals("pass1", passwordHashes.get("foobar"));
+        assertEquals("pass2", passwordHashes.get("student"));
+    }
+
+    public void testBulkLookupDuplicateUser() {
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_DIR VALUES ('foobar', 'pass1')");
+        this.jdbcTemplate.update("INSERT INTO UP_PERSON_DIR VALUES ('foobar', 'pass2')");
+
+        try {
+            this.userPasswordDao.getPasswordHashes(Arrays.asList("foobar", "student"));
+            fail("should have thrown IncorrectResultSizeDataAccessException");
+        } catch (IncorrectResultSizeDataAccessException e) {
+            //expected
+        }
+    }
 }
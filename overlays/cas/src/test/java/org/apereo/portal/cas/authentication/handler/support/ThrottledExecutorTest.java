@@ -0,0 +1,182 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apereo.portal.cas.metrics.Counter;
+import org.apereo.portal.cas.metrics.Gauge;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.apereo.portal.cas.metrics.Timer;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ */
+public class ThrottledExecutorTest {
+    private final ThrottledExecutor executor = new ThrottledExecutor();
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown();
+    }
+
+    @Test
+    public void testCall() throws Exception {
+        final String result =
+                this.executor.call(
+                        new Callable<String>() {
+                            @Override
+                            public String call() {
+                                return "done";
+                            }
+                        });
+
+        assertEquals("done", result);
+        assertEquals(1, this.executor.getSubmittedCount());
+        assertEquals(1, this.executor.getCompletedCount());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final Metrics metrics = new Metrics();
+        this.executor.setName("test");
+        this.executor.setMetrics(metrics);
+        this.executor.call(
+                new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "done";
+                    }
+                });
+
+        final Timer waitTimer =
+                metrics.timer("cas_executor_wait_seconds", "", "executor", "test");
+        final Timer serviceTimer =
+                metrics.timer("cas_executor_service_seconds", "", "executor", "test");
+        final Counter rejectedCounter =
+                metrics.counter("cas_executor_rejected_total", "", "executor", "test");
+        assertEquals(1, waitTimer.getCount());
+        assertEquals(1, serviceTimer.getCount());
+        assertEquals(0, rejectedCounter.getCount());
+        assertEquals(6, metrics.getMeters().size());
+        final Gauge queueDepth =
+                metrics.gauge("cas_executor_queue_depth", "", null, "executor", "test");
+        assertEquals(0.0, queueDepth.getValue(), 0.0);
+    }
+
+    @Test
+    public void testRejectWhenQueueFull() throws Exception {
+        this.executor.setThreads(1);
+        this.executor.setQueueCapacity(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> blocked =
+                new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        release.await(10, TimeUnit.SECONDS);
+                        return "done";
+                    }
+                };
+
+        // Occupy the only thread and the only queue slot from other callers
+        final Thread first = callInBackground(blocked);
+        final Thread second = callInBackground(blocked);
+        waitFor(2);
+
+        try {
+            this.executor.call(blocked);
+            fail("should have thrown RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            //expected
+        }
+        assertEquals(1, this.executor.getRejectedCount());
+
+        release.countDown();
+        first.join();
+        second.join();
+        assertEquals(2, this.executor.getCompletedCount());
+        assertTrue(this.executor.getMaxWaitMillis() > 0);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        this.executor.setTimeoutMillis(50);
+
+        try {
+            this.executor.call(
+                    new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            Thread.sleep(5000);
+                            return "done";
+                        }
+                    });
+            fail("should have thrown TimeoutException");
+        } catch (TimeoutException e) {
+            //expected
+        }
+        assertEquals(1, this.executor.getTimedOutCount());
+    }
+
+    @Test
+    public void testTaskException() throws Exception {
+        try {
+            this.executor.call(
+                    new Callable<String>() {
+                        @Override
+                        public String call() {
+                            throw new IllegalStateException("failed");
+                        }
+                    });
+            fail("should have thrown ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private Thread callInBackground(final Callable<String> task) {
+        final Thread thread =
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            executor.call(task);
+                        } catch (Exception e) {
+                            // Not under test
+                        }
+                    }
+                };
+        thread.start();
+        return thread;
+    }
+
+    private void waitFor(int submitted) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (this.executor.getSubmittedCount() < submitted
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.authentication.handler.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ */
+public class VerifiedCredentialCacheTest {
+    private static final String HASH = "(MD5)OP2Z89LDMIY6gHAwfoFPRSQWDl5Z16Vt";
+
+    @Test
+    public void testRepeatLogin() {
+        final VerifiedCredentialCache cache = new VerifiedCredentialCache();
+
+        assertFalse(cache.isVerified("admin", "admin", HASH));
+        cache.verified("admin", "admin", HASH);
+        assertTrue(cache.isVerified("admin", "admin", HASH));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testWrongPassword() {
+        final VerifiedCredentialCache cache = new VerifiedCredentialCache();
+        cache.verified("admin", "admin", HASH);
+
+        assertFalse(cache.isVerified("admin", "Admin", HASH));
+        assertFalse(cache.isVerified("student", "admin", HASH));
+    }
+
+    @Test
+    public void testStoredHashChanged() {
+        final VerifiedCredentialCache cache = new VerifiedCredentialCache();
+        cache.verified("admin", "admin", HASH);
+
+        assertFalse(cache.isVerified("admin", "admin", "(MD5)changed"));
+        assertEquals(0, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+
+        // The old hash must not be honored again either
+        assertFalse(cache.isVerified("admin", "admin", HASH));
+    }
+
+    @Test
+    public void testMaxSize() {
+        final VerifiedCredentialCache cache = new VerifiedCredentialCache();
+        cache.setMaxSize(2);
+
+        cache.verified("user1", "pass", HASH);
+        cache.verified("user2", "pass", HASH);
+        cache.verified("user3", "pass", HASH);
+
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+        assertFalse(cache.isVerified("user1", "pass", HASH));
+        assertTrue(cache.isVerified("user3", "pass", HASH));
+    }
+
+    @Test
+    public void testInvalidate() {
+        final VerifiedCredentialCache cache = new VerifiedCredentialCache();
+        cache.verified("admin", "admin", HASH);
+        cache.invalidate("admin");
+
+        assertFalse(cache.isVerified("admin", "admin", HASH));
+        assertEquals(1, cache.getEvictionCount());
+    }
+}
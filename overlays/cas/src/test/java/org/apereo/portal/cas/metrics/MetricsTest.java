@@ -0,0 +1,122 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.function.DoubleSupplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+
+/**
+ */
+public class MetricsTest {
+
+    @Test
+    public void testSameNameAndLabelsReturnSameMeter() {
+        final Metrics metrics = new Metrics();
+        final Timer timer = metrics.timer("login_seconds", "Logins", "outcome", "success");
+        assertSame(timer, metrics.timer("login_seconds", "Logins", "outcome", "success"));
+        assertFalse(timer == metrics.timer("login_seconds", "Logins", "outcome", "failure"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeConflict() {
+        final Metrics metrics = new Metrics();
+        metrics.timer("logins", "Logins");
+        metrics.counter("logins", "Logins");
+    }
+
+    @Test
+    public void testTimer() {
+        final Metrics metrics = new Metrics();
+        final Timer timer = metrics.timer("login_seconds", "Logins");
+        timer.record(2000000L);
+        timer.record(4000000L);
+        timer.record(20000000000L);
+
+        assertEquals(3, timer.getCount());
+        assertEquals(20006.0, timer.getTotalMillis(), 0.001);
+        assertEquals(20006.0 / 3, timer.getMeanMillis(), 0.001);
+        assertEquals(20000.0, timer.getMaxMillis(), 0.001);
+    }
+
+    @Test
+    public void testPrometheusFormat() throws Exception {
+        final Metrics metrics = new Metrics();
+        metrics.timer("login_seconds", "Logins", "outcome", "success").record(2000000L);
+        metrics.counter("themes_total", "Themes", "theme", "say \"hi\"").increment();
+        metrics.gauge(
+                "queue_depth",
+                "Queued",
+                new DoubleSupplier() {
+                    @Override
+                    public double getAsDouble() {
+                        return 3;
+                    }
+                });
+
+        final StringWriter writer = new StringWriter();
+        metrics.writePrometheus(writer);
+        final String text = writer.toString();
+
+        assertTrue(text.contains("# HELP login_seconds Logins\n# TYPE login_seconds histogram\n"));
+        assertTrue(text.contains("login_seconds_bucket{outcome=\"success\",le=\"0.001\"} 0\n"));
+        assertTrue(text.contains("login_seconds_bucket{outcome=\"success\",le=\"0.0025\"} 1\n"));
+        assertTrue(text.contains("login_seconds_bucket{outcome=\"success\",le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("login_seconds_sum{outcome=\"success\"} 0.002\n"));
+        assertTrue(text.contains("login_seconds_count{outcome=\"success\"} 1\n"));
+        assertTrue(text.contains("# TYPE themes_total counter\n"));
+        assertTrue(text.contains("themes_total{theme=\"say \\\"hi\\\"\"} 1\n"));
+        assertTrue(text.contains("# TYPE queue_depth gauge\nqueue_depth 3.0\n"));
+    }
+
+    @Test
+    public void testMBeans() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final Metrics metrics = new Metrics();
+        metrics.setJmxDomain("org.apereo.portal.cas.test");
+        metrics.counter("before_init_total", "Before").increment();
+        metrics.init();
+        try {
+            metrics.timer("after_init_seconds", "After", "algorithm", "MD5").record(1000000L);
+
+            assertEquals(
+                    1L,
+                    server.getAttribute(
+                            new ObjectName(
+                                    "org.apereo.portal.cas.test:type=Counter,name=before_init_total"),
+                            "Count"));
+            assertEquals(
+                    1.0,
+                    (Double)
+                            server.getAttribute(
+                                    new ObjectName(
+                                            "org.apereo.portal.cas.test:type=Timer,name=after_init_seconds,algorithm=\"MD5\""),
+                                    "MaxMillis"),
+                    0.001);
+        } finally {
+            metrics.shutdown();
+        }
+        assertTrue(
+                server.queryNames(new ObjectName("org.apereo.portal.cas.test:*"), null).isEmpty());
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.easymock.EasyMock;
+import org.jasig.cas.authentication.principal.Service;
+import org.jasig.cas.services.RegisteredServiceImpl;
+import org.jasig.cas.services.ServicesManager;
+import org.jasig.cas.web.support.ArgumentExtractor;
+import org.jasig.cas.web.support.CasArgumentExtractor;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+/**
+ */
+public class ConfigurableUserAgentOverrideThemeResolverTest {
+    private static final String SERVICE = "https://portal.example.org/Login";
+    private static final String IPHONE = "Mozilla/5.0 (iPhone; CPU iPhone OS 12_0) Mobile/15E148";
+    private static final String DESKTOP = "Mozilla/5.0 (X11; Linux x86_64)";
+
+    private final Metrics metrics = new Metrics();
+    private ServicesManager servicesManager;
+    private ConfigurableUserAgentOverrideThemeResolver resolver;
+
+    @Before
+    public void setUp() {
+        final RegisteredServiceImpl registeredService = new RegisteredServiceImpl();
+        registeredService.setServiceId(SERVICE);
+        registeredService.setTheme("portal");
+        // Called once only: later requests for the service are answered by the service cache
+        this.servicesManager = EasyMock.createMock(ServicesManager.class);
+        EasyMock.expect(this.servicesManager.findServiceBy(EasyMock.anyObject(Service.class)))
+                .andReturn(registeredService);
+        EasyMock.replay(this.servicesManager);
+
+        final Map<String, String> portalOverrides = new LinkedHashMap<String, String>();
+        portalOverrides.put(".*(iPhone|Android).*", "portal-mobile");
+        final Map<String, Map<String, String>> overrides =
+                new HashMap<String, Map<String, String>>();
+        overrides.put("portal", portalOverrides);
+
+        this.resolver = new ConfigurableUserAgentOverrideThemeResolver();
+        this.resolver.setDefaultThemeName("default");
+        this.resolver.setServicesManager(this.servicesManager);
+        this.resolver.setArgumentExtractors(
+                Collections.<ArgumentExtractor>singletonList(new CasArgumentExtractor()));
+        this.resolver.setMetrics(this.metrics);
+        this.resolver.setOverrides(overrides);
+    }
+
+    @Test
+    public void testMissingUserAgentResolvesServiceTheme() {
+        assertEquals("portal", this.resolver.resolveThemeName(newRequest(SERVICE, null)));
+
+        assertEquals(1, resolutions("portal"));
+        assertEquals(0, userAgentCacheLookups("miss"));
+        assertEquals(0, userAgentCacheLookups("hit"));
+    }
+
+    @Test
+    public void testResolvedThemesCached() {
+        assertEquals("portal-mobile", this.resolver.resolveThemeName(newRequest(SERVICE, IPHONE)));
+        assertEquals("portal-mobile", this.resolver.resolveThemeName(newRequest(SERVICE, IPHONE)));
+        assertEquals("portal", this.resolver.resolveThemeName(newRequest(SERVICE, DESKTOP)));
+
+        EasyMock.verify(this.servicesManager);
+        assertEquals(2, userAgentCacheLookups("miss"));
+        assertEquals(1, userAgentCacheLookups("hit"));
+        assertEquals(2, resolutions("portal-mobile"));
+        assertEquals(1, resolutions("portal"));
+        assertEquals(3, this.metrics.timer("cas_theme_resolution_seconds", "").getCount());
+    }
+
+    @Test
+    public void testMissingServiceResolvesDefaultTheme() {
+        assertEquals("default", this.resolver.resolveThemeName(newRequest(null, IPHONE)));
+
+        assertEquals(0, userAgentCacheLookups("miss"));
+        assertEquals(1, this.metrics.timer("cas_theme_resolution_seconds", "").getCount());
+    }
+
+    private static MockHttpServletRequest newRequest(String service, String userAgent) {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cas/login");
+        if (service != null) {
+            request.setParameter("service", service);
+        }
+        if (userAgent != null) {
+            request.addHeader("User-Agent", userAgent);
+        }
+        return request;
+    }
+
+    private long resolutions(String resolvedThemeName) {
+        return this.metrics
+                .counter(
+                        "cas_theme_resolutions_total",
+                        "",
+                        "theme",
+                        "portal",
+                        "resolved",
+                        resolvedThemeName)
+                .getCount();
+    }
+
+    private long userAgentCacheLookups(String result) {
+        return this.metrics
+                .counter("cas_theme_user_agent_cache_total", "", "result", result)
+                .getCount();
+    }
+}
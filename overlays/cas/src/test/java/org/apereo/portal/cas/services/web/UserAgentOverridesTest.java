@@ -0,0 +1,52 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.services.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ */
+public class UserAgentOverridesTest {
+
+    @Test
+    public void testFirstMatchingExpressionWins() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put(".*iPad.*", "tablet");
+        mappings.put(".*(iPhone|Android).*", "mobile");
+        mappings.put(".*Mobile.*", "generic");
+        final UserAgentOverrides overrides = new UserAgentOverrides(mappings);
+
+        assertEquals("tablet", overrides.resolve("Mozilla/5.0 (iPad) Mobile/15E148"));
+        assertEquals("mobile", overrides.resolve("Mozilla/5.0 (Linux; Android 9) Mobile"));
+        assertEquals("generic", overrides.resolve("Opera Mobile"));
+        assertNull(overrides.resolve("Mozilla/5.0 (X11; Linux x86_64)"));
+    }
+
+    @Test
+    public void testBackReferencesMatchedSequentially() {
+        final Map<String, String> mappings = new LinkedHashMap<String, String>();
+        mappings.put("(a+)b\\1", "repeat");
+        mappings.put(".*b.*", "other");
+        final UserAgentOverrides overrides = new UserAgentOverrides(mappings);
+
+        assertEquals("repeat", overrides.resolve("aabaa"));
+        assertEquals("other", overrides.resolve("aaba"));
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ */
+public class ConsistentHashRingTest {
+    private static final int KEYS = 30000;
+
+    @Test
+    public void testOwnersIndependentOfNodeOrder() {
+        final ConsistentHashRing ring =
+                new ConsistentHashRing(Arrays.asList("cas1:7890", "cas2:7890", "cas3:7890"), 128);
+        final ConsistentHashRing reordered =
+                new ConsistentHashRing(Arrays.asList("cas3:7890", "cas1:7890", "cas2:7890"), 128);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.ownerOf(ticketId(i)), reordered.ownerOf(ticketId(i)));
+        }
+    }
+
+    @Test
+    public void testKeysSpreadEvenly() {
+        final ConsistentHashRing ring =
+                new ConsistentHashRing(Arrays.asList("cas1:7890", "cas2:7890", "cas3:7890"), 128);
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            final String owner = ring.ownerOf(ticketId(i));
+            counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+        }
+        assertEquals(3, counts.size());
+        for (final int count : counts.values()) {
+            assertTrue(String.valueOf(counts), count > KEYS / 4 && count < KEYS * 5 / 12);
+        }
+    }
+
+    @Test
+    public void testRemovingNodeOnlyMovesItsKeys() {
+        final ConsistentHashRing ring =
+                new ConsistentHashRing(Arrays.asList("cas1:7890", "cas2:7890", "cas3:7890"), 128);
+        final ConsistentHashRing smaller =
+                new ConsistentHashRing(Arrays.asList("cas1:7890", "cas2:7890"), 128);
+        for (int i = 0; i < KEYS; i++) {
+            final String owner = ring.ownerOf(ticketId(i));
+            if (!owner.equals("cas3:7890")) {
+                assertEquals(owner, smaller.ownerOf(ticketId(i)));
+            }
+        }
+    }
+
+    private static String ticketId(int i) {
+        return "ST-" + i + "-dYu2EqOeEOyzJrgXmAkJ-cas";
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class IncrementalTicketRegistryCleanerTest {
+    private static final ExpirationPolicy EXPIRED = new TimeoutExpirationPolicy(0);
+    private static final ExpirationPolicy VALID = new TimeoutExpirationPolicy(7200000);
+
+    private StripedTicketRegistry registry;
+    private IncrementalTicketRegistryCleaner cleaner;
+
+    @Before
+    public void setUp() {
+        this.registry = new StripedTicketRegistry(4, 1);
+        this.registry.setTicketGrantingTicketTimeToKillInSeconds(0);
+
+        this.cleaner = new IncrementalTicketRegistryCleaner();
+        this.cleaner.setExpiryTrackingTicketRegistry(this.registry);
+        this.cleaner.setIntervalMillis(0);
+    }
+
+    @Test
+    public void testExpiredTicketsRemovedInBatches() {
+        for (int i = 0; i < 25; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i, EXPIRED));
+        }
+        this.registry.addTicket(newTicketGrantingTicket("TGT-VALID", VALID));
+
+        this.cleaner.setBatchSize(10);
+        this.cleaner.clean();
+
+        assertEquals(1, this.registry.size());
+        assertNotNull(this.registry.getTicket("TGT-VALID"));
+        assertEquals(25, this.cleaner.getReclaimedCount());
+        assertEquals(3, this.cleaner.getBatchCount());
+        assertEquals(5, this.cleaner.getLastBatchReclaimedCount());
+    }
+
+    @Test
+    public void testDeletedThroughDecoratedRegistry() {
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1", EXPIRED);
+        this.registry.addTicket(tgt);
+
+        final TicketRegistry decorator = createMock(TicketRegistry.class);
+        expect(decorator.deleteTicket("TGT-1")).andReturn(true);
+        replay(decorator);
+
+        this.cleaner.setTicketRegistry(decorator);
+        this.cleaner.clean();
+
+        verify(decorator);
+        assertTrue(tgt.isExpired());
+        assertEquals(1, this.cleaner.getReclaimedCount());
+    }
+
+    @Test
+    public void testFailedDeletionRetriedByNextRun() {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1", EXPIRED));
+
+        final TicketRegistry decorator = createMock(TicketRegistry.class);
+        expect(decorator.deleteTicket("TGT-1")).andThrow(new IllegalStateException("unavailable"));
+        expect(decorator.deleteTicket("TGT-1")).andReturn(true);
+        replay(decorator);
+
+        this.cleaner.setTicketRegistry(decorator);
+        this.cleaner.clean();
+        assertEquals(1, this.cleaner.getFailureCount());
+        assertEquals(0, this.cleaner.getReclaimedCount());
+
+        this.cleaner.clean();
+        verify(decorator);
+        assertEquals(1, this.cleaner.getReclaimedCount());
+    }
+
+    private static TicketGrantingTicket newTicketGrantingTicket(
+            String id, ExpirationPolicy policy) {
+        return new TicketGrantingTicketImpl(
+                id, new ImmutableAuthentication(new SimplePrincipal("admin"), null), policy);
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class MappedFileTicketRegistryTest {
+    private static final ExpirationPolicy TGT_POLICY = new TimeoutExpirationPolicy(7200000);
+    private static final ExpirationPolicy ST_POLICY =
+            new MultiTimeUseOrTimeoutExpirationPolicy(2, 10000);
+    private static final String SERVICE = "https://portal.example.org/Login";
+
+    private File directory;
+    private MappedFileTicketRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = File.createTempFile("cas-tickets", "");
+        assertTrue(this.directory.delete());
+        this.registry = newRegistry(64 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        this.registry.shutdown();
+        final File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testAddGetDelete() {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-1");
+        assertNotNull(tgt);
+        assertEquals("admin", tgt.getAuthentication().getPrincipal().getId());
+        assertNull(this.registry.getTicket("TGT-2"));
+        assertNull(this.registry.getTicket(null));
+        assertEquals(1, this.registry.sessionCount());
+
+        assertTrue(this.registry.deleteTicket("TGT-1"));
+        assertFalse(this.registry.deleteTicket("TGT-1"));
+        assertNull(this.registry.getTicket("TGT-1"));
+        assertEquals(0, this.registry.sessionCount());
+    }
+
+    @Test
+    public void testServiceTicket() {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-1");
+        this.registry.addTicket(
+                tgt.grantServiceTicket(
+                        "ST-1", new SimpleWebApplicationServiceImpl(SERVICE), ST_POLICY, true));
+        assertEquals(1, this.registry.serviceTicketCount());
+
+        final ServiceTicket st = (ServiceTicket) this.registry.getTicket("ST-1");
+        assertEquals(SERVICE, st.getService().getId());
+        assertEquals("TGT-1", st.getGrantingTicket().getId());
+
+        // Both the use of the service ticket and the new service ticket were written back
+        assertTrue(st.isValidFor(new SimpleWebApplicationServiceImpl(SERVICE)));
+        assertEquals(1, this.registry.getTicket("ST-1").getCountOfUses());
+        assertEquals(1, this.registry.getTicket("TGT-1").getCountOfUses());
+
+        assertTrue(this.registry.deleteTicket("ST-1"));
+        assertEquals(0, this.registry.serviceTicketCount());
+    }
+
+    @Test
+    public void testServiceTicketOfDeletedTicketGrantingTicket() {
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+        this.registry.addTicket(
+                tgt.grantServiceTicket(
+                        "ST-1", new SimpleWebApplicationServiceImpl(SERVICE), ST_POLICY, true));
+
+        assertTrue(this.registry.deleteTicket("TGT-1"));
+        assertNull(this.registry.getTicket("ST-1"));
+    }
+
+    @Test
+    public void testUpdateOfDeletedTicketIgnored() {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) this.registry.getTicket("TGT-1");
+        assertTrue(this.registry.deleteTicket("TGT-1"));
+
+        tgt.expire();
+        assertNull(this.registry.getTicket("TGT-1"));
+        assertEquals(0, this.registry.size());
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+        this.registry.addTicket(newTicketGrantingTicket("TGT-2"));
+        this.registry.addTicket(
+                tgt.grantServiceTicket(
+                        "ST-1", new SimpleWebApplicationServiceImpl(SERVICE), ST_POLICY, true));
+        this.registry.deleteTicket("TGT-2");
+        this.registry.shutdown();
+
+        this.registry = newRegistry(64 * 1024);
+        assertEquals(2, this.registry.size());
+        assertEquals(1, this.registry.sessionCount());
+        assertEquals(1, this.registry.serviceTicketCount());
+        assertNull(this.registry.getTicket("TGT-2"));
+        assertEquals("TGT-1", this.registry.getTicket("ST-1").getGrantingTicket().getId());
+
+        // Appends continue after the reloaded records
+        this.registry.addTicket(newTicketGrantingTicket("TGT-3"));
+        assertNotNull(this.registry.getTicket("TGT-1"));
+        assertNotNull(this.registry.getTicket("TGT-3"));
+    }
+
+    @Test
+    public void testReloadIgnoresIncompleteRecord() throws IOException {
+        this.registry.addTicket(newTicketGrantingTicket("TGT-1"));
+        this.registry.addTicket(newTicketGrantingTicket("TGT-2"));
+        this.registry.shutdown();
+
+        // Corrupt the last byte of the second record, as if the write was interrupted
+        final File segment = this.directory.listFiles()[0];
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            int offset = 8;
+            file.seek(offset);
+            offset += file.readInt();
+            file.seek(offset);
+            final int last = offset + file.readInt() - 1;
+            file.seek(last);
+            final int value = file.read();
+            file.seek(last);
+            file.write(value ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        this.registry = newRegistry(64 * 1024);
+        assertNotNull(this.registry.getTicket("TGT-1"));
+        assertNull(this.registry.getTicket("TGT-2"));
+
+        this.registry.addTicket(newTicketGrantingTicket("TGT-3"));
+        this.registry.shutdown();
+        this.registry = newRegistry(64 * 1024);
+        assertEquals(2, this.registry.size());
+        assertNotNull(this.registry.getTicket("TGT-3"));
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        this.registry.shutdown();
+        this.registry = newRegistry(8 * 1024);
+
+        for (int i = 0; i < 100; i++) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            if (i % 10 != 0) {
+                this.registry.deleteTicket("TGT-" + i);
+            }
+        }
+        final int segments = this.registry.getSegmentCount();
+        assertTrue(segments > 2);
+
+        this.registry.compact();
+        assertTrue(this.registry.getSegmentCount() < segments);
+        assertEquals(10, this.registry.size());
+        assertEquals(this.registry.getSegmentCount(), this.directory.listFiles().length);
+
+        this.registry.shutdown();
+        this.registry = newRegistry(8 * 1024);
+        assertEquals(10, this.registry.size());
+        assertEquals(10, this.registry.sessionCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 10 == 0, this.registry.getTicket("TGT-" + i) != null);
+        }
+    }
+
+    @Test
+    public void testCompactionDropsDeletionRecords() throws IOException {
+        this.registry.shutdown();
+        this.registry = newRegistry(8 * 1024);
+
+        // The first segment stays current, so it is never compacted
+        int live = 0;
+        while (this.registry.getSegmentCount() == 1) {
+            this.registry.addTicket(newTicketGrantingTicket("LIVE-" + live++));
+        }
+        // Long ids, so the deletion records alone fill several segments
+        final String prefix = String.format("TGT-%0200d-", 0);
+        for (int i = 0; i < 100; i++) {
+            this.registry.addTicket(newTicketGrantingTicket(prefix + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            this.registry.deleteTicket(prefix + i);
+        }
+        final int segments = this.registry.getSegmentCount();
+        final long size = sizeOfFiles();
+        assertTrue(segments > 4);
+
+        // Each compaction copies any deletion records it keeps into a new segment
+        for (int round = 0; round < 3; round++) {
+            this.registry.compact();
+        }
+        assertTrue(this.registry.getSegmentCount() <= 2);
+        assertEquals(this.registry.getSegmentCount(), this.directory.listFiles().length);
+        assertTrue(sizeOfFiles() < size);
+
+        this.registry.shutdown();
+        this.registry = newRegistry(8 * 1024);
+        assertEquals(live, this.registry.size());
+        for (int i = 0; i < 100; i++) {
+            assertNull(this.registry.getTicket(prefix + i));
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsDeletionRecordOfRemainingSegment() throws IOException {
+        this.registry.shutdown();
+        this.registry = newRegistry(8 * 1024);
+
+        // The first segment stays mostly current, so it is not compacted
+        int i = 0;
+        while (this.registry.getSegmentCount() == 1) {
+            this.registry.addTicket(newTicketGrantingTicket("TGT-" + i++));
+        }
+        this.registry.deleteTicket("TGT-0");
+        // Fill the second segment with tickets that are then deleted
+        while (this.registry.getSegmentCount() == 2) {
+            final String ticketId = "TGT-" + i++;
+            this.registry.addTicket(newTicketGrantingTicket(ticketId));
+            this.registry.deleteTicket(ticketId);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            this.registry.compact();
+        }
+
+        this.registry.shutdown();
+        this.registry = newRegistry(8 * 1024);
+        assertNull(this.registry.getTicket("TGT-0"));
+        assertNotNull(this.registry.getTicket("TGT-1"));
+    }
+
+    @Test
+    public void testPollExpiredTickets() throws IOException {
+        this.registry.setTicketGrantingTicketTimeToKillInSeconds(0);
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+        this.registry.addTicket(newTicketGrantingTicket("TGT-2"));
+        tgt.expire();
+        this.registry.addTicket(tgt);
+
+        final Collection<Ticket> expired = this.registry.pollExpiredTickets(100);
+        assertEquals(1, expired.size());
+        assertEquals("TGT-1", expired.iterator().next().getId());
+        assertEquals(2, this.registry.size());
+    }
+
+    @Test
+    public void testPollRemovesServiceTicketOfDeletedTicketGrantingTicket() throws IOException {
+        this.registry.setServiceTicketTimeToKillInSeconds(0);
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+        this.registry.addTicket(
+                tgt.grantServiceTicket(
+                        "ST-1", new SimpleWebApplicationServiceImpl(SERVICE), ST_POLICY, true));
+        assertTrue(this.registry.deleteTicket("TGT-1"));
+        assertEquals(1, this.registry.size());
+
+        assertTrue(this.registry.pollExpiredTickets(100).isEmpty());
+        assertEquals(0, this.registry.size());
+        assertEquals(0, this.registry.serviceTicketCount());
+
+        this.registry.shutdown();
+        this.registry = newRegistry(64 * 1024);
+        assertEquals(0, this.registry.size());
+    }
+
+    private long sizeOfFiles() {
+        long size = 0;
+        for (final File file : this.directory.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private MappedFileTicketRegistry newRegistry(int segmentSize) throws IOException {
+        final MappedFileTicketRegistry registry = new MappedFileTicketRegistry(1);
+        registry.setDirectory(this.directory);
+        registry.setSegmentSize(segmentSize);
+        registry.setCompactionIntervalMillis(0);
+        registry.init();
+        return registry;
+    }
+
+    private static TicketGrantingTicket newTicketGrantingTicket(String id) {
+        return new TicketGrantingTicketImpl(
+                id, new ImmutableAuthentication(new SimplePrincipal("admin"), null), TGT_POLICY);
+    }
+}
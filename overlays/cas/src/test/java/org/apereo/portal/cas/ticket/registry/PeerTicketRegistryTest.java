@@ -0,0 +1,331 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apereo.portal.cas.metrics.Metrics;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Runs several nodes of the registry in this JVM, connected over localhost.
+ */
+public class PeerTicketRegistryTest {
+    private static final ExpirationPolicy TGT_POLICY = new TimeoutExpirationPolicy(7200000);
+    private static final ExpirationPolicy EXPIRED = new TimeoutExpirationPolicy(0);
+    private static final ExpirationPolicy ST_POLICY =
+            new MultiTimeUseOrTimeoutExpirationPolicy(2, 10000);
+    private static final String SERVICE = "https://portal.example.org/Login";
+    private static final long TIMEOUT_MILLIS = 10000;
+    private static final String SHARED_SECRET = "0123456789abcdef";
+
+    private final List<PeerTicketRegistry> nodes = new ArrayList<PeerTicketRegistry>();
+    private final List<Metrics> metrics = new ArrayList<Metrics>();
+    private final List<String> addresses = new ArrayList<String>();
+
+    @After
+    public void tearDown() {
+        for (final PeerTicketRegistry node : this.nodes) {
+            node.shutdown();
+        }
+    }
+
+    @Test
+    public void testAddAndDeleteReplicated() throws IOException {
+        startNodes(3, 5);
+        final PeerTicketRegistry a = this.nodes.get(0);
+        final PeerTicketRegistry b = this.nodes.get(1);
+        final PeerTicketRegistry c = this.nodes.get(2);
+
+        a.addTicket(newTicketGrantingTicket("TGT-1", TGT_POLICY));
+        awaitSize(b, 1);
+        awaitSize(c, 1);
+        assertEquals(
+                "admin",
+                ((TicketGrantingTicket) b.getTicket("TGT-1"))
+                        .getAuthentication()
+                        .getPrincipal()
+                        .getId());
+
+        assertTrue(b.deleteTicket("TGT-1"));
+        awaitSize(a, 0);
+        awaitSize(c, 0);
+    }
+
+    @Test
+    public void testServiceTicketUseReplicated() throws IOException {
+        startNodes(2, 5);
+        final PeerTicketRegistry a = this.nodes.get(0);
+        final PeerTicketRegistry b = this.nodes.get(1);
+
+        a.addTicket(newTicketGrantingTicket("TGT-1", TGT_POLICY));
+        final TicketGrantingTicket tgt = (TicketGrantingTicket) a.getTicket("TGT-1");
+        a.addTicket(
+                tgt.grantServiceTicket(
+                        "ST-1", new SimpleWebApplicationServiceImpl(SERVICE), ST_POLICY, true));
+        awaitSize(b, 2);
+
+        final ServiceTicket st = (ServiceTicket) b.getTicket("ST-1");
+        assertEquals("TGT-1", st.getGrantingTicket().getId());
+        assertTrue(st.isValidFor(new SimpleWebApplicationServiceImpl(SERVICE)));
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (a.getTicket("ST-1").getCountOfUses() != 1) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Use of the service ticket was not replicated");
+            }
+            sleep();
+        }
+    }
+
+    @Test
+    public void testMissingTicketLookedUpFromOwner() throws IOException {
+        // Changes wait in the outbox for the whole test
+        startNodes(2, 600000);
+        final PeerTicketRegistry a = this.nodes.get(0);
+        final PeerTicketRegistry b = this.nodes.get(1);
+
+        final String ticketId = ticketIdOwnedBy(b, address(0));
+        a.addTicket(newTicketGrantingTicket(ticketId, TGT_POLICY));
+        assertEquals(0, b.size());
+
+        assertNotNull(b.getTicket(ticketId));
+        assertEquals(1, b.size());
+        assertEquals(1, lookups(1, "remote"));
+
+        assertNull(b.getTicket(ticketIdOwnedBy(b, address(0))));
+        assertEquals(1, lookups(1, "miss"));
+        assertNotNull(b.getTicket(ticketId));
+        assertEquals(1, lookups(1, "local"));
+    }
+
+    @Test
+    public void testTicketMissingFromOwnerRemembered() throws IOException, InterruptedException {
+        // Changes wait in the outbox for the whole test
+        startNodes(2, 600000);
+        final PeerTicketRegistry a = this.nodes.get(0);
+        final PeerTicketRegistry b = this.nodes.get(1);
+        b.setNegativeCacheTimeToLiveMillis(500);
+
+        final String ticketId = ticketIdOwnedBy(b, address(0));
+        assertNull(b.getTicket(ticketId));
+        assertNull(b.getTicket(ticketId));
+        assertEquals(2, lookups(1, "miss"));
+        assertEquals(1, remoteLookups(1));
+
+        // Still missing until the entry expires, even once the owner has it
+        a.addTicket(newTicketGrantingTicket(ticketId, TGT_POLICY));
+        assertNull(b.getTicket(ticketId));
+        assertEquals(1, remoteLookups(1));
+
+        Thread.sleep(600);
+        assertNotNull(b.getTicket(ticketId));
+        assertEquals(2, remoteLookups(1));
+        assertEquals(1, lookups(1, "remote"));
+    }
+
+    @Test
+    public void testOnlyOwnerReturnsExpiredTickets() throws IOException {
+        startNodes(2, 5);
+        final PeerTicketRegistry a = this.nodes.get(0);
+        final PeerTicketRegistry b = this.nodes.get(1);
+        for (final PeerTicketRegistry node : this.nodes) {
+            node.setTicketGrantingTicketTimeToKillInSeconds(0);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            a.addTicket(newTicketGrantingTicket("TGT-" + i, EXPIRED));
+        }
+        awaitSize(b, 20);
+        sleep();
+
+        final Collection<Ticket> expiredOnA = a.pollExpiredTickets(100);
+        final Collection<Ticket> expiredOnB = b.pollExpiredTickets(100);
+        assertEquals(20, expiredOnA.size() + expiredOnB.size());
+        for (final Ticket ticket : expiredOnA) {
+            assertEquals(address(0), a.ownerOf(ticket.getId()));
+        }
+        for (final Ticket ticket : expiredOnB) {
+            assertEquals(address(1), b.ownerOf(ticket.getId()));
+        }
+        // Copies of tickets owned elsewhere are dropped
+        assertEquals(expiredOnA.size(), a.size());
+        assertEquals(expiredOnB.size(), b.size());
+    }
+
+    @Test
+    public void testCredentialsReplicated() throws IOException {
+        startNodes(2, 5);
+        final Map<String, String> credentialsOnA =
+                new ReplicatedCredentialsMap(
+                        new ConcurrentHashMap<String, String>(), this.nodes.get(0));
+        final Map<String, String> credentialsOnB =
+                new ReplicatedCredentialsMap(
+                        new ConcurrentHashMap<String, String>(), this.nodes.get(1));
+
+        credentialsOnA.put("TGT-1", "admin");
+        credentialsOnA.put("admin", "secret");
+        awaitSize(credentialsOnB, 2);
+        assertEquals("secret", credentialsOnB.get("admin"));
+
+        credentialsOnB.remove("admin");
+        awaitSize(credentialsOnA, 1);
+        assertEquals("admin", credentialsOnA.get("TGT-1"));
+    }
+
+    @Test
+    public void testPeerWithOtherSecretRejected() throws IOException, InterruptedException {
+        this.addresses.add("127.0.0.1:" + freePort());
+        this.addresses.add("127.0.0.1:" + freePort());
+        final PeerTicketRegistry a = startNode(address(0), 5, SHARED_SECRET);
+        final PeerTicketRegistry b = startNode(address(1), 5, "fedcba9876543210");
+
+        // Several attempts to connect, one per reconnect delay
+        Thread.sleep(3000);
+
+        assertEquals(1, a.getLiveNodes().size());
+        assertEquals(1, b.getLiveNodes().size());
+        a.addTicket(newTicketGrantingTicket("TGT-1", TGT_POLICY));
+        Thread.sleep(100);
+        assertEquals(0, b.size());
+    }
+
+    private void startNodes(int count, long flushIntervalMillis) throws IOException {
+        for (int i = 0; i < count; i++) {
+            this.addresses.add("127.0.0.1:" + freePort());
+        }
+        for (final String address : this.addresses) {
+            startNode(address, flushIntervalMillis, SHARED_SECRET);
+        }
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (final PeerTicketRegistry node : this.nodes) {
+            while (node.getLiveNodes().size() < count) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Nodes did not connect to each other");
+                }
+                sleep();
+            }
+        }
+    }
+
+    private PeerTicketRegistry startNode(
+            String address, long flushIntervalMillis, String sharedSecret) throws IOException {
+        final Metrics nodeMetrics = new Metrics();
+        final PeerTicketRegistry node = new PeerTicketRegistry(1);
+        node.setLocalAddress(address);
+        node.setPeers(this.addresses.toArray(new String[this.addresses.size()]));
+        node.setSharedSecret(sharedSecret);
+        node.setFlushIntervalMillis(flushIntervalMillis);
+        node.setLookupTimeoutMillis(TIMEOUT_MILLIS);
+        node.setMetrics(nodeMetrics);
+        node.init();
+        this.nodes.add(node);
+        this.metrics.add(nodeMetrics);
+        return node;
+    }
+
+    private String address(int node) {
+        return this.addresses.get(node);
+    }
+
+    private long lookups(int node, String result) {
+        return this.metrics
+                .get(node)
+                .counter("cas_ticket_lookups_total", "", "result", result)
+                .getCount();
+    }
+
+    private long remoteLookups(int node) {
+        return this.metrics.get(node).timer("cas_ticket_remote_lookup_seconds", "").getCount();
+    }
+
+    /** @return a ticket id, not used before, that the registry assigns to the owner */
+    private static String ticketIdOwnedBy(PeerTicketRegistry registry, String owner) {
+        for (int i = 0; ; i++) {
+            final String ticketId = "TGT-" + System.nanoTime() + "-" + i;
+            if (owner.equals(registry.ownerOf(ticketId))) {
+                return ticketId;
+            }
+        }
+    }
+
+    private static void awaitSize(PeerTicketRegistry registry, int size) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (registry.size() != size) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Expected " + size + " tickets but found " + registry.size());
+            }
+            sleep();
+        }
+    }
+
+    private static void awaitSize(Map<String, String> map, int size) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (map.size() != size) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Expected " + size + " entries but found " + map.size());
+            }
+            sleep();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static TicketGrantingTicket newTicketGrantingTicket(
+            String id, ExpirationPolicy expirationPolicy) {
+        return new TicketGrantingTicketImpl(
+                id,
+                new ImmutableAuthentication(new SimplePrincipal("admin"), null),
+                expirationPolicy);
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ */
+public class StripedTicketRegistryTest {
+    private static final ExpirationPolicy TGT_POLICY = new TimeoutExpirationPolicy(7200000);
+    private static final ExpirationPolicy ST_POLICY =
+            new MultiTimeUseOrTimeoutExpirationPolicy(2, 10000);
+
+    private StripedTicketRegistry registry;
+
+    @Before
+    public void setUp() {
+        this.registry = new StripedTicketRegistry(4, 1);
+    }
+
+    @Test
+    public void testAddGetDelete() {
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+
+        assertSame(tgt, this.registry.getTicket("TGT-1"));
+        assertSame(tgt, this.registry.getTicket("TGT-1", TicketGrantingTicket.class));
+        assertNull(this.registry.getTicket("TGT-2"));
+        assertNull(this.registry.getTicket(null));
+        assertEquals(1, this.registry.sessionCount());
+
+        assertTrue(this.registry.deleteTicket("TGT-1"));
+        assertFalse(this.registry.deleteTicket("TGT-1"));
+        assertNull(this.registry.getTicket("TGT-1"));
+        assertEquals(0, this.registry.sessionCount());
+    }
+
+    @Test
+    public void testServiceTicket() {
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+        this.registry.addTicket(grantServiceTicket(tgt, "ST-1", ST_POLICY));
+        assertEquals(1, this.registry.serviceTicketCount());
+        assertEquals(1, this.registry.sessionCount());
+
+        final ServiceTicket st = (ServiceTicket) this.registry.getTicket("ST-1");
+        assertNotNull(st);
+        assertSame(tgt, st.getGrantingTicket());
+        assertEquals("https://portal.example.org/Login", st.getService().getId());
+
+        assertTrue(st.isValidFor(new SimpleWebApplicationServiceImpl(st.getService().getId())));
+        assertSame(st, this.registry.getTicket("ST-1"));
+        assertEquals(1, this.registry.getTicket("ST-1").getCountOfUses());
+        assertFalse(st.isExpired());
+
+        assertTrue(this.registry.deleteTicket("ST-1"));
+        assertEquals(0, this.registry.serviceTicketCount());
+    }
+
+    @Test
+    public void testGetTickets() {
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+        this.registry.addTicket(grantServiceTicket(tgt, "ST-1", ST_POLICY));
+        this.registry.addTicket(grantServiceTicket(tgt, "ST-2", ST_POLICY));
+
+        int serviceTickets = 0;
+        for (final Ticket ticket : this.registry.getTickets()) {
+            if (ticket instanceof ServiceTicket) {
+                assertSame(tgt, ticket.getGrantingTicket());
+                serviceTickets++;
+            } else {
+                assertSame(tgt, ticket);
+            }
+        }
+        assertEquals(2, serviceTickets);
+        assertEquals(3, this.registry.size());
+    }
+
+    @Test
+    public void testExpiredServiceTicketsRemoved() {
+        this.registry.setServiceTicketTimeToKillInSeconds(0);
+
+        final TicketGrantingTicket tgt = newTicketGrantingTicket("TGT-1");
+        this.registry.addTicket(tgt);
+        this.registry.addTicket(grantServiceTicket(tgt, "ST-1", new TimeoutExpirationPolicy(0)));
+        this.registry.addTicket(grantServiceTicket(tgt, "ST-2", ST_POLICY));
+
+        assertNull(this.registry.getTicket("ST-1"));
+        assertNotNull(this.registry.getTicket("ST-2"));
+        assertEquals(1, this.registry.serviceTicketCount());
+        assertSame(tgt, this.registry.getTicket("TGT-1"));
+    }
+
+    private static TicketGrantingTicket newTicketGrantingTicket(String id) {
+        return new TicketGrantingTicketImpl(
+                id, new ImmutableAuthentication(new SimplePrincipal("admin"), null), TGT_POLICY);
+    }
+
+    private static ServiceTicket grantServiceTicket(
+            TicketGrantingTicket tgt, String id, ExpirationPolicy policy) {
+        return tgt.grantServiceTicket(
+                id,
+                new SimpleWebApplicationServiceImpl("https://portal.example.org/Login"),
+                policy,
+                false);
+    }
+}
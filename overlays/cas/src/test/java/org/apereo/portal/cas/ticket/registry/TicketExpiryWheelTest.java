@@ -0,0 +1,71 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ */
+public class TicketExpiryWheelTest {
+
+    @Test
+    public void testPollDue() {
+        final TicketExpiryWheel wheel = new TicketExpiryWheel(8, 1000, 0);
+        wheel.schedule("A", 1500);
+        wheel.schedule("B", 2500);
+        wheel.schedule("C", 3600);
+
+        final List<String> due = new ArrayList<String>();
+        assertEquals(0, wheel.poll(1000, 10, due));
+        assertEquals(1, wheel.poll(2000, 10, due));
+        assertEquals(Arrays.asList("A"), due);
+
+        due.clear();
+        assertEquals(0, wheel.poll(2550, 10, due));
+        assertEquals(1, wheel.poll(3000, 10, due));
+        assertEquals(Arrays.asList("B"), due);
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void testPollBounded() {
+        final TicketExpiryWheel wheel = new TicketExpiryWheel(8, 1000, 0);
+        for (int i = 0; i < 20; i++) {
+            wheel.schedule("T" + i, i * 100);
+        }
+
+        final List<String> due = new ArrayList<String>();
+        assertEquals(5, wheel.poll(5000, 5, due));
+        assertEquals(15, wheel.poll(5000, 50, due));
+        assertEquals(20, due.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testDeadlinesBeyondOneRotation() {
+        final TicketExpiryWheel wheel = new TicketExpiryWheel(4, 1000, 0);
+        wheel.schedule("LATE", 10500);
+
+        final List<String> due = new ArrayList<String>();
+        assertEquals(0, wheel.poll(3000, 10, due));
+        assertEquals(0, wheel.poll(10000, 10, due));
+        assertEquals(1, wheel.poll(60000, 10, due));
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.authentication.principal.SimpleWebApplicationServiceImpl;
+import org.jasig.cas.ticket.ExpirationPolicy;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.registry.DefaultTicketRegistry;
+import org.jasig.cas.ticket.registry.TicketRegistry;
+import org.jasig.cas.ticket.support.MultiTimeUseOrTimeoutExpirationPolicy;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+
+/**
+ * Compares the retained heap and lookup latency of {@link StripedTicketRegistry} with
+ * DefaultTicketRegistry. Run with the ticketRegistryBenchmark Gradle task; the arguments are the
+ * numbers of live tickets to test, one in ten of which is a service ticket.
+ *
+ */
+public class TicketRegistryBenchmark {
+    private static final ExpirationPolicy TGT_POLICY = new TimeoutExpirationPolicy(7200000);
+    private static final ExpirationPolicy ST_POLICY =
+            new MultiTimeUseOrTimeoutExpirationPolicy(1, 10000);
+
+    private static final int LOOKUPS_PER_THREAD = 200000;
+
+    public static void main(String[] args) throws Exception {
+        final List<Integer> ticketCounts = new ArrayList<Integer>();
+        for (final String arg : args.length > 0 ? args : new String[] {"100000", "1000000"}) {
+            ticketCounts.add(Integer.valueOf(arg.trim()));
+        }
+        final int threads = Runtime.getRuntime().availableProcessors();
+
+        System.out.println(
+                String.format(
+                        "%-24s %10s %12s %10s %10s %10s",
+                        "registry", "tickets", "heap (MB)", "p50 (ns)", "p99 (ns)", "max (ns)"));
+        for (final int ticketCount : ticketCounts) {
+            run(new DefaultTicketRegistry(), "DefaultTicketRegistry", ticketCount, threads);
+            run(new StripedTicketRegistry(), "StripedTicketRegistry", ticketCount, threads);
+        }
+    }
+
+    private static void run(TicketRegistry registry, String name, int ticketCount, int threads)
+            throws Exception {
+        final long baseline = usedHeap();
+        final String[] ticketIds = populate(registry, ticketCount);
+        final long heap = usedHeap() - baseline;
+
+        // Warm up, then measure
+        lookup(registry, ticketIds, threads);
+        final long[] latencies = lookup(registry, ticketIds, threads);
+        Arrays.sort(latencies);
+
+        System.out.println(
+                String.format(
+                        "%-24s %10d %12.1f %10d %10d %10d",
+                        name,
+                        ticketCount,
+                        heap / (1024.0 * 1024.0),
+                        latencies[latencies.length / 2],
+                        latencies[(int) (latencies.length * 0.99)],
+                        latencies[latencies.length - 1]));
+    }
+
+    private static String[] populate(TicketRegistry registry, int ticketCount) {
+        final String[] ticketIds = new String[ticketCount];
+        TicketGrantingTicket tgt = null;
+        for (int i = 0; i < ticketCount; i++) {
+            if (i % 10 == 9) {
+                ticketIds[i] = "ST-" + i + "-" + randomSuffix(i);
+                registry.addTicket(
+                        tgt.grantServiceTicket(
+                                ticketIds[i],
+                                new SimpleWebApplicationServiceImpl(
+                                        "https://portal.example.org/uPortal/Login?refUrl=" + i),
+                                ST_POLICY,
+                                false));
+            } else {
+                ticketIds[i] = "TGT-" + i + "-" + randomSuffix(i) + "-cas01.example.org";
+                tgt =
+                        new TicketGrantingTicketImpl(
+                                ticketIds[i],
+                                new ImmutableAuthentication(
+                                        new SimplePrincipal("user" + i), null),
+                                TGT_POLICY);
+                registry.addTicket(tgt);
+            }
+        }
+        return ticketIds;
+    }
+
+    private static long[] lookup(
+            final TicketRegistry registry, final String[] ticketIds, int threads)
+            throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                results.add(
+                        executor.submit(
+                                new Callable<long[]>() {
+                                    @Override
+                                    public long[] call() {
+                                        final Random random = new Random(seed);
+                                        final long[] latencies = new long[LOOKUPS_PER_THREAD];
+                                        for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                                            final String ticketId =
+                                                    ticketIds[random.nextInt(ticketIds.length)];
+                                            final long start = System.nanoTime();
+                                            registry.getTicket(ticketId);
+                                            latencies[i] = System.nanoTime() - start;
+                                        }
+                                        return latencies;
+                                    }
+                                }));
+            }
+
+            final long[] latencies = new long[threads * LOOKUPS_PER_THREAD];
+            for (int t = 0; t < threads; t++) {
+                System.arraycopy(
+                        results.get(t).get(),
+                        0,
+                        latencies,
+                        t * LOOKUPS_PER_THREAD,
+                        LOOKUPS_PER_THREAD);
+            }
+            return latencies;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String randomSuffix(int i) {
+        return Long.toString(new Random(i).nextLong() & Long.MAX_VALUE, 36) + "abcdefghijklmnop";
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
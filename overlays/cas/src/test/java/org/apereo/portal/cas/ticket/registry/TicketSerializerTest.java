@@ -0,0 +1,130 @@
+/**
+ * Licensed to Apereo under one or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information regarding copyright ownership. Apereo
+ * licenses this file to you under the Apache License, Version 2.0 (the "License"); you may not use
+ * this file except in compliance with the License. You may obtain a copy of the License at the
+ * following location:
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apereo.portal.cas.ticket.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jasig.cas.authentication.ImmutableAuthentication;
+import org.jasig.cas.authentication.principal.SimplePrincipal;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.jasig.cas.ticket.TicketGrantingTicketImpl;
+import org.jasig.cas.ticket.support.TimeoutExpirationPolicy;
+import org.junit.Test;
+
+/**
+ */
+public class TicketSerializerTest {
+    private static final TicketSerializer.TicketResolver NO_TICKETS =
+            new TicketSerializer.TicketResolver() {
+                @Override
+                public Ticket getTicket(String ticketId) {
+                    return null;
+                }
+            };
+
+    private final TicketSerializer serializer = new TicketSerializer();
+
+    @Test
+    public void testTicketRead() throws IOException {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("mail", "admin@example.org");
+        attributes.put("memberOf", Arrays.asList("staff", "admins"));
+
+        final TicketGrantingTicket read =
+                (TicketGrantingTicket)
+                        this.serializer.deserialize(
+                                this.serializer.serialize(newTicket(attributes)), NO_TICKETS);
+
+        assertEquals("TGT-1", read.getId());
+        assertEquals(
+                Arrays.asList("staff", "admins"),
+                read.getAuthentication().getPrincipal().getAttributes().get("memberOf"));
+    }
+
+    @Test
+    public void testOtherClassRejected() throws IOException {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("logins", new AtomicInteger(3));
+        final byte[] serialized = this.serializer.serialize(newTicket(attributes));
+
+        try {
+            this.serializer.deserialize(serialized, NO_TICKETS);
+            fail("AtomicInteger is not allowed in a ticket");
+        } catch (InvalidClassException e) {
+            assertEquals(AtomicInteger.class.getName(), e.classname);
+        }
+
+        this.serializer.allow(AtomicInteger.class.getName());
+        final TicketGrantingTicket read =
+                (TicketGrantingTicket) this.serializer.deserialize(serialized, NO_TICKETS);
+        final Object logins = read.getAuthentication().getPrincipal().getAttributes().get("logins");
+        assertEquals(3, ((AtomicInteger) logins).get());
+    }
+
+    @Test
+    public void testStreamOfOtherObjectRejected() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(new AtomicInteger(1));
+        out.close();
+
+        try {
+            this.serializer.deserialize(bytes.toByteArray(), NO_TICKETS);
+            fail("AtomicInteger is not a ticket");
+        } catch (InvalidClassException e) {
+            assertEquals(AtomicInteger.class.getName(), e.classname);
+        }
+    }
+
+    @Test
+    public void testAllowedClasses() {
+        assertTrue(this.serializer.isAllowed(TicketGrantingTicketImpl.class.getName()));
+        assertTrue(this.serializer.isAllowed(SimplePrincipal.class.getName()));
+        assertTrue(this.serializer.isAllowed("java.util.HashMap"));
+        assertTrue(this.serializer.isAllowed("[B"));
+        assertTrue(this.serializer.isAllowed("[[Ljava.lang.String;"));
+
+        assertFalse(
+                this.serializer.isAllowed(
+                        "org.apache.commons.collections.functors.InvokerTransformer"));
+        assertFalse(
+                this.serializer.isAllowed(
+                        "[Lorg.apache.commons.collections.functors.InvokerTransformer;"));
+        assertFalse(this.serializer.isAllowed("java.util.PriorityQueue"));
+        assertFalse(this.serializer.isAllowed("org.example.Attribute"));
+
+        this.serializer.allow("org.example.");
+        assertTrue(this.serializer.isAllowed("org.example.Attribute"));
+    }
+
+    private static TicketGrantingTicket newTicket(Map<String, Object> attributes) {
+        return new TicketGrantingTicketImpl(
+                "TGT-1",
+                new ImmutableAuthentication(new SimplePrincipal("admin", attributes), null),
+                new TimeoutExpirationPolicy(7200000));
+    }
+}
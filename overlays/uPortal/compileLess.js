@@ -0,0 +1,116 @@
+/**
+ * Licensed to Apereo under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Apereo licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License.  You may obtain a
+ * copy of the License at the following location:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Compiles the Respondr skins named on the command line in one Node process, all of them at once
+ * (see the compileLess task in build.gradle).  A skin is skipped when its CSS exists and neither
+ * its .less file nor any file it imports has changed since it was compiled;  the hashes of those
+ * files are kept in .compileLess.json in the output directory.  CSS files of skins that no longer
+ * exist are removed.
+ *
+ * Usage:  node compileLess.js {skinsDir} {outputDir} {skin}.less...
+ *
+ * Relative directories are resolved against the directory of this script.
+ */
+'use strict';
+
+const crypto = require('crypto');
+const fs = require('fs');
+const path = require('path');
+const less = require('less');
+
+const skinsDir = path.resolve(__dirname, process.argv[2]);
+const outputDir = path.resolve(__dirname, process.argv[3]);
+const skinFiles = process.argv.slice(4);
+const stateFile = path.join(outputDir, '.compileLess.json');
+
+function hash(file) {
+    return crypto.createHash('sha256').update(fs.readFileSync(file)).digest('hex');
+}
+
+function cssFileOf(skinFile) {
+    return path.join(outputDir, skinFile.replace(/\.less$/, '.css'));
+}
+
+// Hashes are recorded against paths relative to skinsDir, so the output can be relocated
+function isUpToDate(previous, skinFile) {
+    if (!previous || !fs.existsSync(cssFileOf(skinFile))) {
+        return false;
+    }
+    return Object.keys(previous).every(file => {
+        const absolute = path.resolve(skinsDir, file);
+        return fs.existsSync(absolute) && hash(absolute) === previous[file];
+    });
+}
+
+function compile(state, skinFile) {
+    const lessFile = path.join(skinsDir, skinFile);
+    if (isUpToDate(state[skinFile], skinFile)) {
+        console.log(`  ${skinFile}:  up to date`);
+        return Promise.resolve();
+    }
+    const started = Date.now();
+    return less.render(fs.readFileSync(lessFile, 'utf8'), { filename: lessFile })
+        .then(output => {
+            fs.writeFileSync(cssFileOf(skinFile), output.css);
+            const hashes = {};
+            [lessFile].concat(output.imports).forEach(file => {
+                hashes[path.relative(skinsDir, file)] = hash(file);
+            });
+            state[skinFile] = hashes;
+            console.log(`  ${skinFile}:  compiled in ${Date.now() - started} ms`);
+        }, error => {
+            delete state[skinFile];
+            throw new Error(`${skinFile}:  ${less.formatError ? less.formatError(error) : error.message}`);
+        });
+}
+
+if (!fs.existsSync(outputDir)) {
+    fs.mkdirSync(outputDir);
+}
+let state = {};
+if (fs.existsSync(stateFile)) {
+    try {
+        state = JSON.parse(fs.readFileSync(stateFile, 'utf8'));
+    } catch (e) {
+        state = {};
+    }
+}
+
+// Forget skins that were removed
+const cssFiles = new Set(skinFiles.map(cssFileOf));
+fs.readdirSync(outputDir)
+    .map(name => path.join(outputDir, name))
+    .filter(file => file.endsWith('.css') && !cssFiles.has(file))
+    .forEach(file => fs.unlinkSync(file));
+Object.keys(state)
+    .filter(skinFile => skinFiles.indexOf(skinFile) === -1)
+    .forEach(skinFile => delete state[skinFile]);
+
+const started = Date.now();
+const failures = [];
+Promise.all(skinFiles.map(skinFile => compile(state, skinFile).catch(error => failures.push(error.message))))
+    .then(() => {
+        fs.writeFileSync(stateFile, JSON.stringify(state, null, 2));
+        if (failures.length > 0) {
+            failures.forEach(failure => console.error(failure));
+            process.exit(1);
+        }
+        console.log(`Finished ${skinFiles.length} skin(s) in ${Date.now() - started} ms`);
+    });